@@ -0,0 +1,251 @@
+package com.github.davidmoten.structures.btree;
+
+import static com.google.common.base.Optional.absent;
+import static com.google.common.base.Optional.of;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+
+/**
+ * Computes, stores and queries the {@link Summary} of each subtree (see
+ * {@link BTree.Builder#subtreeCounts()} and
+ * {@link BTree.Builder#summarizer(Summarizer)}).
+ * 
+ * <p>
+ * Nodes are copied on write so the summary of a node never changes once the
+ * node is built. It is computed from the keys of the node and the summaries
+ * of its children when the node is saved and cached on its
+ * {@link NodeRef}. The parent record holds the summary of each child after
+ * its keys (see {@link Node#save(DataOutput, Serializer, Augmentation)}), so
+ * a query reads the summary of a child without loading it.
+ * </p>
+ * 
+ * @author dxm
+ * 
+ * @param <T>
+ */
+class Augmentation<T extends Comparable<T>> {
+
+	private final boolean enabled;
+
+	private final Optional<Summarizer<T, Object>> summarizer;
+
+	private Augmentation(boolean enabled,
+			Optional<Summarizer<T, Object>> summarizer) {
+		this.enabled = enabled;
+		this.summarizer = summarizer;
+	}
+
+	/**
+	 * Returns an augmentation that stores nothing.
+	 * 
+	 * @return
+	 */
+	static <T extends Comparable<T>> Augmentation<T> none() {
+		return new Augmentation<T>(false,
+				Optional.<Summarizer<T, Object>> absent());
+	}
+
+	/**
+	 * Returns an augmentation that stores the number of values in each
+	 * subtree.
+	 * 
+	 * @return
+	 */
+	static <T extends Comparable<T>> Augmentation<T> counts() {
+		return new Augmentation<T>(true,
+				Optional.<Summarizer<T, Object>> absent());
+	}
+
+	/**
+	 * Returns an augmentation that stores the number of values in each
+	 * subtree and their summary.
+	 * 
+	 * @param summarizer
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	static <T extends Comparable<T>> Augmentation<T> summaries(
+			Summarizer<T, ?> summarizer) {
+		return new Augmentation<T>(true,
+				of((Summarizer<T, Object>) summarizer));
+	}
+
+	boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Returns true if summaries are computed by the given summarizer.
+	 * 
+	 * @param s
+	 * @return
+	 */
+	boolean uses(Summarizer<?, ?> s) {
+		return summarizer.isPresent() && summarizer.get() == s;
+	}
+
+	/**
+	 * Returns the flags of a node record that holds the summaries of its
+	 * children.
+	 * 
+	 * @return
+	 */
+	byte flags() {
+		if (summarizer.isPresent())
+			return Node.FLAG_COUNTS | Node.FLAG_SUMMARIES;
+		else
+			return Node.FLAG_COUNTS;
+	}
+
+	Summary empty() {
+		if (summarizer.isPresent())
+			return new Summary(0, of(summarizer.get().identity()));
+		else
+			return new Summary(0, Optional.<Object> absent());
+	}
+
+	Summary ofValue(T t) {
+		if (summarizer.isPresent())
+			return new Summary(1, of(summarizer.get().summarize(t)));
+		else
+			return new Summary(1, Optional.<Object> absent());
+	}
+
+	Summary combine(Summary a, Summary b) {
+		if (summarizer.isPresent())
+			return new Summary(a.count + b.count, of(summarizer.get().combine(
+					a.value.get(), b.value.get())));
+		else
+			return new Summary(a.count + b.count, Optional.<Object> absent());
+	}
+
+	/**
+	 * Returns the summary of the subtree of node from its keys and the
+	 * summaries of its children. Deleted keys are not counted.
+	 * 
+	 * @param node
+	 * @return
+	 */
+	Summary summarize(NodeRef<T> node) {
+		List<Key<T>> keys = Lists.newArrayList(node.keys());
+		Summary result = empty();
+		for (int i = 0; i <= keys.size(); i++) {
+			if (!isLeaf(keys))
+				result = combine(result, child(keys, i).summary(this));
+			if (i < keys.size() && !keys.get(i).isDeleted())
+				result = combine(result, ofValue(keys.get(i).value()));
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the value at the given index (from 0) of the values in
+	 * ascending order under node or absent if there is no such value. Loads
+	 * one node per level.
+	 * 
+	 * @param node
+	 * @param index
+	 * @return
+	 */
+	Optional<T> select(NodeRef<T> node, long index) {
+		if (index < 0)
+			return absent();
+		while (true) {
+			List<Key<T>> keys = Lists.newArrayList(node.keys());
+			Optional<NodeRef<T>> next = absent();
+			for (int i = 0; i <= keys.size(); i++) {
+				if (!isLeaf(keys)) {
+					NodeRef<T> child = child(keys, i);
+					long count = child.summary(this).count;
+					if (index < count) {
+						next = of(child);
+						break;
+					} else
+						index -= count;
+				}
+				if (i < keys.size() && !keys.get(i).isDeleted()) {
+					if (index == 0)
+						return of(keys.get(i).value());
+					index--;
+				}
+			}
+			if (!next.isPresent())
+				return absent();
+			node = next.get();
+		}
+	}
+
+	static <T extends Comparable<T>> boolean isLeaf(List<Key<T>> keys) {
+		return keys.isEmpty() || !keys.get(0).hasChild();
+	}
+
+	/**
+	 * Returns the child at index i of a non-leaf node with the given keys
+	 * (the left child of key i or the right child of the last key).
+	 * 
+	 * @param keys
+	 * @param i
+	 * @return
+	 */
+	static <T extends Comparable<T>> NodeRef<T> child(List<Key<T>> keys,
+			int i) {
+		if (i < keys.size())
+			return keys.get(i).getLeft().get();
+		else
+			return keys.get(i - 1).getRight().get();
+	}
+
+	/**
+	 * Writes the summary of a child. The summary of the summarizer is
+	 * preceded by its length so that it can be skipped by a reader without
+	 * the summarizer.
+	 * 
+	 * @param out
+	 * @param summary
+	 * @throws IOException
+	 */
+	void write(DataOutput out, Summary summary) throws IOException {
+		out.writeLong(summary.count);
+		if (summarizer.isPresent()) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream o = new DataOutputStream(bytes);
+			summarizer.get().serializer().write(o, summary.value.get());
+			o.flush();
+			out.writeInt(bytes.size());
+			out.write(bytes.toByteArray());
+		}
+	}
+
+	/**
+	 * Reads the summary of a child from a record with the given flags.
+	 * Returns absent if the record does not hold all that this augmentation
+	 * stores (the summary is then computed when first needed).
+	 * 
+	 * @param bb
+	 * @param flags
+	 * @return
+	 */
+	Optional<Summary> read(ByteBuffer bb, byte flags) {
+		long count = bb.getLong();
+		Optional<Object> value = absent();
+		if ((flags & Node.FLAG_SUMMARIES) != 0) {
+			int length = bb.getInt();
+			int end = bb.position() + length;
+			if (summarizer.isPresent())
+				value = of(summarizer.get().serializer().read(bb));
+			bb.position(end);
+		}
+		if (summarizer.isPresent() && !value.isPresent())
+			return absent();
+		else
+			return of(new Summary(count, value));
+	}
+}
@@ -4,22 +4,34 @@ import static com.google.common.base.Optional.absent;
 import static com.google.common.base.Optional.of;
 import static java.lang.Runtime.getRuntime;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 
 /**
  * A standard BTree implementation as per wikipedia entry with some tweaks to
@@ -35,13 +47,17 @@ import com.google.common.base.Preconditions;
  * 
  * @param <T>
  */
-public class BTree<T extends Serializable & Comparable<T>> implements
-		Iterable<T> {
+public class BTree<T extends Comparable<T>> implements Iterable<T> {
+
+	/**
+	 * The maximum number of nodes saved in one batch when relocating nodes.
+	 */
+	private static final int REWRITE_BATCH_SIZE = 1000;
 
 	/**
 	 * The root node. Mutable!
 	 */
-	private NodeRef<T> root;
+	private volatile NodeRef<T> root;
 
 	/**
 	 * The maximum number of keys in a node plus one.
@@ -75,6 +91,86 @@ public class BTree<T extends Serializable & Comparable<T>> implements
 	 */
 	private final Optional<NodeCache<T>> nodeCache;
 
+	/**
+	 * Writes and reads nodes to and from storage.
+	 */
+	private final NodeCodec<T> codec;
+
+	/**
+	 * If true deleted keys written by earlier versions are dropped from
+	 * leaves when they are copied (see {@link Builder#purgeTombstones()}).
+	 */
+	private final boolean purgeTombstones;
+
+	/**
+	 * The summaries kept for each subtree (see
+	 * {@link Builder#subtreeCounts()}).
+	 */
+	private final Augmentation<T> augmentation;
+
+	/**
+	 * Saves nodes asynchronously if present.
+	 */
+	private final Optional<WriteBehind<T>> writeBehind;
+
+	/**
+	 * Marks the records of subtrees detached by
+	 * {@link #deleteRange(Comparable, Comparable, ComparisonOperator, ComparisonOperator)}
+	 * as obsolete if present.
+	 */
+	private final Optional<Reclaimer<T>> reclaimer;
+
+	/**
+	 * Settings for {@link #compact()}.
+	 */
+	private final Compaction compaction;
+
+	/**
+	 * Calls {@link #compact()} periodically if present.
+	 */
+	private final Optional<Thread> compactor;
+
+	/**
+	 * Waited on by the background compactor between checks. Notified on
+	 * close.
+	 */
+	private final Object compactorMonitor = new Object();
+
+	private volatile boolean compactorRunning = true;
+
+	/**
+	 * Decides when to commit (see {@link #commit()}).
+	 */
+	private final CommitPolicy commitPolicy;
+
+	/**
+	 * Commits periodically if present (see
+	 * {@link CommitPolicy#everyMillis(long)}).
+	 */
+	private final Optional<Timer> committer;
+
+	/**
+	 * The number of operations since the last commit. Guarded by
+	 * {@link #writeMonitor}.
+	 */
+	private long uncommitted = 0;
+
+	/**
+	 * The sequence number of the next superblock written. Guarded by
+	 * {@link #metadataMonitor}.
+	 */
+	private long commitSequence = 0;
+
+	/**
+	 * Pins the top levels of the tree in memory if present.
+	 */
+	private final Optional<Pinning<T>> pinning;
+
+	/**
+	 * Reads child nodes ahead of iteration if present.
+	 */
+	private final Optional<ReadAhead<T>> readAhead;
+
 	/**
 	 * Queues nodes for saving.
 	 */
@@ -86,8 +182,8 @@ public class BTree<T extends Serializable & Comparable<T>> implements
 	private final NodeLoader<T> loader = new NodeLoader<T>() {
 
 		@Override
-		public void load(NodeRef<T> node) {
-			BTree.this.load(node);
+		public Node<T> load(NodeRef<T> node) {
+			return BTree.this.load(node);
 		}
 	};
 
@@ -107,6 +203,8 @@ public class BTree<T extends Serializable & Comparable<T>> implements
 		Preconditions.checkNotNull(builder.degree, "degree cannot be null");
 		Preconditions.checkNotNull(builder.cacheSize,
 				"cacheSize cannot be null");
+		Preconditions.checkNotNull(builder.serializer,
+				"serializer cannot be null");
 		Preconditions.checkArgument(builder.degree.isPresent()
 				|| builder.metadataFile.isPresent()
 				&& builder.metadataFile.get().exists(),
@@ -114,8 +212,18 @@ public class BTree<T extends Serializable & Comparable<T>> implements
 		Preconditions.checkArgument(!builder.degree.isPresent()
 				|| builder.degree.get() >= 2, "degree must be >=2");
 
-		if (builder.cacheSize.isPresent())
-			nodeCache = of(new NodeCache<T>(builder.cacheSize.get()));
+		this.augmentation = builder.augmentation;
+		this.purgeTombstones = builder.purgeTombstones;
+		this.codec = new NodeCodec<T>(builder.serializer,
+				builder.verifyChecksumsEvery, builder.compression,
+				augmentation);
+
+		if (builder.cacheBytes.isPresent())
+			nodeCache = of(NodeCache.<T> maxBytes(builder.cacheBytes.get(),
+					builder.cachePolicy));
+		else if (builder.cacheSize.isPresent())
+			nodeCache = of(NodeCache.<T> maxNodes(builder.cacheSize.get(),
+					builder.cachePolicy));
 		else
 			nodeCache = absent();
 
@@ -124,17 +232,30 @@ public class BTree<T extends Serializable & Comparable<T>> implements
 		if (metadataFile.isPresent()) {
 			if (metadataFile.get().exists()) {
 
-				Metadata metadata = readMetadata(builder.degree);
-				degree = metadata.degree;
-				root = new NodeRef<T>(loader, of(metadata.rootPosition),
+				Superblock superblock = Superblock.read(metadataFile.get());
+				String serializerId = Serializers.id(builder.serializer);
+				Preconditions.checkArgument(!superblock.serializerId
+						.isPresent()
+						|| superblock.serializerId.get().equals(serializerId),
+						"keys were written with serializer %s but %s was given",
+						superblock.serializerId.orNull(), serializerId);
+				commitSequence = superblock.sequence + 1;
+				degree = superblock.degree;
+				root = new NodeRef<T>(loader, of(superblock.rootPosition),
 						degree, true);
 
 				if (!builder.storage.isPresent())
 					this.storage = of(new Storage(new File(
-							metadata.storageDirectory), metadata.storageName));
+							superblock.storageDirectory),
+							superblock.storageName, builder.readMode,
+							builder.segmentSize));
 				else {
 					this.storage = builder.storage;
 				}
+				storage.get().setObsoleteBytes(superblock.obsoleteBytes);
+				if (superblock.segments.isPresent())
+					storage.get().markUncommitted(superblock.segments.get(),
+							superblock.lastSegmentLength);
 			} else {
 				degree = builder.degree.get();
 				root = new NodeRef<T>(loader, Optional.<Position> absent(),
@@ -142,7 +263,7 @@ public class BTree<T extends Serializable & Comparable<T>> implements
 				if (!builder.storage.isPresent())
 					this.storage = of(new Storage(metadataFile.get()
 							.getParentFile(), metadataFile.get().getName()
-							+ ".storage"));
+							+ ".storage", builder.readMode, builder.segmentSize));
 				else {
 					this.storage = builder.storage;
 				}
@@ -154,9 +275,58 @@ public class BTree<T extends Serializable & Comparable<T>> implements
 					true);
 			addToSaveQueue(root);
 			flushSaves(saveQueue);
-			if (metadataFile.isPresent())
-				writeMetadata();
 		}
+		if (builder.writeBehindMaxLatencyMs.isPresent() && storage.isPresent())
+			writeBehind = of(new WriteBehind<T>(storage.get(), codec,
+					new WriteBehind.Listener<T>() {
+						@Override
+						public void saved(List<NodeRef<T>> nodes) {
+							for (NodeRef<T> node : nodes)
+								BTree.this.saved(node);
+						}
+					}, builder.writeBehindQueueSize,
+					builder.writeBehindMaxLatencyMs.get(),
+					builder.writeBehindMaxBytes));
+		else
+			writeBehind = absent();
+		if (builder.readAheadDepth > 0 && storage.isPresent())
+			readAhead = of(new ReadAhead<T>(builder.readAheadDepth,
+					builder.readAheadThreads, storage.get(), codec, loader,
+					nodeCache));
+		else
+			readAhead = absent();
+		if (storage.isPresent())
+			reclaimer = of(new Reclaimer<T>(storage.get(), codec, loader,
+					degree));
+		else
+			reclaimer = absent();
+		this.compaction = builder.compaction;
+		if (builder.compactionEnabled && storage.isPresent()) {
+			compactor = of(createCompactor());
+			compactor.get().start();
+		} else
+			compactor = absent();
+		if (builder.pinLevels.isPresent() || builder.pinBytes.isPresent()) {
+			pinning = of(new Pinning<T>(builder.pinLevels.or(Integer.MAX_VALUE),
+					builder.pinBytes.or(Long.MAX_VALUE), nodeCache));
+			pinning.get().repin(root);
+		} else
+			pinning = absent();
+		this.commitPolicy = builder.commitPolicy;
+		if (commitPolicy.getIntervalMs() > 0 && metadataFile.isPresent()) {
+			committer = of(new Timer("btree-committer-"
+					+ metadataFile.get().getName(), true));
+			committer.get().schedule(new TimerTask() {
+				@Override
+				public void run() {
+					synchronized (writeMonitor) {
+						if (uncommitted > 0)
+							commit();
+					}
+				}
+			}, commitPolicy.getIntervalMs(), commitPolicy.getIntervalMs());
+		} else
+			committer = absent();
 		System.out.println("totalMemory=" + getRuntime().totalMemory()
 				+ ",maxMemory=" + getRuntime().maxMemory());
 
@@ -169,11 +339,30 @@ public class BTree<T extends Serializable & Comparable<T>> implements
 	 * 
 	 * @param <R>
 	 */
-	public static class Builder<R extends Serializable & Comparable<R>> {
+	public static class Builder<R extends Comparable<R>> {
 		private Optional<Integer> degree = of(100);
 		private Optional<File> metadataFile = absent();
 		private Optional<Long> cacheSize = absent();
+		private Optional<Long> cacheBytes = absent();
+		private CachePolicy cachePolicy = CachePolicy.LRU;
+		private Optional<Integer> pinLevels = absent();
+		private Optional<Long> pinBytes = absent();
+		private int readAheadDepth = 0;
+		private int readAheadThreads = 1;
 		private Optional<Storage> storage = absent();
+		private ReadMode readMode = ReadMode.STREAM;
+		private Serializer<R> serializer = Serializers.javaSerialization();
+		private Optional<Long> writeBehindMaxLatencyMs = absent();
+		private long writeBehindMaxBytes;
+		private int writeBehindQueueSize = 10000;
+		private long segmentSize = Storage.DEFAULT_SEGMENT_SIZE;
+		private Compaction compaction = new Compaction(0.5, 100, 10);
+		private boolean compactionEnabled = false;
+		private CommitPolicy commitPolicy = CommitPolicy.onFlush();
+		private int verifyChecksumsEvery = 1;
+		private Compression compression = Compression.NONE;
+		private Augmentation<R> augmentation = Augmentation.none();
+		private boolean purgeTombstones = false;
 
 		/**
 		 * Constructor.
@@ -216,157 +405,446 @@ public class BTree<T extends Serializable & Comparable<T>> implements
 			return this;
 		}
 
+		/**
+		 * Bounds the node cache by the estimated heap bytes of the nodes it
+		 * holds rather than by their number. Nodes that have been saved are
+		 * only held by the cache so this bounds the memory used by saved
+		 * nodes. Overrides {@link #cacheSize(long)}.
+		 * 
+		 * @param maxBytes
+		 * @return
+		 */
+		public Builder<R> cacheBytes(long maxBytes) {
+			this.cacheBytes = of(maxBytes);
+			return this;
+		}
+
+		/**
+		 * Sets how the node cache chooses nodes to evict. Default is
+		 * {@link CachePolicy#LRU}. Use {@link CachePolicy#TWO_QUEUE} if full
+		 * iterations should not displace frequently used nodes.
+		 * 
+		 * @param cachePolicy
+		 * @return
+		 */
+		public Builder<R> cachePolicy(CachePolicy cachePolicy) {
+			this.cachePolicy = cachePolicy;
+			return this;
+		}
+
+		/**
+		 * Keeps the nodes in the top levels of the tree in memory outside the
+		 * node cache so that a lookup only reads the levels below from
+		 * storage.
+		 * 
+		 * @param levels
+		 * @return
+		 */
+		public Builder<R> pinLevels(int levels) {
+			this.pinLevels = of(levels);
+			return this;
+		}
+
+		/**
+		 * Keeps as many of the top levels of the tree in memory (outside the
+		 * node cache) as fit in an estimated maxBytes. Can be combined with
+		 * {@link #pinLevels(int)}.
+		 * 
+		 * @param maxBytes
+		 * @return
+		 */
+		public Builder<R> pinBytes(long maxBytes) {
+			this.pinBytes = of(maxBytes);
+			return this;
+		}
+
+		/**
+		 * Makes iterators read the next depth child nodes of each node they
+		 * enter from storage in the background using the given number of I/O
+		 * threads, so that nodes are already decoded when reached. Default
+		 * depth is 0 (no read-ahead).
+		 * 
+		 * @param depth
+		 * @param threads
+		 * @return
+		 */
+		public Builder<R> readAhead(int depth, int threads) {
+			Preconditions.checkArgument(depth >= 0, "depth cannot be negative");
+			Preconditions.checkArgument(threads > 0,
+					"threads must be positive");
+			this.readAheadDepth = depth;
+			this.readAheadThreads = threads;
+			return this;
+		}
+
 		public Builder<R> storage(Storage storage) {
 			this.storage = of(storage);
 			return this;
 		}
 
 		/**
-		 * Returns a new {@link BTree}.
+		 * Sets how nodes are read from storage. Ignored if storage is set
+		 * explicitly.
 		 * 
+		 * @param readMode
 		 * @return
 		 */
-		public BTree<R> build() {
-			return new BTree<R>(this);
+		public Builder<R> readMode(ReadMode readMode) {
+			this.readMode = readMode;
+			return this;
 		}
-	}
 
-	/**
-	 * Notifies the nodeCache that a node has been loaded (or saved for the
-	 * first time).
-	 * 
-	 * @param position
-	 * @param node
-	 */
-	void loaded(long position, NodeRef<T> node) {
-		if (nodeCache.isPresent())
-			nodeCache.get().put(position, node);
-	}
+		/**
+		 * Sets the {@link Serializer} used to write keys to storage. Defaults
+		 * to java serialization. The serializer is recorded with the metadata
+		 * and reopening with another one throws an
+		 * {@link IllegalArgumentException} (serializers other than those of
+		 * {@link Serializers} are known by their class name).
+		 * 
+		 * @param serializer
+		 * @return
+		 */
+		public Builder<R> serializer(Serializer<R> serializer) {
+			this.serializer = serializer;
+			return this;
+		}
 
-	/**
-	 * Metdata for the btree.
-	 * 
-	 */
-	private static class Metadata {
+		/**
+		 * Saves nodes to storage asynchronously. Inserts return as soon as
+		 * their new root has been queued and a background thread appends the
+		 * nodes of many inserts to storage at once. A batch is written when
+		 * maxLatencyMs has elapsed since its first insert was queued or when
+		 * its estimated size reaches maxBytes. Use {@link BTree#flush()} to
+		 * wait for queued inserts to reach storage.
+		 * 
+		 * @param maxLatencyMs
+		 * @param maxBytes
+		 * @return
+		 */
+		public Builder<R> writeBehind(long maxLatencyMs, long maxBytes) {
+			this.writeBehindMaxLatencyMs = of(maxLatencyMs);
+			this.writeBehindMaxBytes = maxBytes;
+			return this;
+		}
 
 		/**
-		 * The location of the root node in persistent storage.
+		 * Sets the maximum number of inserts waiting to be saved when using
+		 * write-behind. Inserts block while the queue is full. Default is
+		 * 10000.
+		 * 
+		 * @param queueSize
+		 * @return
 		 */
-		final Position rootPosition;
+		public Builder<R> writeBehindQueueSize(int queueSize) {
+			this.writeBehindQueueSize = queueSize;
+			return this;
+		}
+
 		/**
-		 * The degree of the b-tree.
+		 * Sets the size in bytes that a storage segment file must reach before
+		 * writes move to a new segment file. Ignored if storage is set
+		 * explicitly.
+		 * 
+		 * @param segmentSize
+		 * @return
 		 */
-		final int degree;
+		public Builder<R> segmentSize(long segmentSize) {
+			this.segmentSize = segmentSize;
+			return this;
+		}
+
 		/**
-		 * The maximum file number for storage.
+		 * Compacts storage in the background (see {@link BTree#compact()}).
+		 * Segment files whose proportion of bytes still reachable from the
+		 * root drops below minLiveRatio have their reachable nodes moved to
+		 * the current segment file nodesPerStep at a time, pausing pauseMs
+		 * between steps, and are then deleted.
+		 * 
+		 * @param minLiveRatio
+		 * @param nodesPerStep
+		 * @param pauseMs
+		 * @return
 		 */
-		final String storageDirectory;
+		public Builder<R> compaction(double minLiveRatio, int nodesPerStep,
+				long pauseMs) {
+			this.compaction = new Compaction(minLiveRatio, nodesPerStep,
+					pauseMs);
+			this.compactionEnabled = true;
+			return this;
+		}
 
-		final String storageName;
+		/**
+		 * Sets when changes are made durable (see {@link CommitPolicy}).
+		 * Default is {@link CommitPolicy#onFlush()}.
+		 * 
+		 * @param commitPolicy
+		 * @return
+		 */
+		public Builder<R> commitPolicy(CommitPolicy commitPolicy) {
+			this.commitPolicy = commitPolicy;
+			return this;
+		}
 
 		/**
-		 * Constructor.
+		 * Verifies the checksum of one in every n records loaded from storage
+		 * (0 never verifies). Default is 1 (every record). A record that fails
+		 * verification throws {@link CorruptRecordException}.
 		 * 
-		 * @param rootPosition
-		 * @param degree
+		 * @param n
+		 * @return
 		 */
-		public Metadata(Position rootPosition, int degree,
-				String storageDirectory, String storageName) {
-			super();
-			this.rootPosition = rootPosition;
-			this.degree = degree;
-			this.storageDirectory = storageDirectory;
-			this.storageName = storageName;
+		public Builder<R> verifyChecksums(int n) {
+			this.verifyChecksumsEvery = n;
+			return this;
+		}
+
+		/**
+		 * Sets how node records are compressed in storage. Default is
+		 * {@link Compression#NONE}.
+		 * 
+		 * @param compression
+		 * @return
+		 */
+		public Builder<R> compression(Compression compression) {
+			this.compression = compression;
+			return this;
+		}
+
+		/**
+		 * Drops the keys marked as deleted by earlier versions (which deleted
+		 * by marking keys) from each leaf that a delete, an
+		 * {@link BTree#addAll(Collection)} or a {@link BTree#rewrite()} copies,
+		 * so that tombstones disappear as nodes are rewritten.
+		 * 
+		 * @return
+		 */
+		public Builder<R> purgeTombstones() {
+			this.purgeTombstones = true;
+			return this;
+		}
+
+		/**
+		 * Stores the number of values under each child in the record of its
+		 * parent so that {@link BTree#rank(Comparable)},
+		 * {@link BTree#select(long)} and
+		 * {@link BTree#count(Comparable, Comparable, ComparisonOperator, ComparisonOperator)}
+		 * load about one node per level (two for a count). Opening an
+		 * existing b-tree whose records have no counts computes them when
+		 * first needed by loading the whole tree once; use
+		 * {@link BTree#rewrite()} to store them.
+		 * 
+		 * @return
+		 */
+		public Builder<R> subtreeCounts() {
+			if (!augmentation.isEnabled())
+				this.augmentation = Augmentation.counts();
+			return this;
+		}
+
+		/**
+		 * Stores the summary (for example the sum, minimum or maximum) of the
+		 * values under each child in the record of its parent as well as
+		 * their number (see {@link #subtreeCounts()}), so that
+		 * {@link BTree#summarize(Summarizer, Comparable, Comparable, ComparisonOperator, ComparisonOperator)}
+		 * loads about two nodes per level.
+		 * 
+		 * @param summarizer
+		 * @return
+		 */
+		public Builder<R> summarizer(Summarizer<R, ?> summarizer) {
+			this.augmentation = Augmentation.summaries(summarizer);
+			return this;
+		}
+
+		/**
+		 * Returns a new {@link BTree}.
+		 * 
+		 * @return
+		 */
+		public BTree<R> build() {
+			return new BTree<R>(this);
 		}
 	}
 
 	/**
-	 * Reads the metadata information from the file including the position of
-	 * the root node.
+	 * Called after a node has been saved for the first time. If there is a
+	 * cache the node is moved into it (unless pinned) so that the reference
+	 * no longer holds it.
+	 * 
+	 * @param node
 	 */
-	private Metadata readMetadata(Optional<Integer> defaultDegree) {
-		try {
-			ObjectInputStream ois = new ObjectInputStream(new FileInputStream(
-					metadataFile.get()));
-			String storageDirectory = (String) ois.readObject();
-			String storageName = (String) ois.readObject();
-			long rootFileNumber = ois.readLong();
-			long rootPosition = ois.readLong();
-			int degree = ois.readInt();
-			ois.close();
-			return new Metadata(new Position(rootFileNumber, rootPosition),
-					degree, storageDirectory, storageName);
-		} catch (FileNotFoundException e) {
-			throw new RuntimeException(e);
-		} catch (IOException e) {
-			throw new RuntimeException(e);
-		} catch (ClassNotFoundException e) {
-			throw new RuntimeException(e);
+	private void saved(NodeRef<T> node) {
+		if (nodeCache.isPresent() && !node.isPinned()) {
+			nodeCache.get().put(node.getPosition().get(), node.node());
+			node.release();
 		}
 	}
 
 	/**
-	 * Writes the metadata information to the file including the position of the
-	 * root node.
+	 * Settings for compaction of storage.
 	 */
-	private void writeMetadata() {
-		if (metadataFile.isPresent()) {
-			synchronized (metadataMonitor) {
-				try {
-					if (!metadataFile.get().exists())
-						metadataFile.get().createNewFile();
-					FileOutputStream fos = new FileOutputStream(
-							metadataFile.get());
-					byte[] bytes = composeMetadata();
-					fos.write(bytes);
-					fos.close();
-				} catch (FileNotFoundException e) {
-					throw new RuntimeException(e);
-				} catch (IOException e) {
-					throw new RuntimeException(e);
+	private static class Compaction {
+		final double minLiveRatio;
+		final int nodesPerStep;
+		final long pauseMs;
+
+		Compaction(double minLiveRatio, int nodesPerStep, long pauseMs) {
+			Preconditions.checkArgument(nodesPerStep > 0,
+					"nodesPerStep must be positive");
+			this.minLiveRatio = minLiveRatio;
+			this.nodesPerStep = nodesPerStep;
+			this.pauseMs = pauseMs;
+		}
+	}
+
+	/**
+	 * Interval between checks for segment files to compact by the
+	 * background compactor.
+	 */
+	private static final long COMPACTION_CHECK_INTERVAL_MS = 1000;
+
+	private Thread createCompactor() {
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (compactorRunning) {
+					synchronized (compactorMonitor) {
+						try {
+							compactorMonitor
+									.wait(COMPACTION_CHECK_INTERVAL_MS);
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					if (compactorRunning)
+						compact();
 				}
 			}
+		}, "btree-compactor-" + storage.get().getName());
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	/**
+	 * Makes the current root durable: waits for queued saves, forces the
+	 * segment files written since the last commit to disk then writes a
+	 * {@link Superblock} pointing to the root (and recording the live segment
+	 * files and the obsolete bytes of each). Does nothing if there is no
+	 * metadata file. Must be called holding {@link #writeMonitor}.
+	 */
+	private void commit() {
+		commit(Collections.<Long> emptySet());
+	}
+
+	/**
+	 * Commits leaving the given segment files (about to be deleted) out of the
+	 * live segment files.
+	 * 
+	 * @param deleting
+	 */
+	private void commit(Set<Long> deleting) {
+		uncommitted = 0;
+		if (!metadataFile.isPresent())
+			return;
+		awaitSaves();
+		if (!root.getPosition().isPresent())
+			return;
+		synchronized (metadataMonitor) {
+			storage.get().sync();
+			List<Long> segments = Lists.newArrayList();
+			for (long number : storage.get().getFileNumbers())
+				if (!deleting.contains(number))
+					segments.add(number);
+			long lastSegmentLength = segments.isEmpty() ? 0 : storage.get()
+					.getFile(segments.get(segments.size() - 1)).length();
+			new Superblock(commitSequence++, root.getPosition().get(), degree,
+					storage.get().getDirectory().getAbsolutePath(), storage
+							.get().getName(),
+					of(Serializers.id(codec.getSerializer())), of(segments),
+					lastSegmentLength, storage.get().getObsoleteBytes())
+					.write(metadataFile.get());
 		}
 	}
 
 	/**
-	 * Writes metadata for the b-tree to persistent storage.
+	 * Commits if the {@link CommitPolicy} requires it after an operation.
+	 * Must be called holding {@link #writeMonitor}.
+	 */
+	private void operationCompleted() {
+		uncommitted++;
+		if (commitPolicy.getOperations() > 0
+				&& uncommitted >= commitPolicy.getOperations())
+			commit();
+	}
+
+	/**
+	 * Waits for queued saves to reach storage (if using write-behind) then
+	 * commits (see {@link CommitPolicy}).
 	 * 
 	 * @return
 	 */
 	public BTree<T> flush() {
-		writeMetadata();
+		synchronized (writeMonitor) {
+			awaitSaves();
+			commit();
+		}
 		return this;
 	}
 
 	/**
-	 * Returns the bytes containing the metadata information for this BTree.
-	 * 
-	 * @return
-	 * @throws IOException
+	 * Stops background compaction and periodic commits, waits for detached
+	 * subtrees to be marked obsolete, flushes, stops the write-behind and
+	 * read-ahead threads if present and closes open storage files.
+	 */
+	public void close() {
+		if (committer.isPresent())
+			committer.get().cancel();
+		if (compactor.isPresent()) {
+			compactorRunning = false;
+			synchronized (compactorMonitor) {
+				compactorMonitor.notifyAll();
+			}
+			try {
+				compactor.get().join();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		try {
+			if (reclaimer.isPresent())
+				// so that the obsolete bytes are committed
+				reclaimer.get().close();
+		} finally {
+			synchronized (writeMonitor) {
+				flush();
+				if (writeBehind.isPresent())
+					writeBehind.get().close();
+				if (readAhead.isPresent())
+					readAhead.get().close();
+				if (storage.isPresent())
+					storage.get().close();
+			}
+		}
+	}
+
+	/**
+	 * Waits for all queued saves to reach storage if using write-behind.
 	 */
-	private byte[] composeMetadata() throws IOException {
-		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-		ObjectOutputStream oos = new ObjectOutputStream(bytes);
-		oos.writeObject(storage.get().getDirectory().getAbsolutePath());
-		oos.writeObject(storage.get().getName());
-		oos.writeLong(root.getPosition().get().getFileNumber());
-		oos.writeLong(root.getPosition().get().getPosition());
-		oos.writeInt(degree);
-		oos.close();
-		return bytes.toByteArray();
+	private void awaitSaves() {
+		if (writeBehind.isPresent())
+			writeBehind.get().flush();
 	}
 
 	/**
 	 * Creates a {@link Builder}.
 	 * 
 	 * @param cls
-	 *            - used for type inference only.
+	 *            - used for type inference and to choose the default
+	 *            {@link Serializer} (see {@link Serializers#forClass(Class)}).
 	 * @return
 	 */
-	public static <R extends Comparable<R> & Serializable> Builder<R> builder(
-			Class<R> cls) {
-		return new Builder<R>();
+	public static <R extends Comparable<R>> Builder<R> builder(Class<R> cls) {
+		return new Builder<R>().serializer(Serializers.forClass(cls));
 	}
 
 	/**
@@ -382,30 +860,137 @@ public class BTree<T extends Serializable & Comparable<T>> implements
 	}
 
 	/**
-	 * Adds a value to the root node and replaces the root node and updates
-	 * metadata file if present.
+	 * Adds the values to the b-tree in one operation. The values are sorted
+	 * and inserted together so that each node on the paths to them is copied
+	 * and saved once for the whole batch rather than once per value (see
+	 * {@link BatchInsert}). Will replace root.
+	 * 
+	 * @param values
+	 * @return
+	 */
+	public BTree<T> addAll(Collection<T> values) {
+		if (values.isEmpty())
+			return this;
+		List<T> sorted = Lists.newArrayList(values);
+		Collections.sort(sorted);
+		synchronized (writeMonitor) {
+			BatchInsert<T> batch = new BatchInsert<T>(loader, degree,
+					purgeTombstones);
+			NodeRef<T> node = batch.insert(root, sorted);
+			for (NodeRef<T> replaced : batch.getReplaced())
+				markObsolete(replaced);
+			saveQueue.addAll(batch.getSaveQueue());
+			if (pinning.isPresent()) {
+				if (batch.rootSplit())
+					pinning.get().repin(node);
+				else
+					pinning.get().pin(node);
+			}
+			if (writeBehind.isPresent()) {
+				writeBehind.get().submit(node, saveQueue.size());
+				saveQueue.clear();
+			} else
+				flushSaves(saveQueue);
+			root = node;
+			operationCompleted();
+		}
+		return this;
+	}
+
+	/**
+	 * Builds the b-tree bottom up from values in ascending order, filling
+	 * each node to fillFactor of its maximum number of keys (degree - 1) but
+	 * not below the minimum number of keys for the degree. Much faster than adding the values one by one because every node is
+	 * written exactly once and sequentially. The b-tree must be empty and
+	 * have degree of at least 3.
+	 * 
+	 * @param sorted
+	 * @param fillFactor
+	 *            - between 0 (exclusive) and 1 (inclusive)
+	 * @return
+	 */
+	public BTree<T> bulkLoad(Iterator<T> sorted, double fillFactor) {
+		synchronized (writeMonitor) {
+			Preconditions.checkState(!root.getFirst().isPresent(),
+					"bulk load requires an empty tree");
+			awaitSaves();
+			Optional<NodeRef<T>> node = new BulkLoader<T>(loader, degree,
+					fillFactor, storage, codec).load(sorted);
+			if (node.isPresent()) {
+				markObsolete(root);
+				root = node.get();
+				if (pinning.isPresent())
+					pinning.get().repin(root);
+			}
+			operationCompleted();
+		}
+		return this;
+	}
+
+	/**
+	 * Sorts values that may not fit in memory (see {@link ExternalSort}) and
+	 * bulk loads them (see {@link #bulkLoad(Iterator, double)}). The b-tree
+	 * must be empty and have degree of at least 3.
+	 * 
+	 * @param values
+	 * @param fillFactor
+	 *            - between 0 (exclusive) and 1 (inclusive)
+	 * @param sort
+	 * @return
+	 */
+	public BTree<T> bulkLoadUnsorted(Iterator<T> values, double fillFactor,
+			ExternalSort sort) {
+		synchronized (writeMonitor) {
+			Preconditions.checkState(!root.getFirst().isPresent(),
+					"bulk load requires an empty tree");
+			ExternalSorter<T> sorter = new ExternalSorter<T>(
+					codec.getSerializer(), sort);
+			try {
+				return bulkLoad(sorter.sort(values), fillFactor);
+			} finally {
+				sorter.close();
+			}
+		}
+	}
+
+	/**
+	 * Adds a value to the root node and replaces the root node then commits if
+	 * the {@link CommitPolicy} requires it.
 	 * 
 	 * @param t
 	 */
 	private void addOne(T t) {
-		KeyNodes<T> keyNodes = root.add(KeyNodes.create(new Key<T>(t)));
-		for (NodeRef<T> node : keyNodes.getSaveQueue()) {
-			saveQueue.add(node);
-		}
-		NodeRef<T> node;
-		if (keyNodes.getKey().isPresent()) {
-			node = new NodeRef<T>(loader, Optional.<Position> absent(), degree,
-					true);
-			node.setFirst(of(keyNodes.getKey().get()));
-			saveQueue.add(node);
-		} else
-			node = keyNodes.getSaveQueue().getLast();
+		synchronized (writeMonitor) {
+			if (storage.isPresent())
+				markPathObsolete(t);
+			KeyNodes<T> keyNodes = root.add(KeyNodes.create(new Key<T>(t)));
+			for (NodeRef<T> node : keyNodes.getSaveQueue()) {
+				saveQueue.add(node);
+			}
+			NodeRef<T> node;
+			if (keyNodes.getKey().isPresent()) {
+				node = new NodeRef<T>(loader, Optional.<Position> absent(),
+						degree, true);
+				node.setFirst(of(keyNodes.getKey().get()));
+				saveQueue.add(node);
+			} else
+				node = keyNodes.getSaveQueue().getLast();
+			if (pinning.isPresent()) {
+				if (keyNodes.getKey().isPresent())
+					// the root split so every node moved down a level
+					pinning.get().repin(node);
+				else
+					pinning.get().pin(node);
+			}
 
-		flushSaves(saveQueue);
-		root = node;
-		// TODO decide on flush strategy for metadataFile
-		// if (metadataFile.isPresent())
-		// writeMetadata();
+			if (writeBehind.isPresent()) {
+				writeBehind.get().submit(node, saveQueue.size());
+				saveQueue.clear();
+			} else
+				flushSaves(saveQueue);
+			root = node;
+			operationCompleted();
+		}
 	}
 
 	/**
@@ -415,13 +1000,227 @@ public class BTree<T extends Serializable & Comparable<T>> implements
 	 */
 	private void flushSaves(LinkedList<NodeRef<T>> saveQueue) {
 		if (storage.isPresent()) {
-			storage.get().save(saveQueue);
+			storage.get().save(saveQueue, codec);
 			for (NodeRef<T> node : saveQueue)
-				loaded(node.getPosition().get().getPosition(), node);
+				saved(node);
 		}
 		saveQueue.clear();
 	}
 
+	/**
+	 * Rewrites every node reachable from the root in the current record format
+	 * and updates the metadata file to point to the new root. Use this to
+	 * migrate storage written by earlier versions (which remains readable
+	 * without migration).
+	 * 
+	 * @return
+	 */
+	public BTree<T> rewrite() {
+		synchronized (writeMonitor) {
+			awaitSaves();
+			relocate(Relocation.all());
+			commit();
+		}
+		return this;
+	}
+
+	/**
+	 * Moves the nodes reachable from the root out of the segment files whose
+	 * live ratio is below the configured minimum (see
+	 * {@link Builder#compaction(double, int, long)}) then deletes those files.
+	 * Nodes are moved a few at a time with a pause in between so that adds
+	 * are not held up for long.
+	 * 
+	 * <p>
+	 * An iterator that was created before the compaction may fail if it has
+	 * to load a node from a deleted file.
+	 * </p>
+	 * 
+	 * @return
+	 */
+	public BTree<T> compact() {
+		if (!storage.isPresent())
+			return this;
+		Set<Long> victims = Sets.newHashSet(storage.get()
+				.getCompactionCandidates(compaction.minLiveRatio));
+		if (victims.isEmpty())
+			return this;
+		while (true) {
+			synchronized (writeMonitor) {
+				awaitSaves();
+				if (!compactorRunning)
+					return this;
+				Relocation relocation = Relocation.segments(victims,
+						compaction.nodesPerStep);
+				if (!relocate(relocation)) {
+					// nothing reachable is left in the victims
+					commit(victims);
+					storage.get().delete(victims);
+					return this;
+				}
+			}
+			try {
+				Thread.sleep(compaction.pauseMs);
+			} catch (InterruptedException e) {
+				return this;
+			}
+		}
+	}
+
+	/**
+	 * Checks every record in storage (whether reachable from the root or not)
+	 * using the given number of threads and returns the positions of the
+	 * corrupt records. Runs concurrently with adds.
+	 * 
+	 * @param threads
+	 * @return
+	 */
+	public List<Position> scrub(int threads) {
+		if (!storage.isPresent())
+			return Collections.emptyList();
+		return new Scrubber<T>(storage.get(), codec, loader, degree)
+				.scrub(threads);
+	}
+
+	/**
+	 * Copies the nodes chosen by the relocation (and their ancestors) to new
+	 * positions and replaces the root. Returns false if no node was copied.
+	 * Must be called holding {@link #writeMonitor}.
+	 * 
+	 * @param relocation
+	 * @return
+	 */
+	private boolean relocate(Relocation relocation) {
+		LinkedList<NodeRef<T>> batch = new LinkedList<NodeRef<T>>();
+		Optional<NodeRef<T>> node = relocate(root, relocation, batch);
+		if (node.isPresent()) {
+			batch.add(node.get());
+			if (pinning.isPresent())
+				pinning.get().pin(node.get());
+			flushSaves(batch);
+			root = node.get();
+			return true;
+		} else
+			return false;
+	}
+
+	/**
+	 * Returns a copy of node if node is chosen by the relocation or if a
+	 * descendant of node was copied. Copies are added to the batch in
+	 * post-order (children before parents) and the batch is flushed to
+	 * storage whenever it reaches {@link #REWRITE_BATCH_SIZE} so that children
+	 * always have a position before their parent is saved. The returned copy
+	 * is not added to the batch.
+	 * 
+	 * @param node
+	 * @param relocation
+	 * @param batch
+	 * @return
+	 */
+	private Optional<NodeRef<T>> relocate(NodeRef<T> node,
+			Relocation relocation, LinkedList<NodeRef<T>> batch) {
+		Optional<Position> position = node.getPosition();
+		if (position.isPresent() && !relocation.mayContain(position.get()))
+			return absent();
+		// adjacent keys share a child so only relocate it once
+		Map<Position, Optional<NodeRef<T>>> copies = new HashMap<Position, Optional<NodeRef<T>>>();
+		boolean changed = false;
+		Optional<Key<T>> first = absent();
+		Optional<Key<T>> previous = absent();
+		boolean purge = purgeTombstones && hasLiveLeafKey(node);
+		for (Key<T> key : node.keys()) {
+			if (purge && key.isDeleted())
+				continue;
+			Key<T> k = new Key<T>(key.value());
+			k.setDeleted(key.isDeleted());
+			for (Side side : new Side[] { Side.LEFT, Side.RIGHT }) {
+				Optional<NodeRef<T>> child = key.getSide(side);
+				Optional<NodeRef<T>> copy = relocateChild(child, relocation,
+						copies, batch);
+				if (copy.isPresent()) {
+					changed = true;
+					k.setSide(side, copy);
+				} else
+					k.setSide(side, child);
+			}
+			if (!first.isPresent())
+				first = of(k);
+			if (previous.isPresent())
+				previous.get().setNext(of(k));
+			previous = of(k);
+		}
+		if (!changed
+				&& !(position.isPresent() && relocation.take(position.get())))
+			return absent();
+		markObsolete(node);
+		NodeRef<T> copy = new NodeRef<T>(loader, Optional.<Position> absent(),
+				degree, node.isRoot());
+		copy.setFirst(first);
+		return of(copy);
+	}
+
+	/**
+	 * Returns true if node is a leaf with a key that is not marked as
+	 * deleted (so that purging its tombstones leaves it with keys).
+	 * 
+	 * @param node
+	 * @return
+	 */
+	private static <T extends Comparable<T>> boolean hasLiveLeafKey(
+			NodeRef<T> node) {
+		for (Key<T> key : node.keys())
+			if (key.hasChild())
+				return false;
+			else if (!key.isDeleted())
+				return true;
+		return false;
+	}
+
+	private Optional<NodeRef<T>> relocateChild(Optional<NodeRef<T>> child,
+			Relocation relocation, Map<Position, Optional<NodeRef<T>>> copies,
+			LinkedList<NodeRef<T>> batch) {
+		if (!child.isPresent())
+			return absent();
+		Optional<Position> position = child.get().getPosition();
+		if (position.isPresent() && copies.containsKey(position.get()))
+			return copies.get(position.get());
+		Optional<NodeRef<T>> copy = relocate(child.get(), relocation, batch);
+		if (copy.isPresent()) {
+			batch.add(copy.get());
+			if (batch.size() >= REWRITE_BATCH_SIZE)
+				flushSaves(batch);
+		}
+		if (position.isPresent())
+			copies.put(position.get(), copy);
+		return copy;
+	}
+
+	/**
+	 * Tells storage that the nodes on the path that an add of t will copy are
+	 * obsolete.
+	 * 
+	 * @param t
+	 */
+	private void markPathObsolete(T t) {
+		Optional<NodeRef<T>> node = of(root);
+		while (node.isPresent()) {
+			markObsolete(node.get());
+			node = node.get().child(t);
+		}
+	}
+
+	/**
+	 * Tells storage that the node has been replaced by a copy (if the node
+	 * has been saved).
+	 * 
+	 * @param node
+	 */
+	private void markObsolete(NodeRef<T> node) {
+		if (storage.isPresent() && node.getPosition().isPresent())
+			storage.get().markObsolete(node.getPosition().get(),
+					node.getRecordLength());
+	}
+
 	/**
 	 * Returns the first T found that equals t from this b-tree.
 	 * 
@@ -437,46 +1236,214 @@ public class BTree<T extends Serializable & Comparable<T>> implements
 	}
 
 	/**
-	 * Returns the result of a range query.
+	 * Returns the values of the b-tree from largest to smallest. Each
+	 * iterator is lazy and sees the b-tree as it was when the iterator was
+	 * created.
+	 * 
+	 * @return
+	 */
+	public Iterable<T> descending() {
+		return new Iterable<T>() {
+			@Override
+			public Iterator<T> iterator() {
+				return new DescendingIterator<T>(root);
+			}
+		};
+	}
+
+	/**
+	 * Returns the same values as {@link #find(Comparable, Comparable,
+	 * ComparisonOperator, ComparisonOperator)} from largest to smallest. Each
+	 * iterator descends straight to t2 so the k largest values in the range
+	 * cost about one node load per level plus one per leaf visited.
 	 * 
 	 * @param t1
 	 * @param t2
 	 * @param op1
+	 *            - {@link ComparisonOperator#GREATER_THAN} or
+	 *            {@link ComparisonOperator#GREATER_THAN_OR_EQUAL}
 	 * @param op2
+	 *            - {@link ComparisonOperator#LESS_THAN} or
+	 *            {@link ComparisonOperator#LESS_THAN_OR_EQUAL}
 	 * @return
 	 */
-	public Iterable<T> find(T t1, T t2, ComparisonOperator op1,
-			ComparisonOperator op2) {
-		throw new RuntimeException("not implemented");
+	public Iterable<T> findDescending(final T t1, final T t2,
+			final ComparisonOperator op1, final ComparisonOperator op2) {
+		RangeIterator.checkOperators(op1, op2);
+		return new Iterable<T>() {
+			@Override
+			public Iterator<T> iterator() {
+				return new DescendingIterator<T>(root, t1, op1, t2, op2);
+			}
+		};
 	}
 
 	/**
-	 * Deletes (or marks as deleted) those keys in the BTree that match one of
-	 * the keys in the parameter.
+	 * Returns a new {@link Cursor} before the first value of the b-tree as it
+	 * is now.
+	 * 
+	 * @return
+	 */
+	public Cursor<T> cursor() {
+		return new Cursor<T>(root);
+	}
+
+	/**
+	 * Returns the values greater than (or equal to) t1 and less than (or
+	 * equal to) t2 in ascending order. Each iterator is lazy: it descends
+	 * straight to t1 and only loads the nodes it walks through, so a short
+	 * range costs about one node load per level. An iterator sees the b-tree
+	 * as it was when the iterator was created.
+	 * 
+	 * @param t1
+	 * @param t2
+	 * @param op1
+	 *            - {@link ComparisonOperator#GREATER_THAN} or
+	 *            {@link ComparisonOperator#GREATER_THAN_OR_EQUAL}
+	 * @param op2
+	 *            - {@link ComparisonOperator#LESS_THAN} or
+	 *            {@link ComparisonOperator#LESS_THAN_OR_EQUAL}
+	 * @return
+	 */
+	public Iterable<T> find(final T t1, final T t2,
+			final ComparisonOperator op1, final ComparisonOperator op2) {
+		RangeIterator.checkOperators(op1, op2);
+		return new Iterable<T>() {
+			@Override
+			public Iterator<T> iterator() {
+				return new RangeIterator<T>(root, t1, op1, t2, op2);
+			}
+		};
+	}
+
+	/**
+	 * Deletes the values in the BTree that equal one of the keys in the
+	 * parameter in one operation (see {@link #deleteAll(Collection)}) and
+	 * returns the number of values deleted. Will replace root.
 	 * 
 	 * @param keys
 	 * @return
 	 */
 	public long delete(T... keys) {
-		long count = 0;
-		for (T key : keys)
-			count += deleteOne(key);
-		return count;
+		return deleteAll(Arrays.asList(keys));
 	}
 
 	/**
-	 * Deletes (or marks as deleted) all keys in the BTree that equal
-	 * <code>key</code>.
+	 * Removes all values that equal one of the keys from the b-tree in one
+	 * operation, then replaces the root and commits if the
+	 * {@link CommitPolicy} requires it. The nodes on the paths to the values
+	 * are copied and rebalanced (see {@link Deletion}) and each copy is
+	 * saved once for the whole batch, so keys that share a leaf share its
+	 * copy and the copies of its ancestors. Iterators created before the
+	 * delete do not see it. Returns the number of values deleted.
 	 * 
-	 * @param key
+	 * @param keys
 	 * @return
 	 */
-	private long deleteOne(T key) {
+	public long deleteAll(Collection<T> keys) {
+		if (keys.isEmpty())
+			return 0;
+		List<T> sorted = Lists.newArrayList(keys);
+		Collections.sort(sorted);
 		synchronized (writeMonitor) {
-			return root.delete(key);
+			Deletion<T> deletion = new Deletion<T>(loader, degree,
+					purgeTombstones);
+			long count = 0;
+			NodeRef<T> node = root;
+			for (T key : sorted)
+				while (true) {
+					Optional<NodeRef<T>> next = deletion.delete(node, key);
+					if (!next.isPresent())
+						break;
+					node = next.get();
+					count++;
+				}
+			if (count == 0)
+				return 0;
+			completeDeletion(deletion, node);
+			return count;
 		}
 	}
 
+	/**
+	 * Removes the values greater than or equal to t1 and less than t2 (see
+	 * {@link #deleteRange(Comparable, Comparable, ComparisonOperator, ComparisonOperator)}).
+	 * 
+	 * @param t1
+	 * @param t2
+	 * @return
+	 */
+	public BTree<T> deleteRange(T t1, T t2) {
+		return deleteRange(t1, t2, ComparisonOperator.GREATER_THAN_OR_EQUAL,
+				ComparisonOperator.LESS_THAN);
+	}
+
+	/**
+	 * Removes the values greater than (or equal to) t1 and less than (or
+	 * equal to) t2 from the b-tree in one operation, then replaces the root
+	 * and commits if the {@link CommitPolicy} requires it. Only the nodes on
+	 * the paths to t1 and t2 are copied (see {@link Deletion}): a subtree
+	 * whose values all lie in the range is detached without being loaded and
+	 * its records are marked obsolete by a background thread so that
+	 * compaction reclaims them. Iterators created before the delete do not
+	 * see it.
+	 * 
+	 * @param t1
+	 * @param t2
+	 * @param op1
+	 *            - {@link ComparisonOperator#GREATER_THAN} or
+	 *            {@link ComparisonOperator#GREATER_THAN_OR_EQUAL}
+	 * @param op2
+	 *            - {@link ComparisonOperator#LESS_THAN} or
+	 *            {@link ComparisonOperator#LESS_THAN_OR_EQUAL}
+	 * @return
+	 */
+	public BTree<T> deleteRange(T t1, T t2, ComparisonOperator op1,
+			ComparisonOperator op2) {
+		RangeIterator.checkOperators(op1, op2);
+		synchronized (writeMonitor) {
+			Deletion<T> deletion = new Deletion<T>(loader, degree,
+					purgeTombstones);
+			Optional<NodeRef<T>> node = deletion.deleteRange(root, t1, op1,
+					t2, op2);
+			if (node.isPresent()) {
+				completeDeletion(deletion, node.get());
+				if (reclaimer.isPresent())
+					reclaimer.get().reclaim(deletion.getDetached());
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Saves the nodes created by deletion, makes node the root and commits
+	 * if the {@link CommitPolicy} requires it. Must be called holding
+	 * {@link #writeMonitor}.
+	 * 
+	 * @param deletion
+	 * @param node
+	 *            - the new root
+	 */
+	private void completeDeletion(Deletion<T> deletion, NodeRef<T> node) {
+		for (NodeRef<T> replaced : deletion.getReplaced())
+			markObsolete(replaced);
+		saveQueue.addAll(deletion.getSaveQueue());
+		if (pinning.isPresent()) {
+			if (deletion.rootCollapsed())
+				// every node moved up a level
+				pinning.get().repin(node);
+			else
+				pinning.get().pin(node);
+		}
+		if (writeBehind.isPresent()) {
+			writeBehind.get().submit(node, saveQueue.size());
+			saveQueue.clear();
+		} else
+			flushSaves(saveQueue);
+		root = node;
+		operationCompleted();
+	}
+
 	/**
 	 * Returns the keys as a {@link List}.
 	 * 
@@ -489,7 +1456,186 @@ public class BTree<T extends Serializable & Comparable<T>> implements
 
 	@Override
 	public Iterator<T> iterator() {
-		return root.iterator();
+		return new NodeIterator<T>(root, readAhead);
+	}
+
+	/**
+	 * Returns a {@link Spliterator} over the values of the b-tree as it is now
+	 * in ascending order. It splits at the keys of internal nodes so each
+	 * part is a run of whole subtrees.
+	 * 
+	 * @return
+	 */
+	@Override
+	public Spliterator<T> spliterator() {
+		return new NodeSpliterator<T>(root, degree);
+	}
+
+	/**
+	 * Returns a sequential {@link Stream} of the values in ascending order.
+	 * 
+	 * @return
+	 */
+	public Stream<T> stream() {
+		return StreamSupport.stream(spliterator(), false);
+	}
+
+	/**
+	 * Returns a parallel {@link Stream} of the values. Each worker walks its
+	 * own subtrees so the nodes it loads are not shared with other workers.
+	 * 
+	 * @return
+	 */
+	public Stream<T> parallelStream() {
+		return StreamSupport.stream(spliterator(), true);
+	}
+
+	/**
+	 * Reduces the values of the b-tree as it is now on the common fork-join
+	 * pool. See
+	 * {@link #reduce(Object, BiFunction, BinaryOperator, ForkJoinPool)}.
+	 * 
+	 * @param identity
+	 * @param accumulator
+	 * @param combiner
+	 * @return
+	 */
+	public <R> R reduce(R identity, BiFunction<R, ? super T, R> accumulator,
+			BinaryOperator<R> combiner) {
+		return reduce(identity, accumulator, combiner,
+				ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Reduces the values of the b-tree as it is now on the given fork-join
+	 * pool. Each child of an internal node is reduced by a separate task and
+	 * nodes are loaded by the workers, so a pool with more threads than cores
+	 * keeps more reads outstanding against storage. Values are accumulated and
+	 * results combined in ascending order. Deleted values are skipped.
+	 * 
+	 * @param identity
+	 *            - the result for no values, also the start of each subtree
+	 * @param accumulator
+	 *            - adds a value to a result
+	 * @param combiner
+	 *            - combines the results of consecutive runs of values
+	 * @param pool
+	 * @return
+	 */
+	public <R> R reduce(R identity, BiFunction<R, ? super T, R> accumulator,
+			BinaryOperator<R> combiner, ForkJoinPool pool) {
+		return pool.invoke(new SubtreeReduction<T, R>(root, identity,
+				accumulator, combiner));
+	}
+
+	/**
+	 * Returns the number of values (not counting deleted values) in the
+	 * b-tree as it is now. Read from the root if subtree counts are kept (see
+	 * {@link Builder#subtreeCounts()}), otherwise the subtrees are counted in
+	 * parallel on the common fork-join pool.
+	 * 
+	 * @return
+	 */
+	public long count() {
+		if (augmentation.isEnabled())
+			return root.summary(augmentation).count;
+		return reduce(0L, new BiFunction<Long, T, Long>() {
+			@Override
+			public Long apply(Long count, T value) {
+				return count + 1;
+			}
+		}, new BinaryOperator<Long>() {
+			@Override
+			public Long apply(Long a, Long b) {
+				return a + b;
+			}
+		});
+	}
+
+	/**
+	 * Returns the number of values less than t. Requires subtree counts (see
+	 * {@link Builder#subtreeCounts()}).
+	 * 
+	 * @param t
+	 * @return
+	 */
+	public long rank(T t) {
+		checkAugmented();
+		return new RangeSummary<T>(augmentation, Optional.<T> absent(),
+				false, of(t), false).summarize(root).count;
+	}
+
+	/**
+	 * Returns the value at the given index (from 0) in ascending order or
+	 * absent if index is negative or not less than {@link #count()}. Requires
+	 * subtree counts (see {@link Builder#subtreeCounts()}).
+	 * 
+	 * @param index
+	 * @return
+	 */
+	public Optional<T> select(long index) {
+		checkAugmented();
+		return augmentation.select(root, index);
+	}
+
+	/**
+	 * Returns the number of values that
+	 * {@link #find(Comparable, Comparable, ComparisonOperator, ComparisonOperator)}
+	 * would return without visiting them. Requires subtree counts (see
+	 * {@link Builder#subtreeCounts()}).
+	 * 
+	 * @param t1
+	 * @param t2
+	 * @param op1
+	 *            - {@link ComparisonOperator#GREATER_THAN} or
+	 *            {@link ComparisonOperator#GREATER_THAN_OR_EQUAL}
+	 * @param op2
+	 *            - {@link ComparisonOperator#LESS_THAN} or
+	 *            {@link ComparisonOperator#LESS_THAN_OR_EQUAL}
+	 * @return
+	 */
+	public long count(T t1, T t2, ComparisonOperator op1,
+			ComparisonOperator op2) {
+		checkAugmented();
+		return rangeSummary(t1, t2, op1, op2).count;
+	}
+
+	/**
+	 * Returns the summary of the values that
+	 * {@link #find(Comparable, Comparable, ComparisonOperator, ComparisonOperator)}
+	 * would return without visiting them. The summarizer must be the one
+	 * given to {@link Builder#summarizer(Summarizer)}.
+	 * 
+	 * @param summarizer
+	 * @param t1
+	 * @param t2
+	 * @param op1
+	 *            - {@link ComparisonOperator#GREATER_THAN} or
+	 *            {@link ComparisonOperator#GREATER_THAN_OR_EQUAL}
+	 * @param op2
+	 *            - {@link ComparisonOperator#LESS_THAN} or
+	 *            {@link ComparisonOperator#LESS_THAN_OR_EQUAL}
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public <S> S summarize(Summarizer<T, S> summarizer, T t1, T t2,
+			ComparisonOperator op1, ComparisonOperator op2) {
+		Preconditions.checkArgument(augmentation.uses(summarizer),
+				"summarizer was not given to the builder");
+		return (S) rangeSummary(t1, t2, op1, op2).value.get();
+	}
+
+	private Summary rangeSummary(T t1, T t2, ComparisonOperator op1,
+			ComparisonOperator op2) {
+		RangeIterator.checkOperators(op1, op2);
+		return new RangeSummary<T>(augmentation, of(t1),
+				op1 == ComparisonOperator.GREATER_THAN_OR_EQUAL, of(t2),
+				op2 == ComparisonOperator.LESS_THAN_OR_EQUAL).summarize(root);
+	}
+
+	private void checkAugmented() {
+		Preconditions.checkState(augmentation.isEnabled(),
+				"subtree counts are not enabled");
 	}
 
 	/**
@@ -502,15 +1648,57 @@ public class BTree<T extends Serializable & Comparable<T>> implements
 	}
 
 	/**
-	 * Loads a node from disk.
+	 * Loads a node from the cache, from a read-ahead or from disk.
 	 * 
 	 * @param node
 	 */
-	private void load(NodeRef<T> node) {
-		if (storage.isPresent()) {
-			storage.get().load(node);
-			loaded(node.getPosition().get().getPosition(), node);
+	private Node<T> load(NodeRef<T> ref) {
+		Position position = ref.getPosition().get();
+		if (nodeCache.isPresent()) {
+			Optional<Node<T>> cached = nodeCache.get().get(position);
+			if (cached.isPresent())
+				return cached.get();
+		}
+		Optional<Node<T>> readAheadNode = readAhead.isPresent() ? readAhead
+				.get().take(position) : Optional.<Node<T>> absent();
+		Node<T> node;
+		if (readAheadNode.isPresent())
+			node = readAheadNode.get();
+		else {
+			node = new Node<T>(loader, ref, ref.isRootRef());
+			if (storage.isPresent())
+				ref.setRecordLength(storage.get().load(position, node, codec));
 		}
+		if (nodeCache.isPresent())
+			nodeCache.get().put(position, node);
+		else
+			ref.retain(node);
+		return node;
+	}
+
+	/**
+	 * Returns the hit, miss and eviction counts of the node cache if present.
+	 * 
+	 * @return
+	 */
+	public Optional<CacheStats> cacheStats() {
+		if (nodeCache.isPresent())
+			return of(nodeCache.get().stats());
+		else
+			return absent();
+	}
+
+	/**
+	 * Returns the counts of nodes read ahead of iteration if read-ahead is
+	 * enabled (see {@link Builder#readAhead(int, int)}).
+	 * 
+	 * @return
+	 */
+	public Optional<ReadAheadStats> readAheadStats() {
+		if (readAhead.isPresent())
+			return of(readAhead.get().stats());
+		else
+			return absent();
 	}
 
 	/**
@@ -522,17 +1710,19 @@ public class BTree<T extends Serializable & Comparable<T>> implements
 			System.out.println(storage.get().getFile());
 			long length = storage.get().getFile().length();
 			System.out.println("length=" + length);
-			FileInputStream fis = new FileInputStream(storage.get().getFile());
+			BufferedInputStream bis = new BufferedInputStream(
+					new FileInputStream(storage.get().getFile()));
 			int pos = 0;
 			while (pos < length) {
 				NodeRef<T> ref = new NodeRef<T>(loader,
 						Optional.<Position> absent(), degree, false);
 				Node<T> node = new Node<T>(loader, ref, false);
-				long size = node.load(fis);
+				long size = codec.decode(bis, node);
 				displayNode(pos, node);
 				pos += size;
 				System.out.println("pos=" + pos);
 			}
+			bis.close();
 			System.out.println("------------");
 		} catch (IOException e) {
 			throw new RuntimeException(e);
@@ -0,0 +1,249 @@
+package com.github.davidmoten.structures.btree;
+
+import static com.google.common.base.Optional.of;
+
+import java.util.List;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+
+/**
+ * Inserts a sorted batch of values into a b-tree with copy on write. Each
+ * node on the path to the values is copied once for the whole batch: the
+ * values are partitioned between the children of a node, the children are
+ * updated first, then the node is rebuilt with the children's new nodes and
+ * split into as many nodes as needed. A split passes a list of nodes and the
+ * separator keys between them up to the parent instead of one node.
+ * 
+ * @author dxm
+ * 
+ * @param <T>
+ */
+class BatchInsert<T extends Comparable<T>> {
+
+	private final NodeLoader<T> loader;
+	private final int degree;
+	private final boolean purgeTombstones;
+
+	/**
+	 * The new nodes, children before parents.
+	 */
+	private final List<NodeRef<T>> saveQueue = Lists.newArrayList();
+
+	/**
+	 * The nodes replaced by new nodes.
+	 */
+	private final List<NodeRef<T>> replaced = Lists.newArrayList();
+
+	private boolean rootSplit;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param loader
+	 * @param degree
+	 * @param purgeTombstones
+	 *            - if true keys marked as deleted are dropped from the leaves
+	 *            that are copied
+	 */
+	BatchInsert(NodeLoader<T> loader, int degree, boolean purgeTombstones) {
+		this.loader = loader;
+		this.degree = degree;
+		this.purgeTombstones = purgeTombstones;
+	}
+
+	/**
+	 * The nodes on one level that replace a node: the separator key at index
+	 * i lies between the nodes at indexes i and i + 1.
+	 */
+	private static class Level<T extends Comparable<T>> {
+		final List<NodeRef<T>> nodes = Lists.newArrayList();
+		final List<Key<T>> separators = Lists.newArrayList();
+	}
+
+	/**
+	 * Inserts the values (which must be sorted) under the root and returns
+	 * the new root.
+	 * 
+	 * @param root
+	 * @param sorted
+	 * @return
+	 */
+	NodeRef<T> insert(NodeRef<T> root, List<T> sorted) {
+		Level<T> level = insert(root, sorted, 0, sorted.size(), true);
+		while (level.nodes.size() > 1) {
+			rootSplit = true;
+			level = split(level.separators, of(level.nodes), true);
+		}
+		return level.nodes.get(0);
+	}
+
+	/**
+	 * Returns the new nodes, children before parents.
+	 * 
+	 * @return
+	 */
+	List<NodeRef<T>> getSaveQueue() {
+		return saveQueue;
+	}
+
+	/**
+	 * Returns the nodes that were replaced (their records are obsolete).
+	 * 
+	 * @return
+	 */
+	List<NodeRef<T>> getReplaced() {
+		return replaced;
+	}
+
+	/**
+	 * Returns true if the root split so that the tree grew a level.
+	 * 
+	 * @return
+	 */
+	boolean rootSplit() {
+		return rootSplit;
+	}
+
+	private Level<T> insert(NodeRef<T> node, List<T> values, int from,
+			int to, boolean isRoot) {
+		replaced.add(node);
+		List<Key<T>> keys = Lists.newArrayList();
+		List<NodeRef<T>> children = Lists.newArrayList();
+		for (Key<T> key : node.keys()) {
+			if (purgeTombstones && key.isDeleted() && !key.hasChild())
+				continue;
+			Key<T> k = new Key<T>(key.value());
+			k.setDeleted(key.isDeleted());
+			keys.add(k);
+			if (key.getLeft().isPresent()) {
+				children.add(key.getLeft().get());
+				if (!key.next().isPresent())
+					children.add(key.getRight().get());
+			}
+		}
+		if (children.isEmpty())
+			return split(merge(keys, values, from, to),
+					Optional.<List<NodeRef<T>>> absent(), isRoot);
+		List<Key<T>> newKeys = Lists.newArrayList();
+		List<NodeRef<T>> newChildren = Lists.newArrayList();
+		int start = from;
+		for (int i = 0; i < children.size(); i++) {
+			// values equal to a key go to its right as for a single add
+			int end = start;
+			while (end < to
+					&& (i == keys.size() || values.get(end).compareTo(
+							keys.get(i).value()) < 0))
+				end++;
+			if (end > start) {
+				Level<T> level = insert(children.get(i), values, start, end,
+						false);
+				newChildren.add(level.nodes.get(0));
+				for (int j = 0; j < level.separators.size(); j++) {
+					newKeys.add(level.separators.get(j));
+					newChildren.add(level.nodes.get(j + 1));
+				}
+			} else
+				newChildren.add(children.get(i));
+			start = end;
+			if (i < keys.size())
+				newKeys.add(keys.get(i));
+		}
+		return split(newKeys, of(newChildren), isRoot);
+	}
+
+	/**
+	 * Returns the keys merged with the values from index from to index to
+	 * (exclusive). A value is placed after keys equal to it.
+	 * 
+	 * @param keys
+	 * @param values
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	private List<Key<T>> merge(List<Key<T>> keys, List<T> values, int from,
+			int to) {
+		List<Key<T>> merged = Lists.newArrayList();
+		int i = 0;
+		int j = from;
+		while (i < keys.size() || j < to) {
+			if (j == to || i < keys.size()
+					&& keys.get(i).value().compareTo(values.get(j)) <= 0)
+				merged.add(keys.get(i++));
+			else
+				merged.add(new Key<T>(values.get(j++)));
+		}
+		return merged;
+	}
+
+	/**
+	 * Creates nodes from the keys (and children if not a leaf level) with at
+	 * most degree - 1 keys each. If more than one node is needed the keys are
+	 * spread evenly over the fewest nodes possible and a key between each
+	 * pair of nodes becomes a separator.
+	 * 
+	 * @param keys
+	 * @param children
+	 *            - absent for leaves, otherwise one more than the keys
+	 * @param isRoot
+	 *            - true if a single node would be the root
+	 * @return
+	 */
+	private Level<T> split(List<Key<T>> keys,
+			Optional<List<NodeRef<T>>> children, boolean isRoot) {
+		Level<T> level = new Level<T>();
+		int count = keys.size();
+		int nodes = (count + degree) / degree;
+		if (nodes == 1) {
+			level.nodes.add(create(keys, children, 0, count, isRoot));
+			return level;
+		}
+		int available = count - (nodes - 1);
+		int index = 0;
+		for (int i = 0; i < nodes; i++) {
+			int size = available / nodes + (i < available % nodes ? 1 : 0);
+			level.nodes.add(create(keys, children, index, size, false));
+			index += size;
+			if (i < nodes - 1)
+				level.separators.add(keys.get(index++));
+		}
+		return level;
+	}
+
+	/**
+	 * Creates a node from size keys starting at index from and (if not a
+	 * leaf) the children on either side of them and adds it to the save
+	 * queue.
+	 * 
+	 * @param keys
+	 * @param children
+	 * @param from
+	 * @param size
+	 * @param isRoot
+	 * @return
+	 */
+	private NodeRef<T> create(List<Key<T>> keys,
+			Optional<List<NodeRef<T>>> children, int from, int size,
+			boolean isRoot) {
+		for (int i = from; i < from + size; i++) {
+			Key<T> key = keys.get(i);
+			key.setNext(i < from + size - 1 ? of(keys.get(i + 1)) : Optional
+					.<Key<T>> absent());
+			if (children.isPresent()) {
+				// adjacent keys share the child
+				key.setLeft(of(children.get().get(i)));
+				key.setRight(of(children.get().get(i + 1)));
+			} else {
+				key.setLeft(Optional.<NodeRef<T>> absent());
+				key.setRight(Optional.<NodeRef<T>> absent());
+			}
+		}
+		NodeRef<T> node = new NodeRef<T>(loader, Optional.<Position> absent(),
+				degree, isRoot);
+		node.setFirst(size == 0 ? Optional.<Key<T>> absent() : of(keys
+				.get(from)));
+		saveQueue.add(node);
+		return node;
+	}
+}
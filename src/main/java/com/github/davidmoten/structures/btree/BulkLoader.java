@@ -0,0 +1,296 @@
+package com.github.davidmoten.structures.btree;
+
+import static com.google.common.base.Optional.absent;
+import static com.google.common.base.Optional.of;
+
+import java.util.Iterator;
+import java.util.List;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.PeekingIterator;
+
+/**
+ * Builds a b-tree bottom up from values in ascending order. Leaves are
+ * filled to the fill factor one after the other; when a leaf is full the
+ * next value becomes a separator key in the level above, and so on up the
+ * tree. A node is written once it is full and the next node at its level
+ * has been closed, so every node is written once, children before parents,
+ * in batches of sequential writes. When the values run out the last node at
+ * each level shares the keys of the node before it (or is merged with it)
+ * so that every node but the root has at least the minimum number of keys
+ * for the degree.
+ * 
+ * @author dxm
+ * 
+ * @param <T>
+ */
+class BulkLoader<T extends Comparable<T>> {
+
+	/**
+	 * The number of nodes written to storage in one write.
+	 */
+	private static final int BATCH_SIZE = 256;
+
+	private final NodeLoader<T> loader;
+	private final int degree;
+	private final Optional<Storage> storage;
+	private final NodeCodec<T> codec;
+
+	/**
+	 * The fewest keys a node other than the root may have.
+	 */
+	private final int minKeys;
+
+	/**
+	 * The number of keys in a full node at the fill factor.
+	 */
+	private final int keysPerNode;
+
+	/**
+	 * The keys of the open (not yet full) node at each level, leaves first.
+	 */
+	private final List<List<Key<T>>> levels = Lists.newArrayList();
+
+	/**
+	 * The last node closed at each level, not yet written because it may
+	 * have to share keys with the open node at the end.
+	 */
+	private final List<Optional<NodeRef<T>>> closed = Lists.newArrayList();
+
+	/**
+	 * Nodes waiting to be written, children before parents.
+	 */
+	private final List<NodeRef<T>> batch = Lists.newArrayList();
+
+	private long count;
+
+	BulkLoader(NodeLoader<T> loader, int degree, double fillFactor,
+			Optional<Storage> storage, NodeCodec<T> codec) {
+		Preconditions.checkArgument(degree >= 3,
+				"bulk load requires degree >= 3");
+		Preconditions.checkArgument(fillFactor > 0 && fillFactor <= 1,
+				"fillFactor must be in (0,1]");
+		this.loader = loader;
+		this.degree = degree;
+		this.storage = storage;
+		this.codec = codec;
+		this.minKeys = (degree + 1) / 2 - 1;
+		this.keysPerNode = Math.max(minKeys,
+				(int) Math.round(fillFactor * (degree - 1)));
+	}
+
+	/**
+	 * Builds the tree from the values which must be in ascending order and
+	 * returns its root (absent if there are no values).
+	 * 
+	 * @param values
+	 * @return
+	 */
+	Optional<NodeRef<T>> load(Iterator<T> values) {
+		addLevel();
+		PeekingIterator<T> it = Iterators.peekingIterator(values);
+		Optional<T> previous = absent();
+		while (it.hasNext()) {
+			T t = it.next();
+			Preconditions.checkArgument(!previous.isPresent()
+					|| previous.get().compareTo(t) <= 0,
+					"values must be in ascending order");
+			previous = of(t);
+			count++;
+			List<Key<T>> leaf = levels.get(0);
+			if (leaf.size() < keysPerNode)
+				leaf.add(new Key<T>(t));
+			else if (it.hasNext())
+				// t separates this leaf from the next
+				addSeparator(1, closeLeaf(leaf), new Key<T>(t));
+			else if (leaf.size() < degree - 1)
+				// the last value must go in a leaf
+				leaf.add(new Key<T>(t));
+			else {
+				// leaf cannot take the last value so its last key separates
+				Key<T> last = leaf.remove(leaf.size() - 1);
+				addSeparator(1, closeLeaf(leaf), last);
+				leaf.add(new Key<T>(t));
+			}
+		}
+		if (count == 0)
+			return absent();
+		// close the open node at each level with the node closed below as
+		// its last child so that every leaf is at the same depth
+		Optional<NodeRef<T>> child = absent();
+		for (int i = 0; i < levels.size(); i++) {
+			List<Key<T>> keys = levels.get(i);
+			boolean isRoot = i == levels.size() - 1;
+			if (child.isPresent() && !keys.isEmpty())
+				last(keys).setRight(child);
+			if (keys.size() == degree) {
+				// the extra key does not fit so the keys are split evenly
+				int m = keys.size() / 2;
+				Key<T> middle = keys.get(m);
+				List<Key<T>> left = Lists.newArrayList(keys.subList(0, m));
+				keys = Lists.newArrayList(keys.subList(m + 1, keys.size()));
+				last(left).setRight(middle.getLeft());
+				addSeparator(i + 1, close(i, left), middle);
+				isRoot = false;
+			} else if (keys.size() < minKeys && !isRoot) {
+				// share keys with the node closed before through their
+				// separator in the level above
+				List<Key<T>> parent = levels.get(i + 1);
+				Key<T> separator = last(parent);
+				List<Key<T>> combined = Lists.newArrayList(closed.get(i).get()
+						.getKeys());
+				closed.set(i, Optional.<NodeRef<T>> absent());
+				separator.setLeft(last(combined).getRight());
+				separator.setRight(keys.isEmpty() ? child : keys.get(0)
+						.getLeft());
+				combined.add(separator);
+				combined.addAll(keys);
+				if (combined.size() - 1 >= 2 * minKeys) {
+					int m = combined.size() / 2;
+					Key<T> middle = combined.get(m);
+					List<Key<T>> left = Lists.newArrayList(combined.subList(0,
+							m));
+					keys = Lists.newArrayList(combined.subList(m + 1,
+							combined.size()));
+					last(left).setRight(middle.getLeft());
+					NodeRef<T> node = node(left, false);
+					write(node);
+					middle.setLeft(of(node));
+					parent.set(parent.size() - 1, middle);
+					if (parent.size() > 1)
+						// adjacent keys share the child
+						parent.get(parent.size() - 2).setRight(of(node));
+				} else {
+					// too few keys for two nodes
+					keys = combined;
+					parent.remove(parent.size() - 1);
+					if (parent.isEmpty() && i + 1 == levels.size() - 1) {
+						levels.remove(i + 1);
+						isRoot = true;
+					}
+				}
+			}
+			if (closed.get(i).isPresent())
+				write(closed.get(i).get());
+			NodeRef<T> node = node(keys, isRoot);
+			write(node);
+			child = of(node);
+		}
+		flush();
+		return child;
+	}
+
+	/**
+	 * Returns the number of values loaded.
+	 * 
+	 * @return
+	 */
+	long getCount() {
+		return count;
+	}
+
+	private NodeRef<T> closeLeaf(List<Key<T>> leaf) {
+		NodeRef<T> node = close(0, leaf);
+		leaf.clear();
+		return node;
+	}
+
+	private void addLevel() {
+		levels.add(Lists.<Key<T>> newArrayList());
+		closed.add(Optional.<NodeRef<T>> absent());
+	}
+
+	/**
+	 * Adds the key to the open node at the level with the given child (a
+	 * node just written at the level below) on its left. A full open node
+	 * takes one extra key and is only written when a key arrives after the
+	 * extra key, which then moves up a level. Deferring the write means
+	 * that the level always has an open node with a key for the last child
+	 * from below to attach to when the values run out.
+	 * 
+	 * @param level
+	 * @param child
+	 * @param key
+	 */
+	private void addSeparator(int level, NodeRef<T> child, Key<T> key) {
+		if (level == levels.size())
+			addLevel();
+		List<Key<T>> keys = levels.get(level);
+		Optional<NodeRef<T>> c = of(child);
+		if (keys.size() > keysPerNode) {
+			Key<T> extra = keys.remove(keys.size() - 1);
+			last(keys).setRight(extra.getLeft());
+			NodeRef<T> node = close(level, keys);
+			keys.clear();
+			addSeparator(level + 1, node, extra);
+		} else if (!keys.isEmpty())
+			// adjacent keys share the child
+			last(keys).setRight(c);
+		key.setLeft(c);
+		keys.add(key);
+	}
+
+	/**
+	 * Creates a node with the keys as the last closed node at the level and
+	 * queues the node closed before it to be written.
+	 * 
+	 * @param level
+	 * @param keys
+	 * @return
+	 */
+	private NodeRef<T> close(int level, List<Key<T>> keys) {
+		NodeRef<T> node = node(keys, false);
+		if (closed.get(level).isPresent())
+			write(closed.get(level).get());
+		closed.set(level, of(node));
+		return node;
+	}
+
+	/**
+	 * Creates a node with the keys.
+	 * 
+	 * @param keys
+	 * @param isRoot
+	 * @return
+	 */
+	private NodeRef<T> node(List<Key<T>> keys, boolean isRoot) {
+		for (int i = 0; i < keys.size() - 1; i++)
+			keys.get(i).setNext(of(keys.get(i + 1)));
+		last(keys).setNext(Optional.<Key<T>> absent());
+		NodeRef<T> node = new NodeRef<T>(loader, Optional.<Position> absent(),
+				degree, isRoot);
+		node.setFirst(of(keys.get(0)));
+		return node;
+	}
+
+	/**
+	 * Queues the node to be written.
+	 * 
+	 * @param node
+	 */
+	private void write(NodeRef<T> node) {
+		batch.add(node);
+		if (batch.size() == BATCH_SIZE)
+			flush();
+	}
+
+	/**
+	 * Writes the queued nodes and releases them (they are not put in the
+	 * node cache because they are unlikely to be read soon).
+	 */
+	private void flush() {
+		if (storage.isPresent() && !batch.isEmpty()) {
+			storage.get().save(batch, codec);
+			for (NodeRef<T> node : batch)
+				node.release();
+		}
+		batch.clear();
+	}
+
+	private static <T extends Comparable<T>> Key<T> last(List<Key<T>> keys) {
+		return keys.get(keys.size() - 1);
+	}
+}
@@ -0,0 +1,52 @@
+package com.github.davidmoten.structures.btree;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An {@link InputStream} that reads from a {@link ByteBuffer} without copying
+ * it. Reading advances the position of the buffer.
+ * 
+ * @author dxm
+ * 
+ */
+class ByteBufferInputStream extends InputStream {
+
+	private final ByteBuffer bb;
+
+	ByteBufferInputStream(ByteBuffer bb) {
+		this.bb = bb;
+	}
+
+	@Override
+	public int read() {
+		if (!bb.hasRemaining())
+			return -1;
+		else
+			return bb.get() & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] bytes, int offset, int length) {
+		if (length == 0)
+			return 0;
+		else if (!bb.hasRemaining())
+			return -1;
+		int n = Math.min(length, bb.remaining());
+		bb.get(bytes, offset, n);
+		return n;
+	}
+
+	@Override
+	public long skip(long n) {
+		int skipped = (int) Math.min(Math.max(n, 0), bb.remaining());
+		bb.position(bb.position() + skipped);
+		return skipped;
+	}
+
+	@Override
+	public int available() {
+		return bb.remaining();
+	}
+
+}
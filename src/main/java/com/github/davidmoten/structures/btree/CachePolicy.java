@@ -0,0 +1,24 @@
+package com.github.davidmoten.structures.btree;
+
+/**
+ * How the node cache chooses nodes to evict.
+ * 
+ * @author dxm
+ * 
+ */
+public enum CachePolicy {
+
+	/**
+	 * Evicts the least recently used node. A scan through more nodes than
+	 * the cache holds evicts every node, including frequently used nodes
+	 * near the root.
+	 */
+	LRU,
+
+	/**
+	 * The 2Q policy. Nodes enter a small FIFO queue and are only admitted to
+	 * the main LRU queue if they are used again soon after leaving it, so a
+	 * scan only displaces nodes in the FIFO queue.
+	 */
+	TWO_QUEUE;
+}
@@ -0,0 +1,101 @@
+package com.github.davidmoten.structures.btree;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded pool of open {@link FileChannel}s on the segment files of
+ * {@link Storage} keyed by file number. The least recently used channel is
+ * closed when the pool is full.
+ * 
+ * <p>
+ * Channels are shared by all threads and should only be used with positional
+ * reads and writes. A channel may be closed by another thread (on eviction)
+ * or by the interrupt of another thread using it, in which case the user
+ * gets a {@link java.nio.channels.ClosedChannelException} and should call
+ * {@link #get(long)} again unless the user's own thread was interrupted.
+ * </p>
+ * 
+ * @author dxm
+ * 
+ */
+class ChannelPool {
+
+	private final Storage storage;
+
+	private final LinkedHashMap<Long, FileChannel> channels;
+
+	ChannelPool(Storage storage, final int maxOpen) {
+		this.storage = storage;
+		this.channels = new LinkedHashMap<Long, FileChannel>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<Long, FileChannel> eldest) {
+				if (size() > maxOpen) {
+					close(eldest.getValue());
+					return true;
+				} else
+					return false;
+			}
+		};
+	}
+
+	/**
+	 * Returns an open channel on the segment file. Throws a
+	 * {@link RuntimeException} if the file does not exist.
+	 * 
+	 * @param fileNumber
+	 * @return
+	 */
+	synchronized FileChannel get(long fileNumber) {
+		FileChannel channel = channels.get(fileNumber);
+		if (channel == null || !channel.isOpen()) {
+			File file = storage.getFile(fileNumber);
+			try {
+				// rw would create a missing file
+				if (!file.exists())
+					throw new FileNotFoundException(file.toString());
+				channel = new RandomAccessFile(file, "rw").getChannel();
+			} catch (FileNotFoundException e) {
+				throw new RuntimeException(e);
+			}
+			channels.put(fileNumber, channel);
+		}
+		return channel;
+	}
+
+	/**
+	 * Closes the channel on the segment file if open.
+	 * 
+	 * @param fileNumber
+	 */
+	synchronized void evict(long fileNumber) {
+		FileChannel channel = channels.remove(fileNumber);
+		if (channel != null)
+			close(channel);
+	}
+
+	/**
+	 * Closes all channels. The pool can still be used afterwards.
+	 */
+	synchronized void close() {
+		for (FileChannel channel : channels.values())
+			close(channel);
+		channels.clear();
+	}
+
+	private static void close(FileChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
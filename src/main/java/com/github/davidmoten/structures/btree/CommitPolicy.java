@@ -0,0 +1,84 @@
+package com.github.davidmoten.structures.btree;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Decides when a {@link BTree} commits, that is when it forces its saved
+ * nodes to disk and records its current root in the metadata file. Changes
+ * made after the last commit are lost if the process crashes. A commit also
+ * happens on {@link BTree#flush()} and {@link BTree#close()} whatever the
+ * policy.
+ * 
+ * @author dxm
+ * 
+ */
+public final class CommitPolicy {
+
+	/**
+	 * Commit after this many operations, 0 for never.
+	 */
+	private final long operations;
+
+	/**
+	 * Commit this often if there have been operations since the last commit,
+	 * 0 for never.
+	 */
+	private final long intervalMs;
+
+	private CommitPolicy(long operations, long intervalMs) {
+		this.operations = operations;
+		this.intervalMs = intervalMs;
+	}
+
+	/**
+	 * Commits only on {@link BTree#flush()} and {@link BTree#close()}. This
+	 * is the default.
+	 * 
+	 * @return
+	 */
+	public static CommitPolicy onFlush() {
+		return new CommitPolicy(0, 0);
+	}
+
+	/**
+	 * Commits after every operation. The slowest and safest policy.
+	 * 
+	 * @return
+	 */
+	public static CommitPolicy perOperation() {
+		return everyOperations(1);
+	}
+
+	/**
+	 * Commits after every n operations.
+	 * 
+	 * @param n
+	 * @return
+	 */
+	public static CommitPolicy everyOperations(long n) {
+		Preconditions.checkArgument(n > 0, "n must be positive");
+		return new CommitPolicy(n, 0);
+	}
+
+	/**
+	 * Commits every intervalMs milliseconds (from a background thread) if
+	 * there have been operations since the last commit.
+	 * 
+	 * @param intervalMs
+	 * @return
+	 */
+	public static CommitPolicy everyMillis(long intervalMs) {
+		Preconditions.checkArgument(intervalMs > 0,
+				"intervalMs must be positive");
+		return new CommitPolicy(0, intervalMs);
+	}
+
+	long getOperations() {
+		return operations;
+	}
+
+	long getIntervalMs() {
+		return intervalMs;
+	}
+
+}
@@ -0,0 +1,23 @@
+package com.github.davidmoten.structures.btree;
+
+/**
+ * How node records are compressed in {@link Storage}. Records that would not
+ * be smaller compressed are always stored raw. Records written with any
+ * setting are readable with any other.
+ * 
+ * @author dxm
+ * 
+ */
+public enum Compression {
+
+	/**
+	 * Stores records raw.
+	 */
+	NONE,
+
+	/**
+	 * Compresses records with LZF, a fast pure-java member of the LZ77
+	 * family that does well on nodes with many similar keys.
+	 */
+	LZF;
+}
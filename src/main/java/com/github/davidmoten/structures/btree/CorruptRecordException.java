@@ -0,0 +1,18 @@
+package com.github.davidmoten.structures.btree;
+
+/**
+ * Thrown when a node record in storage fails its integrity checks (for
+ * example its checksum does not match its content).
+ * 
+ * @author dxm
+ * 
+ */
+public class CorruptRecordException extends RuntimeException {
+
+	private static final long serialVersionUID = -1630411226937958741L;
+
+	public CorruptRecordException(String message) {
+		super(message);
+	}
+
+}
@@ -0,0 +1,314 @@
+package com.github.davidmoten.structures.btree;
+
+import static com.google.common.base.Optional.absent;
+import static com.google.common.base.Optional.of;
+
+import java.util.Deque;
+import java.util.LinkedList;
+import java.util.List;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+
+/**
+ * A position in the values of a {@link BTree} that can be moved forwards,
+ * backwards or to a value. A cursor sees the b-tree as it was when the
+ * cursor was created (see {@link BTree#cursor()}). Deleted values are
+ * skipped. Not thread-safe.
+ * 
+ * <p>
+ * The cursor keeps the path from the root to its current key. Moving to the
+ * next or previous value usually stays in the same leaf. A seek only climbs
+ * the path as far as the first node whose subtree can hold the target
+ * before descending again, so seeking to a nearby value loads few or no
+ * nodes.
+ * </p>
+ * 
+ * @author dxm
+ * 
+ * @param <T>
+ */
+public final class Cursor<T extends Comparable<T>> {
+
+	private final NodeRef<T> root;
+
+	/**
+	 * The path from the root (last) to the node of the current key (first).
+	 * The index of the top frame is that of the current key; the index of
+	 * any other frame is that of the child the path descends into. Empty if
+	 * the cursor is before the first or after the last value.
+	 */
+	private final Deque<Frame<T>> path = new LinkedList<Frame<T>>();
+
+	/**
+	 * When the path is empty, true if the cursor is after the last value and
+	 * false if before the first.
+	 */
+	private boolean afterLast;
+
+	/**
+	 * A node on the path and the bounds of the values in its subtree.
+	 */
+	private static class Frame<T extends Comparable<T>> {
+		final List<Key<T>> keys;
+		final Optional<T> lower;
+		final Optional<T> upper;
+		int index;
+
+		Frame(NodeRef<T> node, Optional<T> lower, Optional<T> upper) {
+			this.keys = Lists.newArrayList(node.keys());
+			this.lower = lower;
+			this.upper = upper;
+		}
+
+		boolean isLeaf() {
+			return keys.isEmpty() || !keys.get(0).hasChild();
+		}
+
+		NodeRef<T> child(int i) {
+			if (i < keys.size())
+				return keys.get(i).getLeft().get();
+			else
+				return keys.get(i - 1).getRight().get();
+		}
+
+		/**
+		 * Returns the frame of the child at index i.
+		 * 
+		 * @param i
+		 * @return
+		 */
+		Frame<T> descend(int i) {
+			Optional<T> lo = i > 0 ? of(keys.get(i - 1).value()) : lower;
+			Optional<T> hi = i < keys.size() ? of(keys.get(i).value())
+					: upper;
+			return new Frame<T>(child(i), lo, hi);
+		}
+
+		/**
+		 * Returns true if the values in the subtree of this frame include
+		 * all the values greater than or equal to t that come before upper.
+		 * 
+		 * @param t
+		 * @return
+		 */
+		boolean covers(T t) {
+			return (!lower.isPresent() || lower.get().compareTo(t) < 0)
+					&& (!upper.isPresent() || t.compareTo(upper.get()) <= 0);
+		}
+	}
+
+	Cursor(NodeRef<T> root) {
+		this.root = root;
+	}
+
+	/**
+	 * Returns the current value or absent if the cursor is before the first
+	 * or after the last value.
+	 * 
+	 * @return
+	 */
+	public Optional<T> current() {
+		if (path.isEmpty())
+			return absent();
+		else
+			return of(currentKey().value());
+	}
+
+	/**
+	 * Moves to the smallest value and returns it (absent if there are no
+	 * values).
+	 * 
+	 * @return
+	 */
+	public Optional<T> seekFirst() {
+		path.clear();
+		afterLast = false;
+		return next();
+	}
+
+	/**
+	 * Moves to the largest value and returns it (absent if there are no
+	 * values).
+	 * 
+	 * @return
+	 */
+	public Optional<T> seekLast() {
+		path.clear();
+		afterLast = true;
+		return prev();
+	}
+
+	/**
+	 * Moves to the first value greater than or equal to t and returns it.
+	 * If there is no such value returns absent and the cursor is after the
+	 * last value.
+	 * 
+	 * @param t
+	 * @return
+	 */
+	public Optional<T> seek(T t) {
+		while (!path.isEmpty() && !path.peek().covers(t))
+			path.pop();
+		if (path.isEmpty())
+			path.push(new Frame<T>(root, Optional.<T> absent(), Optional
+					.<T> absent()));
+		while (true) {
+			Frame<T> frame = path.peek();
+			int i = 0;
+			while (i < frame.keys.size()
+					&& frame.keys.get(i).value().compareTo(t) < 0)
+				i++;
+			frame.index = i;
+			if (!frame.isLeaf())
+				path.push(frame.descend(i));
+			else if (i < frame.keys.size())
+				return skipDeleted(true);
+			else {
+				// no value >= t in this leaf so the answer is above it
+				climbForward();
+				return skipDeleted(true);
+			}
+		}
+	}
+
+	/**
+	 * Moves to the next value and returns it. Returns absent (and the cursor
+	 * is after the last value) if there is no next value. If the cursor is
+	 * before the first value moves to the first value.
+	 * 
+	 * @return
+	 */
+	public Optional<T> next() {
+		if (path.isEmpty()) {
+			if (afterLast)
+				return absent();
+			descendLeftmost(new Frame<T>(root, Optional.<T> absent(),
+					Optional.<T> absent()));
+		} else
+			forward();
+		return skipDeleted(true);
+	}
+
+	/**
+	 * Moves to the previous value and returns it. Returns absent (and the
+	 * cursor is before the first value) if there is no previous value. If the
+	 * cursor is after the last value moves to the last value.
+	 * 
+	 * @return
+	 */
+	public Optional<T> prev() {
+		if (path.isEmpty()) {
+			if (!afterLast)
+				return absent();
+			descendRightmost(new Frame<T>(root, Optional.<T> absent(),
+					Optional.<T> absent()));
+		} else
+			backward();
+		return skipDeleted(false);
+	}
+
+	private Optional<T> skipDeleted(boolean forwards) {
+		while (!path.isEmpty() && currentKey().isDeleted()) {
+			if (forwards)
+				forward();
+			else
+				backward();
+		}
+		return current();
+	}
+
+	private Key<T> currentKey() {
+		Frame<T> frame = path.peek();
+		return frame.keys.get(frame.index);
+	}
+
+	/**
+	 * Moves the path to the in-order successor of the current key.
+	 */
+	private void forward() {
+		Frame<T> frame = path.peek();
+		if (!frame.isLeaf()) {
+			// the path now descends into the child after the current key
+			frame.index++;
+			descendLeftmost(frame.descend(frame.index));
+		} else if (frame.index + 1 < frame.keys.size())
+			frame.index++;
+		else
+			climbForward();
+	}
+
+	/**
+	 * Moves the path to the in-order predecessor of the current key.
+	 */
+	private void backward() {
+		Frame<T> frame = path.peek();
+		if (!frame.isLeaf())
+			descendRightmost(frame.descend(frame.index));
+		else if (frame.index > 0)
+			frame.index--;
+		else
+			climbBackward();
+	}
+
+	/**
+	 * Pops finished nodes until an ancestor has a key after the child
+	 * descended into and makes that key current.
+	 */
+	private void climbForward() {
+		path.pop();
+		while (!path.isEmpty()) {
+			Frame<T> parent = path.peek();
+			if (parent.index < parent.keys.size())
+				return;
+			path.pop();
+		}
+		afterLast = true;
+	}
+
+	/**
+	 * Pops finished nodes until an ancestor has a key before the child
+	 * descended into and makes that key current.
+	 */
+	private void climbBackward() {
+		path.pop();
+		while (!path.isEmpty()) {
+			Frame<T> parent = path.peek();
+			if (parent.index > 0) {
+				parent.index--;
+				return;
+			}
+			path.pop();
+		}
+		afterLast = false;
+	}
+
+	private void descendLeftmost(Frame<T> frame) {
+		while (true) {
+			frame.index = 0;
+			path.push(frame);
+			if (frame.keys.isEmpty()) {
+				climbForward();
+				return;
+			} else if (frame.isLeaf())
+				return;
+			frame = frame.descend(0);
+		}
+	}
+
+	private void descendRightmost(Frame<T> frame) {
+		while (true) {
+			path.push(frame);
+			if (frame.keys.isEmpty()) {
+				frame.index = 0;
+				climbBackward();
+				return;
+			} else if (frame.isLeaf()) {
+				frame.index = frame.keys.size() - 1;
+				return;
+			}
+			frame.index = frame.keys.size();
+			frame = frame.descend(frame.keys.size());
+		}
+	}
+}
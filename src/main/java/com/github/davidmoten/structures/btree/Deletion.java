@@ -0,0 +1,664 @@
+package com.github.davidmoten.structures.btree;
+
+import static com.google.common.base.Optional.absent;
+import static com.google.common.base.Optional.of;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Removes values from a b-tree with copy on write. The nodes on the path to
+ * a removed value are copied and, where a copy has fewer than the minimum
+ * number of keys, it borrows a key through the parent from a sibling with
+ * keys to spare or is merged with a sibling and the separator between them.
+ * A value removed from an internal node is replaced by its predecessor (the
+ * largest value in its left subtree). If the root is left with no keys and
+ * one child the child becomes the root.
+ * 
+ * <p>
+ * Several values may be removed with one deletion: nodes created by the
+ * deletion are replaced like any other node but are dropped from the save
+ * queue rather than reported as replaced, so each node on the paths to the
+ * values is saved once for the whole batch.
+ * </p>
+ * 
+ * <p>
+ * A range of values is removed by trimming only the nodes on the paths to
+ * its two bounds: a child of such a node whose values all lie within the
+ * range is detached whole without being loaded (see {@link #getDetached()})
+ * and the few values left within the range on the trimmed paths are then
+ * removed one by one with rebalancing.
+ * </p>
+ * 
+ * @author dxm
+ * 
+ * @param <T>
+ */
+class Deletion<T extends Comparable<T>> {
+
+	private final NodeLoader<T> loader;
+	private final int degree;
+	private final boolean purgeTombstones;
+
+	/**
+	 * The fewest keys a node other than the root should have (the number of
+	 * keys in the smaller half of a split).
+	 */
+	private final int minKeys;
+
+	/**
+	 * The new nodes in the order created (children before parents).
+	 */
+	private final Set<NodeRef<T>> created = Sets.newLinkedHashSet();
+
+	/**
+	 * The saved nodes replaced by new nodes.
+	 */
+	private final List<NodeRef<T>> replaced = Lists.newArrayList();
+
+	/**
+	 * The roots of the subtrees detached by {@link #deleteRange}.
+	 */
+	private final List<NodeRef<T>> detached = Lists.newArrayList();
+
+	/**
+	 * The contents of nodes without keys and with one child, which cannot be
+	 * created, by the placeholders that stand in for them until they are
+	 * rebalanced (see {@link #trim}).
+	 */
+	private final Map<NodeRef<T>, Contents<T>> pending = Maps.newHashMap();
+
+	private boolean rootCollapsed;
+
+	/**
+	 * Set by {@link #trim} when it drops a key.
+	 */
+	private boolean trimmed;
+
+	/**
+	 * The bounds of {@link #deleteRange}.
+	 */
+	private T lower;
+	private boolean lowerInclusive;
+	private T upper;
+	private boolean upperInclusive;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param loader
+	 * @param degree
+	 * @param purgeTombstones
+	 *            - if true keys marked as deleted are dropped from the leaves
+	 *            that are copied
+	 */
+	Deletion(NodeLoader<T> loader, int degree, boolean purgeTombstones) {
+		this.loader = loader;
+		this.degree = degree;
+		this.purgeTombstones = purgeTombstones;
+		this.minKeys = (degree + 1) / 2 - 1;
+	}
+
+	/**
+	 * The keys and children of a node being changed. The child at index i is
+	 * left of the key at index i. Children is empty for a leaf.
+	 */
+	private static class Contents<T extends Comparable<T>> {
+		final List<Key<T>> keys = Lists.newArrayList();
+		final List<NodeRef<T>> children = Lists.newArrayList();
+
+		boolean isLeaf() {
+			return children.isEmpty();
+		}
+	}
+
+	/**
+	 * Removes one value equal to t (the one {@link BTree#find(Comparable)}
+	 * would return) from the tree under root and returns the new root, or
+	 * absent if there is no such value.
+	 * 
+	 * @param root
+	 * @param t
+	 * @return
+	 */
+	Optional<NodeRef<T>> delete(NodeRef<T> root, T t) {
+		Optional<Contents<T>> contents = remove(root, t);
+		if (!contents.isPresent())
+			return absent();
+		replace(root);
+		if (!contents.get().isLeaf() && contents.get().keys.isEmpty()) {
+			// the tree shrinks by a level
+			rootCollapsed = true;
+			NodeRef<T> child = contents.get().children.get(0);
+			replace(child);
+			return of(create(read(child, false), true));
+		} else
+			return of(create(contents.get(), true));
+	}
+
+	/**
+	 * Removes the values greater than (or equal to) lower and less than (or
+	 * equal to) upper from the tree under root and returns the new root, or
+	 * absent if there are no such values. About two nodes per level are
+	 * copied however many values are removed.
+	 * 
+	 * @param root
+	 * @param lower
+	 * @param op1
+	 *            - {@link ComparisonOperator#GREATER_THAN} or
+	 *            {@link ComparisonOperator#GREATER_THAN_OR_EQUAL}
+	 * @param upper
+	 * @param op2
+	 *            - {@link ComparisonOperator#LESS_THAN} or
+	 *            {@link ComparisonOperator#LESS_THAN_OR_EQUAL}
+	 * @return
+	 */
+	Optional<NodeRef<T>> deleteRange(NodeRef<T> root, T lower,
+			ComparisonOperator op1, T upper, ComparisonOperator op2) {
+		this.lower = lower;
+		this.lowerInclusive = op1 == ComparisonOperator.GREATER_THAN_OR_EQUAL;
+		this.upper = upper;
+		this.upperInclusive = op2 == ComparisonOperator.LESS_THAN_OR_EQUAL;
+		Contents<T> contents = trim(root, false, false);
+		while (!contents.isLeaf() && contents.keys.isEmpty()) {
+			// the tree shrinks by a level
+			rootCollapsed = true;
+			contents = take(contents.children.get(0));
+		}
+		NodeRef<T> node = create(contents, true);
+		boolean changed = trimmed || !detached.isEmpty();
+		// the values left within the range on the trimmed paths
+		List<T> values = Lists.newArrayList(new RangeIterator<T>(node, lower,
+				op1, upper, op2));
+		for (T t : values) {
+			node = delete(node, t).get();
+			changed = true;
+		}
+		if (changed)
+			return of(node);
+		else
+			return absent();
+	}
+
+	/**
+	 * Returns the contents of node with the values within the range removed
+	 * from it and its children except for at most one key that keeps the
+	 * node well formed. Children whose values all lie within the range are
+	 * detached and those that hold a bound are trimmed.
+	 * 
+	 * @param node
+	 * @param allAboveLower
+	 *            - true if every value under node is above the lower bound
+	 * @param allBelowUpper
+	 *            - true if every value under node is below the upper bound
+	 * @return
+	 */
+	private Contents<T> trim(NodeRef<T> node, boolean allAboveLower,
+			boolean allBelowUpper) {
+		replace(node);
+		Contents<T> contents = read(node, purgeTombstones);
+		List<Key<T>> keys = contents.keys;
+		int n = keys.size();
+		// the keys and children in order are items 0 to 2n: child i is item
+		// 2i and key i is item 2i + 1; the items within the range are
+		// consecutive
+		int first = -1;
+		int last = -1;
+		for (int item = 0; item <= 2 * n; item++) {
+			boolean within;
+			if (item % 2 == 1)
+				within = contains(keys.get(item / 2).value());
+			else if (contents.isLeaf())
+				within = false;
+			else {
+				int i = item / 2;
+				within = (allAboveLower || i > 0
+						&& aboveLower(keys.get(i - 1).value()))
+						&& (allBelowUpper || i < n
+								&& belowUpper(keys.get(i).value()));
+			}
+			if (within) {
+				if (first == -1)
+					first = item;
+				last = item;
+			}
+		}
+		if (!contents.isLeaf() && first != -1 && first % 2 == 1
+				&& last % 2 == 1)
+			// removing keys at both ends would leave two children side by
+			// side so the first key is kept and removed later
+			first++;
+		Contents<T> result = new Contents<T>();
+		List<Integer> trimmedChildren = Lists.newArrayList();
+		for (int item = 0; item <= 2 * n; item++) {
+			int i = item / 2;
+			if (item % 2 == 1) {
+				if (first <= item && item <= last)
+					trimmed = true;
+				else
+					result.keys.add(keys.get(i));
+			} else if (!contents.isLeaf()) {
+				NodeRef<T> child = contents.children.get(i);
+				if (first <= item && item <= last)
+					detached.add(child);
+				else if (holdsBound(keys, i, allAboveLower, allBelowUpper)) {
+					trimmedChildren.add(0, result.children.size());
+					Contents<T> c = trim(child, allAboveLower || i > 0
+							&& aboveLower(keys.get(i - 1).value()),
+							allBelowUpper || i < n
+									&& belowUpper(keys.get(i).value()));
+					result.children.add(createOrDefer(c));
+				} else
+					result.children.add(child);
+			}
+		}
+		// the later trimmed child is rebalanced first so that the index of
+		// the earlier one is unchanged
+		for (int i : trimmedChildren)
+			if (i < result.children.size())
+				rebalance(result, i);
+		rebalancePending(result);
+		return result;
+	}
+
+	/**
+	 * Rebalances the child at index i of parent if it has fewer than the
+	 * minimum number of keys. The child, a sibling and the key between them
+	 * are merged into one node if they fit or else split evenly between two
+	 * nodes. A trimmed node may be left with no keys and one child (that may
+	 * have no keys either) so such a child of either node is rebalanced in
+	 * turn in the node that now holds it.
+	 * 
+	 * @param parent
+	 * @param i
+	 */
+	private void rebalance(Contents<T> parent, int i) {
+		NodeRef<T> node = parent.children.get(i);
+		if (parent.children.size() == 1 || !pending.containsKey(node)
+				&& read(node, false).keys.size() >= minKeys)
+			return;
+		int j = i > 0 ? i - 1 : i;
+		Contents<T> left = take(parent.children.get(j));
+		Contents<T> right = take(parent.children.get(j + 1));
+		List<NodeRef<T>> lone = Lists.newArrayList();
+		for (Contents<T> c : Arrays.asList(left, right))
+			if (!c.isLeaf() && c.keys.isEmpty())
+				lone.add(c.children.get(0));
+		Contents<T> all = new Contents<T>();
+		all.keys.addAll(left.keys);
+		all.keys.add(parent.keys.remove(j));
+		all.keys.addAll(right.keys);
+		all.children.addAll(left.children);
+		all.children.addAll(right.children);
+		parent.children.remove(j + 1);
+		parent.children.remove(j);
+		List<Contents<T>> parts = Lists.newArrayList();
+		if (all.keys.size() < degree)
+			parts.add(all);
+		else {
+			int m = all.keys.size() / 2;
+			Contents<T> a = new Contents<T>();
+			Contents<T> b = new Contents<T>();
+			a.keys.addAll(all.keys.subList(0, m));
+			b.keys.addAll(all.keys.subList(m + 1, all.keys.size()));
+			if (!all.isLeaf()) {
+				a.children.addAll(all.children.subList(0, m + 1));
+				b.children.addAll(all.children.subList(m + 1,
+						all.children.size()));
+			}
+			parent.keys.add(j, all.keys.get(m));
+			parts.add(a);
+			parts.add(b);
+		}
+		List<NodeRef<T>> refs = Lists.newArrayList();
+		for (int k = 0; k < parts.size(); k++) {
+			Contents<T> part = parts.get(k);
+			for (NodeRef<T> c : lone) {
+				int index = part.children.indexOf(c);
+				if (index >= 0)
+					rebalance(part, index);
+			}
+			NodeRef<T> ref = createOrDefer(part);
+			refs.add(ref);
+			parent.children.add(j + k, ref);
+		}
+		// rebalancing a lone child takes a key from the node that holds it
+		for (NodeRef<T> ref : refs) {
+			int index = parent.children.indexOf(ref);
+			if (index >= 0)
+				rebalance(parent, index);
+		}
+	}
+
+	/**
+	 * Rebalances the pending children of parent until there are none or
+	 * parent has only one child.
+	 * 
+	 * @param parent
+	 */
+	private void rebalancePending(Contents<T> parent) {
+		boolean found = true;
+		while (found && parent.children.size() > 1) {
+			found = false;
+			for (int i = 0; i < parent.children.size() && !found; i++)
+				if (pending.containsKey(parent.children.get(i))) {
+					rebalance(parent, i);
+					found = true;
+				}
+		}
+	}
+
+	/**
+	 * Returns a new node with the given contents or, if it has no keys and
+	 * one child, a placeholder for the contents that is replaced when they
+	 * are rebalanced.
+	 * 
+	 * @param contents
+	 * @return
+	 */
+	private NodeRef<T> createOrDefer(Contents<T> contents) {
+		if (contents.isLeaf() || !contents.keys.isEmpty())
+			return create(contents, false);
+		NodeRef<T> placeholder = new NodeRef<T>(loader,
+				Optional.<Position> absent(), degree, false);
+		pending.put(placeholder, contents);
+		return placeholder;
+	}
+
+	/**
+	 * Returns the contents of node, which is being replaced, or of the
+	 * pending node it stands in for.
+	 * 
+	 * @param node
+	 * @return
+	 */
+	private Contents<T> take(NodeRef<T> node) {
+		if (pending.containsKey(node))
+			return pending.remove(node);
+		replace(node);
+		return read(node, false);
+	}
+
+	/**
+	 * Returns true if the child at index i of a node with the given keys may
+	 * hold values both within and outside the range.
+	 * 
+	 * @param keys
+	 * @param i
+	 * @param allAboveLower
+	 * @param allBelowUpper
+	 * @return
+	 */
+	private boolean holdsBound(List<Key<T>> keys, int i,
+			boolean allAboveLower, boolean allBelowUpper) {
+		boolean outside = !allAboveLower && i < keys.size()
+				&& !aboveLower(keys.get(i).value()) || !allBelowUpper && i > 0
+				&& !belowUpper(keys.get(i - 1).value());
+		return !outside;
+	}
+
+	private boolean contains(T t) {
+		return aboveLower(t) && belowUpper(t);
+	}
+
+	private boolean aboveLower(T t) {
+		int c = t.compareTo(lower);
+		return c > 0 || c == 0 && lowerInclusive;
+	}
+
+	private boolean belowUpper(T t) {
+		int c = t.compareTo(upper);
+		return c < 0 || c == 0 && upperInclusive;
+	}
+
+	/**
+	 * Returns the roots of the subtrees detached by {@link #deleteRange}.
+	 * Their records are obsolete but have not been loaded so their lengths
+	 * are unknown (see {@link Reclaimer}).
+	 * 
+	 * @return
+	 */
+	List<NodeRef<T>> getDetached() {
+		return detached;
+	}
+
+	/**
+	 * Returns the new nodes, children before parents.
+	 * 
+	 * @return
+	 */
+	List<NodeRef<T>> getSaveQueue() {
+		return Lists.newArrayList(created);
+	}
+
+	/**
+	 * Returns the saved nodes that were replaced (their records are
+	 * obsolete).
+	 * 
+	 * @return
+	 */
+	List<NodeRef<T>> getReplaced() {
+		return replaced;
+	}
+
+	/**
+	 * Returns true if the root lost its last key so that the tree lost a
+	 * level.
+	 * 
+	 * @return
+	 */
+	boolean rootCollapsed() {
+		return rootCollapsed;
+	}
+
+	/**
+	 * Returns the contents of node with one value equal to t removed from
+	 * its subtree, or absent if there is no such value.
+	 * 
+	 * @param node
+	 * @param t
+	 * @return
+	 */
+	private Optional<Contents<T>> remove(NodeRef<T> node, T t) {
+		Contents<T> contents = read(node, purgeTombstones);
+		List<Key<T>> keys = contents.keys;
+		int i = 0;
+		while (i < keys.size()) {
+			int compare = t.compareTo(keys.get(i).value());
+			if (compare < 0)
+				break;
+			else if (compare == 0 && !keys.get(i).isDeleted()) {
+				if (contents.isLeaf())
+					keys.remove(i);
+				else {
+					// replace the key with its predecessor
+					Contents<T> left = read(contents.children.get(i), false);
+					Key<T> predecessor = removeLast(left);
+					keys.set(i, predecessor);
+					setChild(contents, i, left);
+				}
+				return of(contents);
+			} else if (compare == 0 && !contents.isLeaf()) {
+				// a tombstone may have live equal values on its left
+				Optional<Contents<T>> child = remove(contents.children.get(i),
+						t);
+				if (child.isPresent()) {
+					setChild(contents, i, child.get());
+					return of(contents);
+				}
+			}
+			i++;
+		}
+		if (contents.isLeaf())
+			return absent();
+		Optional<Contents<T>> child = remove(contents.children.get(i), t);
+		if (!child.isPresent())
+			return absent();
+		setChild(contents, i, child.get());
+		return of(contents);
+	}
+
+	/**
+	 * Removes and returns the last key in the subtree with the given
+	 * contents.
+	 * 
+	 * @param contents
+	 * @return
+	 */
+	private Key<T> removeLast(Contents<T> contents) {
+		if (contents.isLeaf())
+			return contents.keys.remove(contents.keys.size() - 1);
+		int last = contents.children.size() - 1;
+		Contents<T> child = read(contents.children.get(last), false);
+		Key<T> key = removeLast(child);
+		setChild(contents, last, child);
+		return key;
+	}
+
+	/**
+	 * Replaces the child at index i of parent with a new node with the given
+	 * contents, first borrowing from or merging with a sibling if the child
+	 * has too few keys.
+	 * 
+	 * @param parent
+	 * @param i
+	 * @param child
+	 */
+	private void setChild(Contents<T> parent, int i, Contents<T> child) {
+		replace(parent.children.get(i));
+		if (child.keys.size() >= minKeys) {
+			parent.children.set(i, create(child, false));
+			return;
+		}
+		Optional<Contents<T>> left = absent();
+		if (i > 0) {
+			left = of(read(parent.children.get(i - 1), false));
+			if (left.get().keys.size() > minKeys) {
+				// rotate the last key of the left sibling through the parent
+				Contents<T> sibling = left.get();
+				child.keys.add(0, parent.keys.get(i - 1));
+				parent.keys.set(i - 1,
+						sibling.keys.remove(sibling.keys.size() - 1));
+				if (!child.isLeaf()) {
+					int last = sibling.children.size() - 1;
+					child.children.add(0, sibling.children.remove(last));
+				}
+				replaceChild(parent, i - 1, sibling);
+				parent.children.set(i, create(child, false));
+				return;
+			}
+		}
+		Optional<Contents<T>> right = absent();
+		if (i < parent.keys.size()) {
+			right = of(read(parent.children.get(i + 1), false));
+			if (right.get().keys.size() > minKeys) {
+				// rotate the first key of the right sibling through the parent
+				Contents<T> sibling = right.get();
+				child.keys.add(parent.keys.get(i));
+				parent.keys.set(i, sibling.keys.remove(0));
+				if (!child.isLeaf())
+					child.children.add(sibling.children.remove(0));
+				replaceChild(parent, i + 1, sibling);
+				parent.children.set(i, create(child, false));
+				return;
+			}
+		}
+		if (left.isPresent()) {
+			replace(parent.children.get(i - 1));
+			merge(parent, i - 1, left.get(), child);
+		} else if (right.isPresent()) {
+			replace(parent.children.get(i + 1));
+			merge(parent, i, child, right.get());
+		} else
+			// only the root has no siblings
+			parent.children.set(i, create(child, false));
+	}
+
+	private void replaceChild(Contents<T> parent, int i, Contents<T> child) {
+		replace(parent.children.get(i));
+		parent.children.set(i, create(child, false));
+	}
+
+	/**
+	 * Replaces the children of parent at indexes i and i + 1 and the key
+	 * between them with one node.
+	 * 
+	 * @param parent
+	 * @param i
+	 * @param left
+	 * @param right
+	 */
+	private void merge(Contents<T> parent, int i, Contents<T> left,
+			Contents<T> right) {
+		left.keys.add(parent.keys.remove(i));
+		left.keys.addAll(right.keys);
+		left.children.addAll(right.children);
+		parent.children.remove(i + 1);
+		parent.children.set(i, create(left, false));
+	}
+
+	/**
+	 * Returns copies of the keys of node and its children.
+	 * 
+	 * @param node
+	 * @param purge
+	 *            - if true and node is a leaf deleted keys are not copied
+	 * @return
+	 */
+	private Contents<T> read(NodeRef<T> node, boolean purge) {
+		Contents<T> contents = new Contents<T>();
+		for (Key<T> key : node.keys()) {
+			if (key.getLeft().isPresent()) {
+				contents.children.add(key.getLeft().get());
+				if (!key.next().isPresent())
+					contents.children.add(key.getRight().get());
+			} else if (purge && key.isDeleted())
+				continue;
+			Key<T> k = new Key<T>(key.value());
+			k.setDeleted(key.isDeleted());
+			contents.keys.add(k);
+		}
+		return contents;
+	}
+
+	/**
+	 * Records that node has been replaced by a copy. A node created by this
+	 * deletion is dropped from the save queue instead.
+	 * 
+	 * @param node
+	 */
+	private void replace(NodeRef<T> node) {
+		if (!created.remove(node))
+			replaced.add(node);
+	}
+
+	private NodeRef<T> create(Contents<T> contents, boolean isRoot) {
+		List<Key<T>> keys = contents.keys;
+		for (int i = 0; i < keys.size(); i++) {
+			Key<T> key = keys.get(i);
+			key.setNext(i < keys.size() - 1 ? of(keys.get(i + 1)) : Optional
+					.<Key<T>> absent());
+			if (contents.isLeaf()) {
+				key.setLeft(Optional.<NodeRef<T>> absent());
+				key.setRight(Optional.<NodeRef<T>> absent());
+			} else {
+				// adjacent keys share the child
+				key.setLeft(of(contents.children.get(i)));
+				key.setRight(of(contents.children.get(i + 1)));
+			}
+		}
+		NodeRef<T> node = new NodeRef<T>(loader, Optional.<Position> absent(),
+				degree, isRoot);
+		node.setFirst(keys.isEmpty() ? Optional.<Key<T>> absent() : of(keys
+				.get(0)));
+		created.add(node);
+		return node;
+	}
+}
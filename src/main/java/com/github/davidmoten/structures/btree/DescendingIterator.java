@@ -0,0 +1,98 @@
+package com.github.davidmoten.structures.btree;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.AbstractIterator;
+
+/**
+ * Iterates lazily over the values of a b-tree from largest to smallest,
+ * optionally between an upper and a lower bound. A {@link Cursor} descends
+ * straight to the upper bound (or to the bottom right of the tree) then
+ * moves backwards, loading a node only when it is reached, so the k largest
+ * values cost about one node load per level plus k / (keys per node).
+ * Deleted keys are skipped.
+ * 
+ * @author dxm
+ * 
+ * @param <T>
+ */
+class DescendingIterator<T extends Comparable<T>> extends AbstractIterator<T> {
+
+	private final Cursor<T> cursor;
+	private final Optional<T> lower;
+	private final boolean lowerInclusive;
+	private final Optional<T> upper;
+	private final boolean upperInclusive;
+	private boolean started;
+
+	/**
+	 * Iterates over all values.
+	 * 
+	 * @param root
+	 */
+	DescendingIterator(NodeRef<T> root) {
+		this.cursor = new Cursor<T>(root);
+		this.lower = Optional.absent();
+		this.lowerInclusive = true;
+		this.upper = Optional.absent();
+		this.upperInclusive = true;
+	}
+
+	/**
+	 * Iterates over the values between the bounds (see
+	 * {@link RangeIterator#checkOperators(ComparisonOperator, ComparisonOperator)}
+	 * ).
+	 * 
+	 * @param root
+	 * @param lower
+	 * @param op1
+	 * @param upper
+	 * @param op2
+	 */
+	DescendingIterator(NodeRef<T> root, T lower, ComparisonOperator op1,
+			T upper, ComparisonOperator op2) {
+		RangeIterator.checkOperators(op1, op2);
+		this.cursor = new Cursor<T>(root);
+		this.lower = Optional.of(lower);
+		this.lowerInclusive = op1 == ComparisonOperator.GREATER_THAN_OR_EQUAL;
+		this.upper = Optional.of(upper);
+		this.upperInclusive = op2 == ComparisonOperator.LESS_THAN_OR_EQUAL;
+	}
+
+	@Override
+	protected T computeNext() {
+		Optional<T> value;
+		if (started)
+			value = cursor.prev();
+		else {
+			started = true;
+			value = start();
+		}
+		if (value.isPresent() && aboveLower(value.get()))
+			return value.get();
+		else
+			return endOfData();
+	}
+
+	/**
+	 * Moves the cursor to the largest value within the upper bound.
+	 * 
+	 * @return
+	 */
+	private Optional<T> start() {
+		if (!upper.isPresent())
+			return cursor.seekLast();
+		Optional<T> value = cursor.seek(upper.get());
+		if (upperInclusive)
+			// move past the values equal to the upper bound
+			while (value.isPresent() && value.get().compareTo(upper.get()) == 0)
+				value = cursor.next();
+		return cursor.prev();
+	}
+
+	private boolean aboveLower(T t) {
+		if (!lower.isPresent())
+			return true;
+		int c = t.compareTo(lower.get());
+		return c > 0 || c == 0 && lowerInclusive;
+	}
+}
@@ -0,0 +1,89 @@
+package com.github.davidmoten.structures.btree;
+
+import java.io.File;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Settings for sorting values that may not fit in memory before they are
+ * bulk loaded (see {@link BTree#bulkLoadUnsorted(java.util.Iterator, double,
+ * ExternalSort)}).
+ * 
+ * @author dxm
+ * 
+ */
+public final class ExternalSort {
+
+	/**
+	 * The estimated heap bytes of the values held in memory at once.
+	 */
+	private final long maxMemoryBytes;
+
+	/**
+	 * The number of threads sorting and writing runs.
+	 */
+	private final int threads;
+
+	/**
+	 * The directory to write runs to.
+	 */
+	private final File directory;
+
+	private ExternalSort(long maxMemoryBytes, int threads, File directory) {
+		Preconditions.checkArgument(maxMemoryBytes > 0,
+				"maxMemoryBytes must be positive");
+		Preconditions.checkArgument(threads > 0, "threads must be positive");
+		Preconditions.checkNotNull(directory, "directory cannot be null");
+		this.maxMemoryBytes = maxMemoryBytes;
+		this.threads = threads;
+		this.directory = directory;
+	}
+
+	/**
+	 * Sorts holding at most an estimated maxMemoryBytes of values in memory,
+	 * using a thread per available processor and the temporary directory
+	 * given by the system property <code>java.io.tmpdir</code>.
+	 * 
+	 * @param maxMemoryBytes
+	 * @return
+	 */
+	public static ExternalSort maxMemory(long maxMemoryBytes) {
+		return new ExternalSort(maxMemoryBytes, Runtime.getRuntime()
+				.availableProcessors(), new File(
+				System.getProperty("java.io.tmpdir")));
+	}
+
+	/**
+	 * Returns a copy of these settings that sorts runs with the given number
+	 * of threads.
+	 * 
+	 * @param threads
+	 * @return
+	 */
+	public ExternalSort threads(int threads) {
+		return new ExternalSort(maxMemoryBytes, threads, directory);
+	}
+
+	/**
+	 * Returns a copy of these settings that writes runs to the given
+	 * directory.
+	 * 
+	 * @param directory
+	 * @return
+	 */
+	public ExternalSort directory(File directory) {
+		return new ExternalSort(maxMemoryBytes, threads, directory);
+	}
+
+	long getMaxMemoryBytes() {
+		return maxMemoryBytes;
+	}
+
+	int getThreads() {
+		return threads;
+	}
+
+	File getDirectory() {
+		return directory;
+	}
+}
@@ -0,0 +1,438 @@
+package com.github.davidmoten.structures.btree;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
+
+/**
+ * Sorts values that may not fit in memory. Values are read into chunks of
+ * an estimated maxMemoryBytes / (threads + 1) bytes; each full chunk is
+ * sorted and written to a run file by one of the sorting threads while the
+ * next chunk is read. The runs are then merged with a heap as the sorted
+ * values are iterated. Values are written to runs with the
+ * {@link Serializer} of the b-tree. If all values fit in one chunk they are
+ * sorted in memory.
+ * 
+ * <p>
+ * At most {@link #getFanIn()} runs are merged at once so that their read
+ * buffers fit in maxMemoryBytes and the files open stay well under the
+ * limits of the operating system. While there are more runs than that,
+ * consecutive runs are merged in passes into longer runs.
+ * </p>
+ * 
+ * <p>
+ * The sort is stable. {@link #close()} deletes the run files. If the sort
+ * fails the run files written so far are deleted before it throws.
+ * </p>
+ * 
+ * @author dxm
+ * 
+ * @param <T>
+ */
+class ExternalSorter<T extends Comparable<T>> {
+
+	/**
+	 * Estimated heap bytes of a value held in a chunk excluding its
+	 * serialized bytes (object header, fields and list slot).
+	 */
+	private static final int VALUE_OVERHEAD_BYTES = 32;
+
+	private static final int MAX_BUFFER_SIZE = 64 * 1024;
+
+	private static final int MIN_BUFFER_SIZE = 4 * 1024;
+
+	/**
+	 * The most runs merged at once whatever the memory allowed.
+	 */
+	private static final int MAX_FAN_IN = 256;
+
+	private final Serializer<T> serializer;
+	private final ExternalSort settings;
+	private final int fanIn;
+
+	/**
+	 * The bytes buffered for each file read or written.
+	 */
+	private final int bufferSize;
+
+	private final List<File> runs = Lists.newArrayList();
+	private final List<Run<T>> readers = Lists.newArrayList();
+
+	ExternalSorter(Serializer<T> serializer, ExternalSort settings) {
+		this.serializer = serializer;
+		this.settings = settings;
+		// a buffer for each run merged and one for the run written
+		long buffers = settings.getMaxMemoryBytes() / MIN_BUFFER_SIZE;
+		this.fanIn = (int) Math.max(2, Math.min(MAX_FAN_IN, buffers - 1));
+		this.bufferSize = (int) Math.max(MIN_BUFFER_SIZE, Math.min(
+				MAX_BUFFER_SIZE, settings.getMaxMemoryBytes() / (fanIn + 1)));
+	}
+
+	/**
+	 * Returns the most runs merged at once.
+	 * 
+	 * @return
+	 */
+	int getFanIn() {
+		return fanIn;
+	}
+
+	/**
+	 * Returns the values in ascending order.
+	 * 
+	 * @param values
+	 * @return
+	 */
+	Iterator<T> sort(Iterator<T> values) {
+		long chunkBytes = Math.max(1, settings.getMaxMemoryBytes()
+				/ (settings.getThreads() + 1));
+		ExecutorService executor = Executors.newFixedThreadPool(
+				settings.getThreads(), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "btree-sort");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		// a permit per chunk being sorted or written
+		Semaphore permits = new Semaphore(settings.getThreads());
+		List<Future<File>> futures = Lists.newArrayList();
+		RecordBuffer buffer = new RecordBuffer(128);
+		DataOutputStream measure = new DataOutputStream(buffer);
+		boolean completed = false;
+		try {
+			List<T> chunk = Lists.newArrayList();
+			long bytes = 0;
+			while (values.hasNext()) {
+				T t = values.next();
+				buffer.reset();
+				serializer.write(measure, t);
+				chunk.add(t);
+				bytes += buffer.size() + VALUE_OVERHEAD_BYTES;
+				if (bytes >= chunkBytes && values.hasNext()) {
+					futures.add(spill(executor, permits, chunk));
+					chunk = Lists.newArrayList();
+					bytes = 0;
+				}
+			}
+			if (futures.isEmpty()) {
+				Collections.sort(chunk);
+				completed = true;
+				return chunk.iterator();
+			}
+			futures.add(spill(executor, permits, chunk));
+			for (Future<File> future : futures)
+				runs.add(future.get());
+			executor.shutdown();
+			reduce();
+			completed = true;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			if (completed)
+				executor.shutdown();
+			else
+				discard(executor, futures);
+		}
+		return merge();
+	}
+
+	/**
+	 * Waits for the chunks already submitted to be written then deletes
+	 * every run file written so that a failed sort leaves no files behind.
+	 * 
+	 * @param executor
+	 * @param futures
+	 */
+	private void discard(ExecutorService executor, List<Future<File>> futures) {
+		executor.shutdown();
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			// delete what has been written so far
+			Thread.currentThread().interrupt();
+		}
+		for (Future<File> future : futures)
+			if (future.isDone() && !future.isCancelled())
+				try {
+					File file = future.get();
+					if (!runs.contains(file))
+						runs.add(file);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (ExecutionException e) {
+					// the failed write deleted its file
+				}
+		for (File run : runs)
+			run.delete();
+		runs.clear();
+	}
+
+	private Future<File> spill(ExecutorService executor,
+			final Semaphore permits, final List<T> chunk)
+			throws InterruptedException {
+		permits.acquire();
+		return executor.submit(new Callable<File>() {
+			@Override
+			public File call() throws IOException {
+				try {
+					Collections.sort(chunk);
+					return write(chunk);
+				} finally {
+					permits.release();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Writes the values to a new run file, each as its length in bytes
+	 * followed by its serialized bytes.
+	 * 
+	 * @param chunk
+	 * @return
+	 * @throws IOException
+	 */
+	private File write(List<T> chunk) throws IOException {
+		File file = File.createTempFile("btree-run-", ".tmp",
+				settings.getDirectory());
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file), bufferSize));
+		boolean written = false;
+		try {
+			RecordBuffer buffer = new RecordBuffer(128);
+			DataOutputStream value = new DataOutputStream(buffer);
+			out.writeLong(chunk.size());
+			for (T t : chunk) {
+				buffer.reset();
+				serializer.write(value, t);
+				out.writeInt(buffer.size());
+				out.write(buffer.array(), 0, buffer.size());
+			}
+			written = true;
+		} finally {
+			out.close();
+			if (!written)
+				file.delete();
+		}
+		return file;
+	}
+
+	/**
+	 * Merges consecutive runs, at most fanIn at a time, until there are no
+	 * more than fanIn runs. Each run merged is deleted once its merged run is
+	 * written so that a failure leaves only the files in runs.
+	 * 
+	 * @throws IOException
+	 */
+	private void reduce() throws IOException {
+		while (runs.size() > fanIn) {
+			List<File> pass = Lists.newArrayList(runs);
+			for (int i = 0; i < pass.size(); i += fanIn) {
+				List<File> group = pass.subList(i,
+						Math.min(pass.size(), i + fanIn));
+				runs.add(mergeToRun(group));
+				for (File run : group) {
+					runs.remove(run);
+					run.delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Merges the runs into a new run file.
+	 * 
+	 * @param group
+	 * @return
+	 * @throws IOException
+	 */
+	private File mergeToRun(List<File> group) throws IOException {
+		List<Run<T>> inputs = Lists.newArrayList();
+		try {
+			long count = 0;
+			for (int i = 0; i < group.size(); i++) {
+				Run<T> run = new Run<T>(group.get(i), i, serializer,
+						bufferSize);
+				inputs.add(run);
+				count += run.remaining;
+			}
+			PriorityQueue<Run<T>> heap = heap(inputs);
+			File file = File.createTempFile("btree-run-", ".tmp",
+					settings.getDirectory());
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(file),
+							bufferSize));
+			boolean written = false;
+			try {
+				out.writeLong(count);
+				Run<T> run;
+				while ((run = heap.poll()) != null) {
+					// copies the serialized bytes of the value
+					out.writeInt(run.length);
+					out.write(run.bytes, 0, run.length);
+					if (run.advance())
+						heap.add(run);
+				}
+				written = true;
+			} finally {
+				out.close();
+				if (!written)
+					file.delete();
+			}
+			return file;
+		} finally {
+			for (Run<T> run : inputs)
+				run.close();
+		}
+	}
+
+	/**
+	 * Returns an iterator over the values of the runs in ascending order.
+	 * 
+	 * @return
+	 */
+	private Iterator<T> merge() {
+		for (int i = 0; i < runs.size(); i++)
+			readers.add(new Run<T>(runs.get(i), i, serializer, bufferSize));
+		final PriorityQueue<Run<T>> heap = heap(readers);
+		return new AbstractIterator<T>() {
+			@Override
+			protected T computeNext() {
+				Run<T> run = heap.poll();
+				if (run == null)
+					return endOfData();
+				T t = run.head;
+				if (run.advance())
+					heap.add(run);
+				return t;
+			}
+		};
+	}
+
+	/**
+	 * Returns a heap of the runs that have values ordered by their next
+	 * value; runs with equal values are taken in the order they were written
+	 * so that the merge is stable.
+	 * 
+	 * @param inputs
+	 * @return
+	 */
+	private static <T extends Comparable<T>> PriorityQueue<Run<T>> heap(
+			List<Run<T>> inputs) {
+		PriorityQueue<Run<T>> heap = new PriorityQueue<Run<T>>(Math.max(1,
+				inputs.size()), new Comparator<Run<T>>() {
+					@Override
+					public int compare(Run<T> a, Run<T> b) {
+						int c = a.head.compareTo(b.head);
+						if (c == 0)
+							return a.index < b.index ? -1
+									: (a.index == b.index ? 0 : 1);
+						else
+							return c;
+					}
+				});
+		for (Run<T> run : inputs)
+			if (run.advance())
+				heap.add(run);
+		return heap;
+	}
+
+	/**
+	 * Closes and deletes the run files.
+	 */
+	void close() {
+		for (Run<T> reader : readers)
+			reader.close();
+		for (File run : runs)
+			run.delete();
+	}
+
+	/**
+	 * Reads the values of a run file in order.
+	 */
+	private static class Run<T extends Comparable<T>> {
+		final int index;
+		private final Serializer<T> serializer;
+		private final DataInputStream in;
+		long remaining;
+		// the serialized bytes of head
+		byte[] bytes = new byte[128];
+		int length;
+		T head;
+
+		Run(File file, int index, Serializer<T> serializer, int bufferSize) {
+			this.index = index;
+			this.serializer = serializer;
+			try {
+				this.in = new DataInputStream(new BufferedInputStream(
+						new FileInputStream(file), bufferSize));
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			try {
+				this.remaining = in.readLong();
+			} catch (IOException e) {
+				close();
+				throw new RuntimeException(e);
+			}
+		}
+
+		/**
+		 * Reads the next value into head and returns true, or returns false
+		 * if there are no more values.
+		 * 
+		 * @return
+		 */
+		boolean advance() {
+			if (remaining == 0)
+				return false;
+			remaining--;
+			try {
+				length = in.readInt();
+				if (length > bytes.length)
+					bytes = new byte[Math.max(length, bytes.length * 2)];
+				in.readFully(bytes, 0, length);
+				head = serializer.read(ByteBuffer.wrap(bytes, 0, length));
+				return true;
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		void close() {
+			try {
+				in.close();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+}
@@ -2,12 +2,10 @@ package com.github.davidmoten.structures.btree;
 
 import static com.google.common.base.Optional.absent;
 
-import java.io.Serializable;
-
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 
-class Key<T extends Serializable & Comparable<T>> {
+class Key<T extends Comparable<T>> {
 
 	private final T t;
 	private Optional<NodeRef<T>> left = absent();
@@ -21,7 +19,7 @@ class Key<T extends Serializable & Comparable<T>> {
 		this.t = t;
 	}
 
-	static <R extends Serializable & Comparable<R>> Key<R> create(R r) {
+	static <R extends Comparable<R>> Key<R> create(R r) {
 		return new Key<R>(r);
 	}
 
@@ -103,6 +101,15 @@ class Key<T extends Serializable & Comparable<T>> {
 		return builder.toString();
 	}
 
+	Optional<NodeRef<T>> getSide(Side side) {
+		Preconditions.checkArgument(!Side.TOP.equals(side),
+				"side cannot be TOP");
+		if (Side.LEFT.equals(side))
+			return left;
+		else
+			return right;
+	}
+
 	void setSide(Side side, Optional<NodeRef<T>> nd) {
 		Preconditions.checkArgument(!Side.TOP.equals(side),
 				"side cannot be TOP");
@@ -1,6 +1,5 @@
 package com.github.davidmoten.structures.btree;
 
-import java.io.Serializable;
 import java.util.LinkedList;
 
 import com.google.common.base.Optional;
@@ -14,7 +13,7 @@ import com.google.common.collect.Lists;
  * 
  * @param <T>
  */
-class KeyNodes<T extends Serializable & Comparable<T>> {
+class KeyNodes<T extends Comparable<T>> {
 
 	private final Optional<Key<T>> key;
 
@@ -45,13 +44,12 @@ class KeyNodes<T extends Serializable & Comparable<T>> {
 		return new KeyNodes<T>(Optional.<Key<T>> absent(), list);
 	}
 
-	static <R extends Serializable & Comparable<R>> KeyNodes<R> create(
-			Key<R> key) {
+	static <R extends Comparable<R>> KeyNodes<R> create(Key<R> key) {
 		return new KeyNodes<R>(Optional.of(key),
 				Lists.<NodeRef<R>> newLinkedList());
 	}
 
-	static <R extends Serializable & Comparable<R>> KeyNodes<R> create(R value) {
+	static <R extends Comparable<R>> KeyNodes<R> create(R value) {
 		return new KeyNodes<R>(Optional.of(Key.create(value)),
 				Lists.<NodeRef<R>> newLinkedList());
 	}
@@ -61,7 +59,7 @@ class KeyNodes<T extends Serializable & Comparable<T>> {
 		return "KeyNodes[key=" + key + ", saveQueue=" + saveQueue + "]";
 	}
 
-	static <R extends Serializable & Comparable<R>> KeyNodes<R> create() {
+	static <R extends Comparable<R>> KeyNodes<R> create() {
 		return new KeyNodes<R>(Optional.<Key<R>> absent(),
 				Lists.<NodeRef<R>> newLinkedList());
 	}
@@ -1,8 +1,6 @@
 package com.github.davidmoten.structures.btree;
 
-import java.io.Serializable;
-
-class KeySide<T extends Serializable & Comparable<T>> {
+class KeySide<T extends Comparable<T>> {
 	private final Key<T> key;
 	private final Side side;
 
@@ -0,0 +1,180 @@
+package com.github.davidmoten.structures.btree;
+
+/**
+ * LZF compression (a byte-oriented LZ77 variant with an 8KB window).
+ * 
+ * <p>
+ * Compressed data is a sequence of chunks, each starting with a control
+ * byte <code>c</code>:
+ * </p>
+ * 
+ * <pre>
+ * c &lt; 32     c + 1 literal bytes follow
+ * c &gt;= 32    a back reference: length (c &gt;&gt; 5) + 2, or if (c &gt;&gt; 5) == 7 the
+ *            next byte + 9, then one byte that with (c &amp; 31) &lt;&lt; 8 gives
+ *            distance - 1
+ * </pre>
+ * 
+ * @author dxm
+ * 
+ */
+final class Lzf {
+
+	private static final int HASH_BITS = 14;
+
+	private static final int MAX_LITERAL = 32;
+
+	private static final int MAX_DISTANCE = 1 << 13;
+
+	private static final int MAX_MATCH = (1 << 8) + (1 << 3);
+
+	/**
+	 * Positions (plus one) of recent 3 byte sequences by hash. Entries left
+	 * over from earlier calls are harmless because a candidate match is
+	 * always compared with the input.
+	 */
+	private static final ThreadLocal<int[]> hashTable = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[1 << HASH_BITS];
+		}
+	};
+
+	private Lzf() {
+		// prevent instantiation
+	}
+
+	/**
+	 * Compresses inLength bytes of in starting at inOffset into out starting
+	 * at outOffset. Returns the compressed length or 0 if the compressed
+	 * bytes would not fit in outLength bytes.
+	 * 
+	 * @param in
+	 * @param inOffset
+	 * @param inLength
+	 * @param out
+	 * @param outOffset
+	 * @param outLength
+	 * @return
+	 */
+	static int compress(byte[] in, int inOffset, int inLength, byte[] out,
+			int outOffset, int outLength) {
+		int[] table = hashTable.get();
+		int ip = inOffset;
+		int end = inOffset + inLength;
+		int outEnd = outOffset + outLength;
+		// reserve the control byte of the first literal run
+		int op = outOffset + 1;
+		int literals = 0;
+		while (ip < end) {
+			if (ip < end - 2) {
+				int h = hash(in, ip);
+				int ref = table[h] - 1;
+				table[h] = ip + 1;
+				int distance = ip - ref - 1;
+				if (ref >= inOffset && ref < ip && distance < MAX_DISTANCE
+						&& in[ref] == in[ip] && in[ref + 1] == in[ip + 1]
+						&& in[ref + 2] == in[ip + 2]) {
+					int maxLength = Math.min(end - ip, MAX_MATCH);
+					int length = 3;
+					while (length < maxLength && in[ref + length] == in[ip + length])
+						length++;
+					// close the literal run or drop its unused control byte
+					if (literals > 0)
+						out[op - literals - 1] = (byte) (literals - 1);
+					else
+						op--;
+					if (op + 4 > outEnd)
+						return 0;
+					int len = length - 2;
+					if (len < 7)
+						out[op++] = (byte) ((distance >> 8) + (len << 5));
+					else {
+						out[op++] = (byte) ((distance >> 8) + (7 << 5));
+						out[op++] = (byte) (len - 7);
+					}
+					out[op++] = (byte) distance;
+					ip += length;
+					literals = 0;
+					op++;
+					continue;
+				}
+			}
+			if (op >= outEnd)
+				return 0;
+			out[op++] = in[ip++];
+			literals++;
+			if (literals == MAX_LITERAL) {
+				out[op - literals - 1] = (byte) (literals - 1);
+				literals = 0;
+				op++;
+			}
+		}
+		if (literals > 0)
+			out[op - literals - 1] = (byte) (literals - 1);
+		else
+			op--;
+		return op - outOffset;
+	}
+
+	private static int hash(byte[] in, int i) {
+		int v = (in[i] & 0xff) << 16 | (in[i + 1] & 0xff) << 8
+				| (in[i + 2] & 0xff);
+		return (v * 0x9E3779B1) >>> (32 - HASH_BITS);
+	}
+
+	/**
+	 * Decompresses inLength bytes of in starting at inOffset into exactly
+	 * outLength bytes of out starting at outOffset. Throws
+	 * {@link CorruptRecordException} if the input is not valid.
+	 * 
+	 * @param in
+	 * @param inOffset
+	 * @param inLength
+	 * @param out
+	 * @param outOffset
+	 * @param outLength
+	 */
+	static void decompress(byte[] in, int inOffset, int inLength, byte[] out,
+			int outOffset, int outLength) {
+		int ip = inOffset;
+		int end = inOffset + inLength;
+		int op = outOffset;
+		int outEnd = outOffset + outLength;
+		try {
+			while (ip < end) {
+				int control = in[ip++] & 0xff;
+				if (control < MAX_LITERAL) {
+					int length = control + 1;
+					if (op + length > outEnd || ip + length > end)
+						throw new CorruptRecordException(
+								"literal run overflows");
+					System.arraycopy(in, ip, out, op, length);
+					ip += length;
+					op += length;
+				} else {
+					int length = control >> 5;
+					if (ip + (length == 7 ? 2 : 1) > end)
+						throw new CorruptRecordException(
+								"truncated back reference");
+					if (length == 7)
+						length += in[ip++] & 0xff;
+					length += 2;
+					int ref = op - ((control & 0x1f) << 8)
+							- (in[ip++] & 0xff) - 1;
+					if (ref < outOffset || op + length > outEnd)
+						throw new CorruptRecordException(
+								"back reference out of range");
+					// byte by byte because the source may overlap the target
+					for (int i = 0; i < length; i++)
+						out[op++] = out[ref++];
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new CorruptRecordException("truncated compressed data");
+		}
+		if (op != outEnd)
+			throw new CorruptRecordException("decompressed " + (op - outOffset)
+					+ " bytes, expected " + outLength);
+	}
+}
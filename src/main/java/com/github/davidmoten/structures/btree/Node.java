@@ -3,13 +3,11 @@ package com.github.davidmoten.structures.btree;
 import static com.google.common.base.Optional.absent;
 import static com.google.common.base.Optional.of;
 
-import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.OutputStream;
-import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.List;
 
@@ -17,7 +15,6 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
-import com.google.common.io.CountingInputStream;
 
 /**
  * A leaf or non-leaf (internal) node on a B-Tree.
@@ -26,9 +23,20 @@ import com.google.common.io.CountingInputStream;
  * 
  * @param <T>
  */
-class Node<T extends Serializable & Comparable<T>> implements Iterable<T> {
+class Node<T extends Comparable<T>> implements Iterable<T> {
 
 	static final int CHILD_ABSENT = -1;
+	static final byte FLAG_ROOT = 1;
+
+	/**
+	 * Set if the record holds the number of values under each child.
+	 */
+	static final byte FLAG_COUNTS = 2;
+
+	/**
+	 * Set if the record holds the {@link Summarizer} summary of each child.
+	 */
+	static final byte FLAG_SUMMARIES = 4;
 	private Optional<Key<T>> first = Optional.absent();
 	private final NodeLoader<T> loader;
 
@@ -87,7 +95,15 @@ class Node<T extends Serializable & Comparable<T>> implements Iterable<T> {
 			Optional<Key<T>> previous = absent();
 			boolean added = false;
 			while (k.isPresent()) {
-				if (key.value().compareTo(k.get().value()) < 0) {
+				// a key split from a child goes where the child was cleared
+				// (see clearChild) which, with equal values, is not always
+				// the position of the key by value
+				boolean before;
+				if (key.hasChild())
+					before = !k.get().getLeft().isPresent();
+				else
+					before = key.value().compareTo(k.get().value()) < 0;
+				if (before) {
 					Key<T> newKey = key.nodeNext(ref, k);
 					if (k == first)
 						first = of(newKey);
@@ -219,6 +235,11 @@ class Node<T extends Serializable & Comparable<T>> implements Iterable<T> {
 	void replaceKeySide(int keyIndex, Side side, NodeRef<T> replaceWith) {
 		Key<T> k = key(keyIndex);
 		k.setSide(side, of(replaceWith));
+		// adjacent keys share the child so replace it on the neighbour too
+		if (side.equals(Side.LEFT) && keyIndex > 0)
+			key(keyIndex - 1).setRight(of(replaceWith));
+		else if (side.equals(Side.RIGHT) && k.next().isPresent())
+			k.next().get().setLeft(of(replaceWith));
 	}
 
 	private NodeRef<T> copy() {
@@ -278,6 +299,16 @@ class Node<T extends Serializable & Comparable<T>> implements Iterable<T> {
 		return keyNodes.add(child1).add(child2).key(medianKey);
 	}
 
+	/**
+	 * Returns the length in bytes of the record of this node in storage (0 if
+	 * not saved).
+	 * 
+	 * @return
+	 */
+	int getRecordLength() {
+		return ref.getRecordLength();
+	}
+
 	/**
 	 * Returns true if and only this node is a leaf node (has no children).
 	 * Because of the properties of a b-tree only have to check if the first key
@@ -343,6 +374,26 @@ class Node<T extends Serializable & Comparable<T>> implements Iterable<T> {
 		return medianNumber;
 	}
 
+	/**
+	 * Returns the child that an add of t to this node descends to. Returns
+	 * absent if this is a leaf node.
+	 * 
+	 * @param t
+	 * @return
+	 */
+	Optional<NodeRef<T>> child(T t) {
+		Optional<Key<T>> last = absent();
+		for (Key<T> key : keys()) {
+			if (t.compareTo(key.value()) < 0)
+				return key.getLeft();
+			last = of(key);
+		}
+		if (last.isPresent())
+			return last.get().getRight();
+		else
+			return absent();
+	}
+
 	Optional<T> find(T t) {
 		boolean isLeaf = isLeafNode();
 		Optional<Key<T>> key = first;
@@ -373,35 +424,6 @@ class Node<T extends Serializable & Comparable<T>> implements Iterable<T> {
 		throw new RuntimeException("not implemented");
 	}
 
-	long delete(T t) {
-		int count = 0;
-		boolean isLeaf = isLeafNode();
-		Optional<Key<T>> last = Optional.absent();
-		for (Key<T> key : keys()) {
-			int compare = t.compareTo(key.value());
-			if (compare < 0) {
-				if (isLeaf)
-					return 0;
-				else
-					return key.getLeft().get().delete(t);
-			} else if (compare == 0 && !key.isDeleted()) {
-				count++;
-				key.setDeleted(true);
-			}
-			last = of(key);
-		}
-		if (count > 0)
-			return count;
-		if (!isLeaf && last.isPresent()) {
-			Optional<NodeRef<T>> right = last.get().getRight();
-			if (right.isPresent())
-				return right.get().delete(t);
-			else
-				return 0;
-		} else
-			return 0;
-	}
-
 	@VisibleForTesting
 	List<? extends Key<T>> getKeys() {
 		List<Key<T>> list = Lists.newArrayList();
@@ -452,13 +474,179 @@ class Node<T extends Serializable & Comparable<T>> implements Iterable<T> {
 		return builder.toString();
 	}
 
-	long load(InputStream is) {
+	/**
+	 * Reads the node from the current position of the buffer.
+	 * 
+	 * @param bb
+	 * @param serializer
+	 */
+	void load(ByteBuffer bb, Serializer<T> serializer) {
+		load(bb, serializer, Augmentation.<T> none());
+	}
+
+	/**
+	 * Reads the node from the current position of the buffer and sets the
+	 * summaries of its children if the record holds them.
+	 * 
+	 * @param bb
+	 * @param serializer
+	 * @param augmentation
+	 */
+	void load(ByteBuffer bb, Serializer<T> serializer,
+			Augmentation<T> augmentation) {
+		byte flags = bb.get();
+		isRoot = (flags & FLAG_ROOT) != 0;
+		int count = bb.getInt();
+		Optional<Key<T>> previous = absent();
+		Optional<Key<T>> firstKey = absent();
+		for (int i = 0; i < count; i++) {
+			T t = serializer.read(bb);
+			long leftFileNumber = bb.getLong();
+			long left = bb.getLong();
+			long rightFileNumber = bb.getLong();
+			long right = bb.getLong();
+			boolean deleted = bb.get() != 0;
+			Key<T> key = new Key<T>(t);
+			key.setLeft(child(previous, leftFileNumber, left));
+			key.setRight(child(Optional.<Key<T>> absent(), rightFileNumber,
+					right));
+			key.setDeleted(deleted);
+			if (!firstKey.isPresent())
+				firstKey = of(key);
+			if (previous.isPresent())
+				previous.get().setNext(of(key));
+			previous = of(key);
+		}
+		first = firstKey;
+		if (augmentation.isEnabled() && (flags & FLAG_COUNTS) != 0)
+			for (NodeRef<T> child : children()) {
+				Optional<Summary> summary = augmentation.read(bb, flags);
+				if (summary.isPresent())
+					child.setSummary(summary.get());
+			}
+	}
+
+	/**
+	 * Returns the children of this node in order (empty if a leaf).
+	 * Adjacent keys share a child so there is one more child than keys.
+	 * 
+	 * @return
+	 */
+	List<NodeRef<T>> children() {
+		List<NodeRef<T>> children = Lists.newArrayList();
+		for (Key<T> key : keys())
+			if (key.getLeft().isPresent()) {
+				children.add(key.getLeft().get());
+				if (!key.next().isPresent())
+					children.add(key.getRight().get());
+			}
+		return children;
+	}
+
+	/**
+	 * Returns a reference to the child saved at the given position (absent
+	 * if position is {@link #CHILD_ABSENT}). If the previous key has the same
+	 * right child its reference is returned so that, as in a node built in
+	 * memory, adjacent keys share the reference to their common child.
+	 * 
+	 * @param previous
+	 * @param fileNumber
+	 * @param position
+	 * @return
+	 */
+	private Optional<NodeRef<T>> child(Optional<Key<T>> previous,
+			long fileNumber, long position) {
+		if (position == CHILD_ABSENT)
+			return absent();
+		Position p = new Position(fileNumber, position);
+		if (previous.isPresent() && previous.get().getRight().isPresent()) {
+			NodeRef<T> shared = previous.get().getRight().get();
+			if (p.equals(shared.getPosition().orNull()))
+				return of(shared);
+		}
+		return of(new NodeRef<T>(loader, of(p), degree, false));
+	}
+
+	/**
+	 * Writes the node to out. The format is
+	 * 
+	 * <pre>
+	 * byte flags (root)
+	 * int  number of keys
+	 * for each key:
+	 *   key (as written by the serializer)
+	 *   long left child file number, long left child position
+	 *   long right child file number, long right child position
+	 *   byte deleted
+	 * </pre>
+	 * 
+	 * Absent children are written as {@link #CHILD_ABSENT}.
+	 * 
+	 * @param out
+	 * @param serializer
+	 * @throws IOException
+	 */
+	void save(DataOutput out, Serializer<T> serializer) throws IOException {
+		save(out, serializer, Augmentation.<T> none());
+	}
+
+	/**
+	 * Writes the node to out as for {@link #save(DataOutput, Serializer)}
+	 * followed, if the augmentation is enabled, by the summary of each child
+	 * in order (flagged by {@link #FLAG_COUNTS} and {@link #FLAG_SUMMARIES}).
+	 * The summary of this node is then cached on its reference for its
+	 * parent.
+	 * 
+	 * @param out
+	 * @param serializer
+	 * @param augmentation
+	 * @throws IOException
+	 */
+	void save(DataOutput out, Serializer<T> serializer,
+			Augmentation<T> augmentation) throws IOException {
+		int flags = isRoot ? FLAG_ROOT : 0;
+		if (augmentation.isEnabled())
+			flags |= augmentation.flags();
+		out.writeByte(flags);
+		out.writeInt(countKeys());
+		for (Key<T> key : keys()) {
+			serializer.write(out, key.value());
+			writePosition(out, key.getLeft());
+			writePosition(out, key.getRight());
+			out.writeByte(key.isDeleted() ? 1 : 0);
+		}
+		if (augmentation.isEnabled()) {
+			for (NodeRef<T> child : children())
+				augmentation.write(out, child.summary(augmentation));
+			ref.summary(augmentation);
+		}
+	}
+
+	private static <T extends Comparable<T>> void writePosition(
+			DataOutput out, Optional<NodeRef<T>> child) throws IOException {
+		if (child.isPresent()) {
+			Position position = child.get().getPosition().get();
+			out.writeLong(position.getFileNumber());
+			out.writeLong(position.getPosition());
+		} else {
+			out.writeLong(CHILD_ABSENT);
+			out.writeLong(CHILD_ABSENT);
+		}
+	}
+
+	/**
+	 * Reads a node written by <code>ObjectOutputStream</code> by earlier
+	 * versions and returns the length in bytes of its record.
+	 * 
+	 * @param is
+	 * @return
+	 */
+	long loadLegacy(InputStream is) {
 		try {
-			CountingInputStream cis = new CountingInputStream(is);
 			@SuppressWarnings("resource")
-			ObjectInputStream ois = new ObjectInputStream(cis);
+			ObjectInputStream ois = new ObjectInputStream(is);
 			// read length in bytes of this node
-			ois.readLong();
+			long length = ois.readLong();
 			// read canDelete
 			ois.readBoolean();
 			isRoot = ois.readBoolean();
@@ -474,12 +662,9 @@ class Node<T extends Serializable & Comparable<T>> implements Iterable<T> {
 				long right = ois.readLong();
 				boolean deleted = ois.readBoolean();
 				Key<T> key = new Key<T>(t);
-				if (left != CHILD_ABSENT)
-					key.setLeft(of(new NodeRef<T>(loader, of(new Position(
-							leftFileNumber, left)), degree, false)));
-				if (right != CHILD_ABSENT)
-					key.setRight(of(new NodeRef<T>(loader, of(new Position(
-							rightFileNumber, right)), degree, false)));
+				key.setLeft(child(previous, leftFileNumber, left));
+				key.setRight(child(Optional.<Key<T>> absent(),
+						rightFileNumber, right));
 				key.setDeleted(deleted);
 				key.setNext(Optional.<Key<T>> absent());
 				if (!firstKey.isPresent())
@@ -492,7 +677,7 @@ class Node<T extends Serializable & Comparable<T>> implements Iterable<T> {
 			// don't close the input stream to avoid closing the underlying
 			// stream
 			first = firstKey;
-			return cis.getCount();
+			return length;
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		} catch (ClassNotFoundException e) {
@@ -500,67 +685,6 @@ class Node<T extends Serializable & Comparable<T>> implements Iterable<T> {
 		}
 	}
 
-	void save(OutputStream os) {
-
-		try {
-			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-			ObjectOutputStream oos = new ObjectOutputStream(bytes);
-			oos.writeLong(0L);
-			// flush needed so can overwrite above value
-			// this is so that the oos terminates the existing block_data record
-			// here instead of jamming stuff together into byes efficiently
-			// (normally the next termination of block data would occur on the
-			// next call of writeObject below
-			oos.flush();
-			// canDelete=false
-			oos.writeBoolean(false);
-			oos.flush();
-			oos.writeBoolean(isRoot);
-			oos.writeInt(countKeys());
-			for (Key<T> key : keys()) {
-				oos.writeObject(key.value());
-				if (key.getLeft().isPresent()) {
-					oos.writeLong(key.getLeft().get().getPosition().get()
-							.getFileNumber());
-					oos.writeLong(key.getLeft().get().getPosition().get()
-							.getPosition());
-				} else {
-					oos.writeLong(CHILD_ABSENT);
-					oos.writeLong(CHILD_ABSENT);
-				}
-				if (key.getRight().isPresent()) {
-					oos.writeLong(key.getRight().get().getPosition().get()
-							.getFileNumber());
-					oos.writeLong(key.getRight().get().getPosition().get()
-							.getPosition());
-				} else {
-					oos.writeLong(CHILD_ABSENT);
-					oos.writeLong(CHILD_ABSENT);
-				}
-				oos.writeBoolean(key.isDeleted());
-			}
-			oos.close();
-			byte[] b = bytes.toByteArray();
-			overwriteLength(b);
-			os.write(b);
-			os.close();
-		} catch (IOException e) {
-			throw new RuntimeException(e);
-		}
-	}
-
-	private void overwriteLength(byte[] b) {
-		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-		try {
-			ObjectOutputStream oos = new ObjectOutputStream(bytes);
-			oos.writeLong(b.length);
-			oos.close();
-			System.arraycopy(bytes.toByteArray(), 0, b, 0, bytes.size());
-		} catch (IOException e) {
-			throw new RuntimeException(e);
-		}
-	}
-
 	String abbr2() {
 		StringBuffer s = new StringBuffer();
 		for (Key<T> key : keys()) {
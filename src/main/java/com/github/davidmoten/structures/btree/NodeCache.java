@@ -1,40 +1,130 @@
 package com.github.davidmoten.structures.btree;
 
-import java.io.Serializable;
-
+import com.google.common.base.Optional;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.RemovalListener;
-import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
 
-public class NodeCache<T extends Serializable & Comparable<T>> {
+/**
+ * Holds decoded nodes that have been saved to storage keyed by their
+ * position. A saved node is only referenced by this cache (its
+ * {@link NodeRef} does not keep it) so evicting a node releases its memory.
+ * 
+ * @author dxm
+ * 
+ * @param <T>
+ */
+public class NodeCache<T extends Comparable<T>> {
 
-	private final Cache<Long, NodeRef<T>> nodeCache;
+	/**
+	 * Estimated heap bytes of a node excluding its keys.
+	 */
+	private static final int NODE_OVERHEAD_BYTES = 64;
 
-	public NodeCache(long maxNodesInMemory) {
-		nodeCache = createNodeCache(maxNodesInMemory);
-		System.out.println("built NodeCache of size " + maxNodesInMemory);
-	}
+	/**
+	 * Estimated heap bytes of a key excluding its value (the key object, its
+	 * optional fields and its child references).
+	 */
+	private static final int KEY_OVERHEAD_BYTES = 128;
 
-	private Cache<Long, NodeRef<T>> createNodeCache(long maxNodesInMemory) {
-		return CacheBuilder.newBuilder().maximumSize(maxNodesInMemory)
-				.removalListener(createRemovalListener()).build();
+	private final Cache<Position, Node<T>> cache;
+
+	private NodeCache(long maxWeight, Weigher<Position, Node<T>> weigher,
+			CachePolicy policy) {
+		if (policy == CachePolicy.TWO_QUEUE)
+			cache = new TwoQueueCache<Position, Node<T>>(maxWeight, weigher);
+		else
+			cache = CacheBuilder.newBuilder().maximumWeight(maxWeight)
+					.weigher(weigher).recordStats().build();
 	}
 
-	private RemovalListener<Long, NodeRef<T>> createRemovalListener() {
-		return new RemovalListener<Long, NodeRef<T>>() {
+	/**
+	 * Returns a cache that holds at most maxNodes nodes.
+	 * 
+	 * @param maxNodes
+	 * @param policy
+	 * @return
+	 */
+	static <T extends Comparable<T>> NodeCache<T> maxNodes(long maxNodes,
+			CachePolicy policy) {
+		return new NodeCache<T>(maxNodes, new Weigher<Position, Node<T>>() {
+			@Override
+			public int weigh(Position position, Node<T> node) {
+				return 1;
+			}
+		}, policy);
+	}
 
+	/**
+	 * Returns a cache that holds nodes up to an estimated maxBytes of heap.
+	 * 
+	 * @param maxBytes
+	 * @param policy
+	 * @return
+	 */
+	static <T extends Comparable<T>> NodeCache<T> maxBytes(long maxBytes,
+			CachePolicy policy) {
+		return new NodeCache<T>(maxBytes, new Weigher<Position, Node<T>>() {
 			@Override
-			public void onRemoval(
-					RemovalNotification<Long, NodeRef<T>> notification) {
-				notification.getValue().unload();
+			public int weigh(Position position, Node<T> node) {
+				return estimatedSize(node);
 			}
-		};
+		}, policy);
+	}
+
+	/**
+	 * Returns the estimated heap bytes used by the node. Key values are
+	 * assumed to take about as much heap as their bytes in the node record.
+	 * 
+	 * @param node
+	 * @return
+	 */
+	static <T extends Comparable<T>> int estimatedSize(Node<T> node) {
+		return NODE_OVERHEAD_BYTES + node.countKeys() * KEY_OVERHEAD_BYTES
+				+ node.getRecordLength();
+	}
+
+	Optional<Node<T>> get(Position position) {
+		return Optional.fromNullable(cache.getIfPresent(position));
+	}
+
+	/**
+	 * Returns true if the node at the position is held, without recording a
+	 * hit or miss.
+	 * 
+	 * @param position
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	boolean contains(Position position) {
+		if (cache instanceof TwoQueueCache)
+			return ((TwoQueueCache<Position, Node<T>>) cache)
+					.containsKey(position);
+		else
+			return cache.asMap().containsKey(position);
+	}
+
+	void put(Position position, Node<T> node) {
+		cache.put(position, node);
+	}
+
+	/**
+	 * Returns the hit, miss and eviction counts of this cache.
+	 * 
+	 * @return
+	 */
+	public CacheStats stats() {
+		return cache.stats();
 	}
 
-	// TODO use filenumber in position
-	public void put(long position, NodeRef<T> node) {
-		nodeCache.put(position, node);
+	/**
+	 * Returns the number of nodes held.
+	 * 
+	 * @return
+	 */
+	public long size() {
+		return cache.size();
 	}
 
 }
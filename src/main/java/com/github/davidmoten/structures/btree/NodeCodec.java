@@ -0,0 +1,436 @@
+package com.github.davidmoten.structures.btree;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Writes and reads the records in {@link Storage} that hold the nodes of a
+ * b-tree.
+ * 
+ * <p>
+ * A record is
+ * </p>
+ * 
+ * <pre>
+ * int  length of the record in bytes (including this field)
+ * byte format version
+ * int  CRC32 of the rest of the record
+ * byte compression (0 raw, 1 LZF)
+ * if raw:        node (see {@link Node#save(java.io.DataOutput, Serializer, Augmentation)})
+ * if compressed: int length of the node, compressed node
+ * </pre>
+ * 
+ * <p>
+ * Records of format version 2 (no compression byte) and version 1 (no
+ * checksum either) are still readable.
+ * </p>
+ * 
+ * <p>
+ * Records written by <code>ObjectOutputStream</code> in earlier versions of
+ * this library start with the java serialization stream magic number and are
+ * still readable (the length field of a current record is positive so its
+ * first byte can never equal the first byte of the magic number).
+ * </p>
+ * 
+ * @author dxm
+ * 
+ * @param <T>
+ */
+class NodeCodec<T extends Comparable<T>> {
+
+	static final byte VERSION = 3;
+
+	/**
+	 * The format version of records without a compression byte.
+	 */
+	private static final byte VERSION_UNCOMPRESSED = 2;
+
+	/**
+	 * The format version of records without a checksum.
+	 */
+	private static final byte VERSION_UNCHECKED = 1;
+
+	private static final byte CODEC_RAW = 0;
+
+	private static final byte CODEC_LZF = 1;
+
+	/**
+	 * Nodes shorter than this are never compressed.
+	 */
+	private static final int MIN_COMPRESS_LENGTH = 64;
+
+	/**
+	 * The number of bytes before the node in a record.
+	 */
+	static final int HEADER_LENGTH = 9;
+
+	/**
+	 * The number of bytes before the node in a record without a checksum.
+	 */
+	private static final int HEADER_LENGTH_UNCHECKED = 5;
+
+	/**
+	 * The first byte of a java serialization stream (0xACED).
+	 */
+	private static final byte LEGACY_FIRST_BYTE = (byte) 0xAC;
+
+	/**
+	 * The bytes at the start of a legacy record that hold its length: the
+	 * stream header (4 bytes), a block data header (2 bytes) then the length
+	 * as a long.
+	 */
+	private static final int LEGACY_PREFIX_LENGTH = 14;
+
+	/**
+	 * Holds the compressed bytes of a node while encoding.
+	 */
+	private static final ThreadLocal<byte[]> compressBuffer = new ThreadLocal<byte[]>();
+
+	/**
+	 * Holds a record read from a stream or copied from a buffer without an
+	 * accessible array.
+	 */
+	private static final ThreadLocal<byte[]> readBuffer = new ThreadLocal<byte[]>();
+
+	/**
+	 * Holds the decompressed bytes of a node while decoding.
+	 */
+	private static final ThreadLocal<byte[]> inflateBuffer = new ThreadLocal<byte[]>();
+
+	private final Serializer<T> serializer;
+
+	private final Compression compression;
+
+	/**
+	 * The summaries of children written after the keys of each node.
+	 */
+	private final Augmentation<T> augmentation;
+
+	/**
+	 * Checksums are verified for one in every verifyEvery records decoded
+	 * (never if 0).
+	 */
+	private final int verifyEvery;
+
+	/**
+	 * Counts decoded records to sample checksum verification.
+	 */
+	private final AtomicLong decoded = new AtomicLong();
+
+	NodeCodec(Serializer<T> serializer) {
+		this(serializer, 1, Compression.NONE, Augmentation.<T> none());
+	}
+
+	NodeCodec(Serializer<T> serializer, int verifyEvery,
+			Compression compression, Augmentation<T> augmentation) {
+		Preconditions.checkArgument(verifyEvery >= 0,
+				"verifyEvery cannot be negative");
+		this.serializer = serializer;
+		this.verifyEvery = verifyEvery;
+		this.compression = compression;
+		this.augmentation = augmentation;
+	}
+
+	Serializer<T> getSerializer() {
+		return serializer;
+	}
+
+	/**
+	 * Appends the record for the node to the buffer. Returns the length of the
+	 * record in bytes.
+	 * 
+	 * @param node
+	 * @param buffer
+	 * @return
+	 */
+	int encode(NodeRef<T> node, RecordBuffer buffer) {
+		int start = buffer.size();
+		try {
+			DataOutputStream out = new DataOutputStream(buffer);
+			// placeholder for the length
+			out.writeInt(0);
+			out.writeByte(VERSION);
+			// placeholder for the checksum
+			out.writeInt(0);
+			out.writeByte(CODEC_RAW);
+			node.save(out, serializer, augmentation);
+			out.flush();
+			if (compression == Compression.LZF)
+				compress(buffer, start + HEADER_LENGTH + 1);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		int length = buffer.size() - start;
+		buffer.putInt(start, length);
+		buffer.putInt(start + 5, buffer.crc32(start + HEADER_LENGTH, length
+				- HEADER_LENGTH));
+		return length;
+	}
+
+	/**
+	 * Replaces the node bytes from nodeStart to the end of the buffer with
+	 * their compressed form if that is smaller.
+	 * 
+	 * @param buffer
+	 * @param nodeStart
+	 * @throws IOException
+	 */
+	private static void compress(RecordBuffer buffer, int nodeStart)
+			throws IOException {
+		int length = buffer.size() - nodeStart;
+		if (length < MIN_COMPRESS_LENGTH)
+			return;
+		// must save at least the bytes taken by the node length
+		int maxLength = length - 5;
+		byte[] compressed = buffer(compressBuffer, maxLength);
+		int n = Lzf.compress(buffer.array(), nodeStart, length, compressed, 0,
+				maxLength);
+		if (n == 0)
+			return;
+		buffer.truncate(nodeStart - 1);
+		DataOutputStream out = new DataOutputStream(buffer);
+		out.writeByte(CODEC_LZF);
+		out.writeInt(length);
+		out.write(compressed, 0, n);
+		out.flush();
+	}
+
+	/**
+	 * Returns the thread's buffer held by local, replaced by a bigger one if
+	 * it is shorter than size.
+	 * 
+	 * @param local
+	 * @param size
+	 * @return
+	 */
+	private static byte[] buffer(ThreadLocal<byte[]> local, int size) {
+		byte[] b = local.get();
+		if (b == null || b.length < size) {
+			b = new byte[Math.max(size, b == null ? 1024 : 2 * b.length)];
+			local.set(b);
+		}
+		return b;
+	}
+
+	/**
+	 * Reads the record starting at the current position of the buffer into
+	 * the node and returns the length of the record. The position of the
+	 * buffer is left just after the record. Throws
+	 * {@link CorruptRecordException} if the record is sampled for
+	 * verification and its checksum does not match.
+	 * 
+	 * @param bb
+	 * @param node
+	 * @return
+	 */
+	int decode(ByteBuffer bb, Node<T> node) {
+		if (isLegacy(bb))
+			return decodeLegacy(bb, node);
+		int start = bb.position();
+		int length = readHeader(bb, verifyEvery > 0
+				&& (verifyEvery == 1 || decoded.incrementAndGet()
+						% verifyEvery == 0));
+		if (bb.get(start + 4) == VERSION && bb.get() == CODEC_LZF)
+			node.load(inflate(bb, start + length), serializer, augmentation);
+		else
+			node.load(bb, serializer, augmentation);
+		bb.position(start + length);
+		return length;
+	}
+
+	/**
+	 * Decompresses the node at the current position of the buffer (just
+	 * after the compression byte) that ends at end. The returned buffer is
+	 * reused by the next call on the same thread.
+	 * 
+	 * @param bb
+	 * @param end
+	 * @return
+	 */
+	private static ByteBuffer inflate(ByteBuffer bb, int end) {
+		int length = bb.getInt();
+		int compressedLength = end - bb.position();
+		byte[] in;
+		int offset;
+		if (bb.hasArray()) {
+			in = bb.array();
+			offset = bb.arrayOffset() + bb.position();
+		} else {
+			in = buffer(readBuffer, compressedLength);
+			bb.duplicate().get(in, 0, compressedLength);
+			offset = 0;
+		}
+		if (length < 0)
+			throw new CorruptRecordException("invalid node length " + length);
+		byte[] out = buffer(inflateBuffer, length);
+		Lzf.decompress(in, offset, compressedLength, out, 0, length);
+		return ByteBuffer.wrap(out, 0, length);
+	}
+
+	/**
+	 * Checks the record starting at the current position of the buffer
+	 * without decoding its node (unless the record has no checksum) and
+	 * returns the length of the record. The position of the buffer is left
+	 * just after the record. Throws {@link CorruptRecordException} if the
+	 * record is corrupt.
+	 * 
+	 * @param bb
+	 * @param scratch
+	 *            decoded into if the record has no checksum
+	 * @return
+	 */
+	int verify(ByteBuffer bb, Node<T> scratch) {
+		int start = bb.position();
+		if (isLegacy(bb)
+				|| (bb.remaining() > 4 && bb.get(start + 4) == VERSION_UNCHECKED)) {
+			try {
+				return decode(bb, scratch);
+			} catch (RuntimeException e) {
+				throw new CorruptRecordException("cannot decode record at "
+						+ start + ": " + e);
+			}
+		}
+		int length = readHeader(bb, true);
+		bb.position(start + length);
+		return length;
+	}
+
+	/**
+	 * Reads the header of the record at the current position of the buffer,
+	 * verifies the checksum if requested and returns the length of the
+	 * record. The position of the buffer is left just after the header.
+	 * 
+	 * @param bb
+	 * @param verify
+	 * @return
+	 */
+	private static int readHeader(ByteBuffer bb, boolean verify) {
+		int start = bb.position();
+		if (bb.remaining() < HEADER_LENGTH_UNCHECKED)
+			throw new CorruptRecordException("truncated record at " + start);
+		int length = bb.getInt();
+		byte version = bb.get();
+		if (version == VERSION_UNCHECKED)
+			checkLength(start, length, HEADER_LENGTH_UNCHECKED, bb.limit());
+		else if (version == VERSION || version == VERSION_UNCOMPRESSED) {
+			checkLength(start, length, HEADER_LENGTH, bb.limit());
+			int checksum = bb.getInt();
+			if (verify
+					&& checksum != crc32(bb, start + HEADER_LENGTH, length
+							- HEADER_LENGTH))
+				throw new CorruptRecordException("checksum mismatch at "
+						+ start);
+		} else
+			throw new CorruptRecordException("unsupported record version "
+					+ version + " at " + start);
+		return length;
+	}
+
+	private static void checkLength(int start, int length, int headerLength,
+			int limit) {
+		if (length < headerLength || length > limit - start)
+			throw new CorruptRecordException("invalid record length "
+					+ length + " at " + start);
+	}
+
+	private static int crc32(ByteBuffer bb, int offset, int length) {
+		CRC32 crc = new CRC32();
+		if (bb.hasArray())
+			crc.update(bb.array(), bb.arrayOffset() + offset, length);
+		else {
+			byte[] bytes = buffer(readBuffer, length);
+			ByteBuffer b = bb.duplicate();
+			b.position(offset);
+			b.get(bytes, 0, length);
+			crc.update(bytes, 0, length);
+		}
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Reads the record at the current position of the stream into the node
+	 * and returns the length of the record. The stream must support
+	 * {@link InputStream#mark(int)}.
+	 * 
+	 * @param is
+	 * @param node
+	 * @return
+	 * @throws IOException
+	 */
+	int decode(InputStream is, Node<T> node) throws IOException {
+		DataInputStream dis = new DataInputStream(is);
+		is.mark(4);
+		int length = dis.readInt();
+		is.reset();
+		if ((byte) (length >>> 24) == LEGACY_FIRST_BYTE)
+			return (int) node.loadLegacy(is);
+		if (length < HEADER_LENGTH_UNCHECKED)
+			throw new CorruptRecordException("invalid record length " + length);
+		byte[] bytes = buffer(readBuffer, length);
+		dis.readFully(bytes, 0, length);
+		return decode(ByteBuffer.wrap(bytes, 0, length), node);
+	}
+
+	/**
+	 * Returns the length of the record starting at the beginning of the
+	 * buffer given that available bytes of the record have been read into
+	 * the buffer.
+	 * 
+	 * @param bb
+	 * @param available
+	 * @return
+	 */
+	static int recordLength(ByteBuffer bb, int available) {
+		if (available >= 1 && bb.get(0) == LEGACY_FIRST_BYTE) {
+			if (available < LEGACY_PREFIX_LENGTH)
+				throw new CorruptRecordException("truncated legacy record");
+			// the length is the first long written to the object stream
+			return (int) bb.getLong(LEGACY_PREFIX_LENGTH - 8);
+		} else if (available < 4)
+			throw new CorruptRecordException("truncated record");
+		else {
+			int length = bb.getInt(0);
+			if (length < HEADER_LENGTH_UNCHECKED)
+				throw new CorruptRecordException("invalid record length "
+						+ length);
+			return length;
+		}
+	}
+
+	/**
+	 * Returns a buffer of the given size, position 0, for reading a record
+	 * into. The buffer is reused by the next call on the same thread.
+	 * 
+	 * @param size
+	 * @return
+	 */
+	static ByteBuffer readBuffer(int size) {
+		return ByteBuffer.wrap(buffer(readBuffer, size), 0, size);
+	}
+
+	/**
+	 * Returns true if and only if the record at the current position of the
+	 * buffer was written with <code>ObjectOutputStream</code>.
+	 * 
+	 * @param bb
+	 * @return
+	 */
+	static boolean isLegacy(ByteBuffer bb) {
+		return bb.get(bb.position()) == LEGACY_FIRST_BYTE;
+	}
+
+	private int decodeLegacy(ByteBuffer bb, Node<T> node) {
+		int length = (int) node.loadLegacy(new ByteBufferInputStream(bb
+				.slice()));
+		bb.position(bb.position() + length);
+		return length;
+	}
+
+}
@@ -2,19 +2,27 @@ package com.github.davidmoten.structures.btree;
 
 import static com.google.common.base.Optional.of;
 
-import java.io.Serializable;
 import java.util.Deque;
 import java.util.Iterator;
 import java.util.LinkedList;
 
 import com.google.common.base.Optional;
 
-class NodeIterator<T extends Serializable & Comparable<T>> implements
-		Iterator<T> {
+class NodeIterator<T extends Comparable<T>> implements Iterator<T> {
 
 	private final Deque<KeySide<T>> q = new LinkedList<KeySide<T>>();
 
+	/**
+	 * Reads child nodes from storage before the iterator reaches them.
+	 */
+	private final Optional<ReadAhead<T>> readAhead;
+
 	NodeIterator(NodeRef<T> node) {
+		this(node, Optional.<ReadAhead<T>> absent());
+	}
+
+	NodeIterator(NodeRef<T> node, Optional<ReadAhead<T>> readAhead) {
+		this.readAhead = readAhead;
 		goToBottomLeft(of(node), q);
 	}
 
@@ -22,7 +30,31 @@ class NodeIterator<T extends Serializable & Comparable<T>> implements
 		if (node.isPresent() && node.get().getFirst().isPresent()) {
 			Key<T> first = node.get().getFirst().get();
 			q.push(new KeySide<T>(first, Side.TOP));
-			goToBottomLeft(node.get().getFirst().get().getLeft(), q);
+			if (first.getLeft().isPresent())
+				readAhead(first.getLeft(), of(first));
+			goToBottomLeft(first.getLeft(), q);
+		}
+	}
+
+	/**
+	 * Schedules reads of the child about to be visited and of the right
+	 * children of the following keys of the same node, up to the read-ahead
+	 * depth. Children already read or being read are skipped.
+	 * 
+	 * @param child
+	 * @param following
+	 */
+	private void readAhead(Optional<NodeRef<T>> child,
+			Optional<Key<T>> following) {
+		if (!readAhead.isPresent())
+			return;
+		int depth = readAhead.get().getDepth();
+		readAhead.get().schedule(child.get());
+		Optional<Key<T>> k = following;
+		for (int i = 1; i < depth && k.isPresent(); i++) {
+			if (k.get().getRight().isPresent())
+				readAhead.get().schedule(k.get().getRight().get());
+			k = k.get().next();
 		}
 	}
 
@@ -67,6 +99,8 @@ class NodeIterator<T extends Serializable & Comparable<T>> implements
 				Optional<KeySide<T>> n2 = next(n.get());
 				if (n2.isPresent())
 					q.push(n2.get());
+				readAhead(n.get().getKey().getRight(), n.get().getKey()
+						.next());
 				goToBottomLeft(n.get().getKey().getRight(), q);
 			}
 		}
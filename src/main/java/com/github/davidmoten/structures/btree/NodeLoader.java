@@ -1,8 +1,13 @@
 package com.github.davidmoten.structures.btree;
 
-import java.io.Serializable;
+public interface NodeLoader<T extends Comparable<T>> {
 
-public interface NodeLoader<T extends Serializable & Comparable<T>> {
-
-	void load(NodeRef<T> node);
+	/**
+	 * Returns the node saved at the position of the given reference, from a
+	 * cache or from storage.
+	 * 
+	 * @param node
+	 * @return
+	 */
+	Node<T> load(NodeRef<T> node);
 }
@@ -3,18 +3,26 @@ package com.github.davidmoten.structures.btree;
 import static com.google.common.base.Optional.absent;
 import static com.google.common.base.Optional.of;
 
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.Serializable;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.Iterator;
 import java.util.List;
 
 import com.google.common.base.Optional;
 
-class NodeRef<T extends Serializable & Comparable<T>> {
+class NodeRef<T extends Comparable<T>> {
 
-	private Optional<Position> position;
+	/**
+	 * Volatile because it is set by the write-behind thread when the node is
+	 * saved.
+	 */
+	private volatile Optional<Position> position;
 
+	/**
+	 * The node if not yet saved or if retained after saving or loading (see
+	 * {@link #retain(Node)}). Otherwise the node is obtained from the loader
+	 * on each access.
+	 */
 	private Optional<Node<T>> node = Optional.absent();
 	private final NodeLoader<T> loader;
 
@@ -22,6 +30,23 @@ class NodeRef<T extends Serializable & Comparable<T>> {
 
 	private final boolean isRoot;
 
+	/**
+	 * The length in bytes of the record in storage (0 until saved or
+	 * loaded).
+	 */
+	private volatile int recordLength;
+
+	/**
+	 * If true the node is kept once saved or loaded (see {@link Pinning}).
+	 */
+	private volatile boolean pinned;
+
+	/**
+	 * The summary of the subtree if known (see {@link Augmentation}).
+	 * Cleared when the node is changed.
+	 */
+	private volatile Optional<Summary> summary = absent();
+
 	NodeRef(NodeLoader<T> nodeListener, Optional<Position> position,
 			int degree, boolean isRoot) {
 		this.loader = nodeListener;
@@ -31,23 +56,66 @@ class NodeRef<T extends Serializable & Comparable<T>> {
 	}
 
 	synchronized Node<T> node() {
-		if (!node.isPresent()) {
-			if (position.isPresent()) {
-				load();
-			} else {
-				node = of(new Node<T>(loader, this, isRoot));
-			}
+		if (node.isPresent())
+			return node.get();
+		else if (position.isPresent())
+			return loader.load(this);
+		else {
+			node = of(new Node<T>(loader, this, isRoot));
+			return node.get();
 		}
-		return node.get();
 	}
 
-	void load(InputStream is) {
-		node.get().load(is);
+	/**
+	 * Keeps a strong reference to the node (used when there is no cache to
+	 * hold saved nodes).
+	 * 
+	 * @param node
+	 */
+	synchronized void retain(Node<T> node) {
+		this.node = of(node);
+	}
+
+	/**
+	 * Drops the reference to the node once it has been saved so that only a
+	 * cache holds it.
+	 */
+	synchronized void release() {
+		if (position.isPresent() && !pinned)
+			node = absent();
+	}
+
+	/**
+	 * Keeps the node from now on (loading it if required).
+	 */
+	synchronized void pin() {
+		node = of(node());
+		pinned = true;
 	}
 
-	private void load() {
-		node = of(new Node<T>(loader, this, isRoot));
-		loader.load(this);
+	/**
+	 * Stops keeping the node once it has been released (see
+	 * {@link #release()}).
+	 */
+	synchronized void unpin() {
+		pinned = false;
+	}
+
+	/**
+	 * Returns true if this reference holds its node.
+	 * 
+	 * @return
+	 */
+	synchronized boolean isLoaded() {
+		return node.isPresent();
+	}
+
+	boolean isPinned() {
+		return pinned;
+	}
+
+	boolean isRootRef() {
+		return isRoot;
 	}
 
 	Optional<T> find(T t) {
@@ -58,16 +126,13 @@ class NodeRef<T extends Serializable & Comparable<T>> {
 		return node().findAll(t);
 	}
 
-	long delete(T t) {
-		return node().delete(t);
-	}
-
 	List<? extends Key<T>> getKeys() {
 		return node().getKeys();
 	}
 
 	void setFirst(Optional<Key<T>> first) {
 		node().setFirst(first);
+		summary = absent();
 	}
 
 	Optional<Key<T>> getFirst() {
@@ -102,11 +167,6 @@ class NodeRef<T extends Serializable & Comparable<T>> {
 		return position;
 	}
 
-	void unload() {
-		// System.out.println("unloaded " + position);
-		node = absent();
-	}
-
 	KeyNodes<T> add(KeyNodes<T> keyNodes) {
 		return node().add(keyNodes);
 	}
@@ -114,6 +174,7 @@ class NodeRef<T extends Serializable & Comparable<T>> {
 	void replaceKeySide(int keyIndex, Side side,
 			NodeRef<T> lastNodeAddedToSaveQueue) {
 		node().replaceKeySide(keyIndex, side, lastNodeAddedToSaveQueue);
+		summary = absent();
 	}
 
 	KeyNodes<T> addToThisLevel(KeyNodes<T> keyNodes) {
@@ -124,14 +185,47 @@ class NodeRef<T extends Serializable & Comparable<T>> {
 		return node().keys();
 	}
 
-	void save(OutputStream os) {
-		node().save(os);
+	void save(DataOutput out, Serializer<T> serializer,
+			Augmentation<T> augmentation) throws IOException {
+		node().save(out, serializer, augmentation);
+	}
+
+	/**
+	 * Returns the summary of the subtree, computing it from the node (and
+	 * the summaries of its children) if not known.
+	 * 
+	 * @param augmentation
+	 * @return
+	 */
+	Summary summary(Augmentation<T> augmentation) {
+		Optional<Summary> s = summary;
+		if (!s.isPresent()) {
+			s = of(augmentation.summarize(this));
+			summary = s;
+		}
+		return s.get();
+	}
+
+	void setSummary(Summary summary) {
+		this.summary = of(summary);
 	}
 
 	void setPosition(Optional<Position> position) {
 		this.position = position;
 	}
 
+	int getRecordLength() {
+		return recordLength;
+	}
+
+	void setRecordLength(int recordLength) {
+		this.recordLength = recordLength;
+	}
+
+	Optional<NodeRef<T>> child(T t) {
+		return node().child(t);
+	}
+
 	int countKeys() {
 		return node().countKeys();
 	}
@@ -141,11 +235,13 @@ class NodeRef<T extends Serializable & Comparable<T>> {
 	}
 
 	KeyNodes<T> splitHere(KeyNodes<T> keyNodes) {
+		summary = absent();
 		return node().splitHere(keyNodes);
 	}
 
 	void insertHere(Key<T> key) {
 		node().insertHere(key);
+		summary = absent();
 	}
 
 	Key<T> key(int i) {
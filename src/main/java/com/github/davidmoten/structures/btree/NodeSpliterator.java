@@ -0,0 +1,166 @@
+package com.github.davidmoten.structures.btree;
+
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedList;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+import com.google.common.base.Optional;
+
+/**
+ * A {@link Spliterator} over the values of a b-tree that splits at key
+ * boundaries of internal nodes so that whole subtrees go to different
+ * workers of a parallel stream.
+ * 
+ * <p>
+ * The remaining values are a sequence of pieces in order, each a subtree or
+ * a single key. Splitting a single subtree replaces it by its children and
+ * the keys between them; splitting a sequence hands the first half (by
+ * estimated size) to the new spliterator. Advancing expands the first piece
+ * in the same way until it is a key, so nodes are loaded only when reached.
+ * Deleted keys are skipped.
+ * </p>
+ * 
+ * <p>
+ * Sizes are estimated from the degree of the tree and the height of each
+ * subtree assuming nodes are three quarters full.
+ * </p>
+ * 
+ * @author dxm
+ * 
+ * @param <T>
+ */
+class NodeSpliterator<T extends Comparable<T>> implements Spliterator<T> {
+
+	private final double fanout;
+
+	private final Deque<Piece<T>> pieces;
+
+	/**
+	 * A subtree of the given height (a leaf has height 1) or a key.
+	 */
+	private static class Piece<T extends Comparable<T>> {
+		final Optional<NodeRef<T>> subtree;
+		final Optional<Key<T>> key;
+		final int height;
+
+		Piece(Optional<NodeRef<T>> subtree, Optional<Key<T>> key, int height) {
+			this.subtree = subtree;
+			this.key = key;
+			this.height = height;
+		}
+	}
+
+	NodeSpliterator(NodeRef<T> root, int degree) {
+		this(new LinkedList<Piece<T>>(), Math.max(2, degree * 0.75));
+		pieces.add(subtree(root, height(root)));
+	}
+
+	private NodeSpliterator(Deque<Piece<T>> pieces, double fanout) {
+		this.pieces = pieces;
+		this.fanout = fanout;
+	}
+
+	private static <T extends Comparable<T>> int height(NodeRef<T> root) {
+		int height = 0;
+		Optional<NodeRef<T>> node = Optional.of(root);
+		while (node.isPresent()) {
+			height++;
+			Optional<Key<T>> first = node.get().getFirst();
+			node = first.isPresent() ? first.get().getLeft() : Optional
+					.<NodeRef<T>> absent();
+		}
+		return height;
+	}
+
+	private static <T extends Comparable<T>> Piece<T> subtree(NodeRef<T> node,
+			int height) {
+		return new Piece<T>(Optional.of(node), Optional.<Key<T>> absent(),
+				height);
+	}
+
+	private static <T extends Comparable<T>> Piece<T> key(Key<T> key) {
+		return new Piece<T>(Optional.<NodeRef<T>> absent(), Optional.of(key),
+				0);
+	}
+
+	@Override
+	public boolean tryAdvance(Consumer<? super T> action) {
+		while (!pieces.isEmpty()) {
+			Piece<T> piece = pieces.pollFirst();
+			if (piece.subtree.isPresent()) {
+				Deque<Piece<T>> expanded = expand(piece);
+				while (!expanded.isEmpty())
+					pieces.addFirst(expanded.pollLast());
+			} else if (!piece.key.get().isDeleted()) {
+				action.accept(piece.key.get().value());
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public Spliterator<T> trySplit() {
+		if (pieces.size() == 1 && pieces.peekFirst().subtree.isPresent())
+			pieces.addAll(expand(pieces.pollFirst()));
+		if (pieces.size() < 2)
+			return null;
+		long half = estimateSize() / 2;
+		Deque<Piece<T>> prefix = new LinkedList<Piece<T>>();
+		long size = 0;
+		// the prefix takes at least one piece and leaves at least one
+		while (pieces.size() > 1 && (prefix.isEmpty() || size < half)) {
+			Piece<T> piece = pieces.pollFirst();
+			size += estimateSize(piece);
+			prefix.addLast(piece);
+		}
+		return new NodeSpliterator<T>(prefix, fanout);
+	}
+
+	/**
+	 * Returns the children and keys of the subtree in order.
+	 * 
+	 * @param piece
+	 * @return
+	 */
+	private Deque<Piece<T>> expand(Piece<T> piece) {
+		Deque<Piece<T>> list = new LinkedList<Piece<T>>();
+		for (Key<T> key : piece.subtree.get().keys()) {
+			if (key.getLeft().isPresent())
+				list.add(subtree(key.getLeft().get(), piece.height - 1));
+			list.add(key(key));
+			if (!key.next().isPresent() && key.getRight().isPresent())
+				list.add(subtree(key.getRight().get(), piece.height - 1));
+		}
+		return list;
+	}
+
+	@Override
+	public long estimateSize() {
+		long size = 0;
+		for (Piece<T> piece : pieces)
+			size += estimateSize(piece);
+		return size;
+	}
+
+	private long estimateSize(Piece<T> piece) {
+		if (piece.key.isPresent())
+			return 1;
+		else
+			return (long) Math.pow(fanout, piece.height) - 1;
+	}
+
+	@Override
+	public int characteristics() {
+		// not DISTINCT because the b-tree may hold equal values
+		return ORDERED | SORTED | NONNULL;
+	}
+
+	@Override
+	public Comparator<? super T> getComparator() {
+		// natural order
+		return null;
+	}
+}
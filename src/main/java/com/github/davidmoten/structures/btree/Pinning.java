@@ -0,0 +1,142 @@
+package com.github.davidmoten.structures.btree;
+
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+/**
+ * Pins the nodes in the top levels of a b-tree in memory: a pinned
+ * {@link NodeRef} keeps its node so the node is never evicted from (and does
+ * not count against) the {@link NodeCache}.
+ * 
+ * <p>
+ * The number of levels pinned is at most maxLevels and, if maxBytes is set,
+ * the largest number of levels whose estimated size fits in maxBytes. The
+ * size of a level that is not yet pinned is estimated from the average size
+ * of the nodes in the level above it. The number of levels is chosen when
+ * the tree is opened and again whenever the root splits.
+ * </p>
+ * 
+ * <p>
+ * Copy on write means that an add replaces the nodes on the path from the
+ * root to a leaf with new nodes. {@link #pin(NodeRef)} pins the new nodes in
+ * the top levels; the other nodes in the top levels are shared with the
+ * previous root and are already pinned. Must be called holding the write
+ * lock of the b-tree.
+ * </p>
+ * 
+ * @author dxm
+ * 
+ * @param <T>
+ */
+class Pinning<T extends Comparable<T>> {
+
+	private final int maxLevels;
+	private final long maxBytes;
+	private final Optional<NodeCache<T>> nodeCache;
+
+	/**
+	 * The number of levels currently pinned.
+	 */
+	private int levels;
+
+	Pinning(int maxLevels, long maxBytes, Optional<NodeCache<T>> nodeCache) {
+		this.maxLevels = maxLevels;
+		this.maxBytes = maxBytes;
+		this.nodeCache = nodeCache;
+	}
+
+	/**
+	 * Pins the nodes in the top levels under root that are not pinned yet.
+	 * 
+	 * @param root
+	 */
+	void pin(NodeRef<T> root) {
+		pin(root, 0);
+	}
+
+	private void pin(NodeRef<T> node, int depth) {
+		if (depth >= levels || node.isPinned())
+			return;
+		node.pin();
+		for (NodeRef<T> child : children(node))
+			pin(child, depth + 1);
+	}
+
+	/**
+	 * Chooses the number of levels again then pins the nodes in the top
+	 * levels under root and unpins any other pinned nodes (for example nodes
+	 * that moved down a level because the root split).
+	 * 
+	 * @param root
+	 */
+	void repin(NodeRef<T> root) {
+		levels = chooseLevels(root);
+		repin(root, 0);
+	}
+
+	private void repin(NodeRef<T> node, int depth) {
+		if (depth < levels)
+			node.pin();
+		else if (node.isPinned())
+			unpin(node);
+		else
+			return;
+		for (NodeRef<T> child : children(node))
+			repin(child, depth + 1);
+	}
+
+	private void unpin(NodeRef<T> node) {
+		node.unpin();
+		if (nodeCache.isPresent() && node.getPosition().isPresent()) {
+			nodeCache.get().put(node.getPosition().get(), node.node());
+			node.release();
+		}
+	}
+
+	private int chooseLevels(NodeRef<T> root) {
+		List<NodeRef<T>> level = Lists.newArrayList();
+		level.add(root);
+		long bytes = 0;
+		int n = 0;
+		while (n < maxLevels && !level.isEmpty()) {
+			long levelBytes = 0;
+			List<NodeRef<T>> next = Lists.newArrayList();
+			for (NodeRef<T> node : level) {
+				levelBytes += NodeCache.estimatedSize(node.node());
+				next.addAll(children(node));
+			}
+			if (bytes + levelBytes > maxBytes)
+				break;
+			bytes += levelBytes;
+			n++;
+			// stop before loading a level that cannot fit
+			if (!next.isEmpty()
+					&& bytes + levelBytes / level.size() * next.size() > maxBytes)
+				break;
+			level = next;
+		}
+		return n;
+	}
+
+	/**
+	 * Returns the distinct children of the node.
+	 * 
+	 * @param node
+	 * @return
+	 */
+	static <T extends Comparable<T>> List<NodeRef<T>> children(NodeRef<T> node) {
+		List<NodeRef<T>> list = Lists.newArrayList();
+		Set<NodeRef<T>> added = Sets.newIdentityHashSet();
+		for (Key<T> key : node.keys())
+			for (Side side : new Side[] { Side.LEFT, Side.RIGHT }) {
+				Optional<NodeRef<T>> child = key.getSide(side);
+				if (child.isPresent() && added.add(child.get()))
+					list.add(child.get());
+			}
+		return list;
+	}
+}
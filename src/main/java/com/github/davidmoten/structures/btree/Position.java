@@ -1,6 +1,13 @@
 package com.github.davidmoten.structures.btree;
 
-class Position {
+/**
+ * The location of a node record in {@link Storage}: the number of the segment
+ * file and the offset of the record in that file.
+ * 
+ * @author dxm
+ * 
+ */
+public class Position {
 
 	private final long fileNumber;
 	private final long position;
@@ -11,11 +18,11 @@ class Position {
 		this.position = position;
 	}
 
-	long getFileNumber() {
+	public long getFileNumber() {
 		return fileNumber;
 	}
 
-	long getPosition() {
+	public long getPosition() {
 		return position;
 	}
 
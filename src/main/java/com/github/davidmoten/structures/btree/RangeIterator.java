@@ -0,0 +1,158 @@
+package com.github.davidmoten.structures.btree;
+
+import java.util.Deque;
+import java.util.LinkedList;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+
+/**
+ * Iterates lazily over the values of a b-tree between a lower and an upper
+ * bound. The iterator descends from the root straight to the lower bound
+ * then walks the keys in order, loading a child node only when the walk
+ * reaches it, and stops at the first value past the upper bound. Deleted
+ * keys are skipped.
+ * 
+ * @author dxm
+ * 
+ * @param <T>
+ */
+class RangeIterator<T extends Comparable<T>> extends AbstractIterator<T> {
+
+	private final T lower;
+	private final boolean lowerInclusive;
+	private final T upper;
+	private final boolean upperInclusive;
+
+	/**
+	 * Keys to return and subtrees to descend into, in order from the top.
+	 */
+	private final Deque<Entry<T>> stack = new LinkedList<Entry<T>>();
+
+	/**
+	 * A key still to be returned or a subtree still to be walked.
+	 */
+	private static class Entry<T extends Comparable<T>> {
+		final Optional<Key<T>> key;
+		final Optional<NodeRef<T>> subtree;
+
+		Entry(Optional<Key<T>> key, Optional<NodeRef<T>> subtree) {
+			this.key = key;
+			this.subtree = subtree;
+		}
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param root
+	 * @param lower
+	 * @param op1
+	 *            - {@link ComparisonOperator#GREATER_THAN} or
+	 *            {@link ComparisonOperator#GREATER_THAN_OR_EQUAL}
+	 * @param upper
+	 * @param op2
+	 *            - {@link ComparisonOperator#LESS_THAN} or
+	 *            {@link ComparisonOperator#LESS_THAN_OR_EQUAL}
+	 */
+	RangeIterator(NodeRef<T> root, T lower, ComparisonOperator op1, T upper,
+			ComparisonOperator op2) {
+		checkOperators(op1, op2);
+		this.lower = lower;
+		this.lowerInclusive = op1 == ComparisonOperator.GREATER_THAN_OR_EQUAL;
+		this.upper = upper;
+		this.upperInclusive = op2 == ComparisonOperator.LESS_THAN_OR_EQUAL;
+		descendToLower(root);
+	}
+
+	/**
+	 * Throws {@link IllegalArgumentException} if op1 is not a lower bound
+	 * operator or op2 is not an upper bound operator.
+	 * 
+	 * @param op1
+	 * @param op2
+	 */
+	static void checkOperators(ComparisonOperator op1, ComparisonOperator op2) {
+		Preconditions.checkArgument(op1 == ComparisonOperator.GREATER_THAN
+				|| op1 == ComparisonOperator.GREATER_THAN_OR_EQUAL,
+				"op1 must be GREATER_THAN or GREATER_THAN_OR_EQUAL");
+		Preconditions.checkArgument(op2 == ComparisonOperator.LESS_THAN
+				|| op2 == ComparisonOperator.LESS_THAN_OR_EQUAL,
+				"op2 must be LESS_THAN or LESS_THAN_OR_EQUAL");
+	}
+
+	/**
+	 * Pushes the first key at or above the lower bound in each node on the
+	 * path from node down to the leaf that holds the lower bound. Keys below
+	 * the lower bound and their left subtrees are never visited.
+	 * 
+	 * @param node
+	 */
+	private void descendToLower(NodeRef<T> node) {
+		Optional<NodeRef<T>> child = Optional.of(node);
+		while (child.isPresent()) {
+			Optional<Key<T>> key = child.get().getFirst();
+			Optional<Key<T>> last = Optional.absent();
+			while (key.isPresent() && !aboveLower(key.get().value())) {
+				last = key;
+				key = key.get().next();
+			}
+			if (key.isPresent()) {
+				push(key);
+				child = key.get().getLeft();
+			} else if (last.isPresent())
+				child = last.get().getRight();
+			else
+				child = Optional.absent();
+		}
+	}
+
+	@Override
+	protected T computeNext() {
+		while (!stack.isEmpty()) {
+			Entry<T> entry = stack.pop();
+			if (entry.subtree.isPresent()) {
+				// descend to the leftmost key of the subtree
+				Optional<NodeRef<T>> child = entry.subtree;
+				while (child.isPresent()) {
+					Optional<Key<T>> first = child.get().getFirst();
+					if (!first.isPresent())
+						break;
+					push(first);
+					child = first.get().getLeft();
+				}
+			} else {
+				Key<T> key = entry.key.get();
+				T value = key.value();
+				if (!belowUpper(value)) {
+					stack.clear();
+					return endOfData();
+				}
+				// the right subtree comes before the next key
+				if (key.next().isPresent())
+					push(key.next());
+				if (key.getRight().isPresent())
+					stack.push(new Entry<T>(Optional.<Key<T>> absent(), key
+							.getRight()));
+				if (!key.isDeleted() && aboveLower(value))
+					return value;
+			}
+		}
+		return endOfData();
+	}
+
+	private void push(Optional<Key<T>> key) {
+		stack.push(new Entry<T>(key, Optional.<NodeRef<T>> absent()));
+	}
+
+	private boolean aboveLower(T t) {
+		int c = t.compareTo(lower);
+		return c > 0 || c == 0 && lowerInclusive;
+	}
+
+	private boolean belowUpper(T t) {
+		int c = t.compareTo(upper);
+		return c < 0 || c == 0 && upperInclusive;
+	}
+}
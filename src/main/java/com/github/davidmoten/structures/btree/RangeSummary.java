@@ -0,0 +1,107 @@
+package com.github.davidmoten.structures.btree;
+
+import java.util.List;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+
+/**
+ * Combines the summaries of the values of a b-tree between optional lower
+ * and upper bounds (see {@link Augmentation}). A child whose values all lie
+ * within the bounds contributes its stored summary without being loaded and
+ * a child whose values all lie outside is skipped, so only the nodes on the
+ * paths to the two bounds are loaded. Deleted keys are not counted.
+ * 
+ * @author dxm
+ * 
+ * @param <T>
+ */
+class RangeSummary<T extends Comparable<T>> {
+
+	private final Augmentation<T> augmentation;
+	private final Optional<T> lower;
+	private final boolean lowerInclusive;
+	private final Optional<T> upper;
+	private final boolean upperInclusive;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param augmentation
+	 * @param lower
+	 *            - absent if unbounded below
+	 * @param lowerInclusive
+	 * @param upper
+	 *            - absent if unbounded above
+	 * @param upperInclusive
+	 */
+	RangeSummary(Augmentation<T> augmentation, Optional<T> lower,
+			boolean lowerInclusive, Optional<T> upper, boolean upperInclusive) {
+		this.augmentation = augmentation;
+		this.lower = lower;
+		this.lowerInclusive = lowerInclusive;
+		this.upper = upper;
+		this.upperInclusive = upperInclusive;
+	}
+
+	Summary summarize(NodeRef<T> root) {
+		return summarize(root, !lower.isPresent(), !upper.isPresent());
+	}
+
+	/**
+	 * Returns the summary of the values under node within the bounds.
+	 * 
+	 * @param node
+	 * @param allAboveLower
+	 *            - true if every value under node is above the lower bound
+	 * @param allBelowUpper
+	 *            - true if every value under node is below the upper bound
+	 * @return
+	 */
+	private Summary summarize(NodeRef<T> node, boolean allAboveLower,
+			boolean allBelowUpper) {
+		if (allAboveLower && allBelowUpper)
+			return node.summary(augmentation);
+		List<Key<T>> keys = Lists.newArrayList(node.keys());
+		Summary result = augmentation.empty();
+		for (int i = 0; i <= keys.size(); i++) {
+			// the values of child i lie between key i - 1 and key i
+			// (inclusive because of equal values)
+			if (!Augmentation.isLeaf(keys)) {
+				boolean childAboveLower = allAboveLower || i > 0
+						&& aboveLower(keys.get(i - 1).value());
+				boolean childBelowUpper = allBelowUpper || i < keys.size()
+						&& belowUpper(keys.get(i).value());
+				boolean outside = !allAboveLower && i < keys.size()
+						&& !aboveLower(keys.get(i).value()) || !allBelowUpper
+						&& i > 0 && !belowUpper(keys.get(i - 1).value());
+				if (!outside)
+					result = augmentation.combine(result, summarize(
+							Augmentation.child(keys, i), childAboveLower,
+							childBelowUpper));
+			}
+			if (i < keys.size()) {
+				Key<T> key = keys.get(i);
+				if (!key.isDeleted() && aboveLower(key.value())
+						&& belowUpper(key.value()))
+					result = augmentation.combine(result,
+							augmentation.ofValue(key.value()));
+			}
+		}
+		return result;
+	}
+
+	private boolean aboveLower(T t) {
+		if (!lower.isPresent())
+			return true;
+		int c = t.compareTo(lower.get());
+		return c > 0 || c == 0 && lowerInclusive;
+	}
+
+	private boolean belowUpper(T t) {
+		if (!upper.isPresent())
+			return true;
+		int c = t.compareTo(upper.get());
+		return c < 0 || c == 0 && upperInclusive;
+	}
+}
@@ -0,0 +1,204 @@
+package com.github.davidmoten.structures.btree;
+
+import static com.google.common.base.Optional.absent;
+import static com.google.common.base.Optional.of;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Optional;
+
+/**
+ * Reads nodes from storage ahead of a {@link NodeIterator} on a pool of I/O
+ * threads. A node read ahead is held until {@link #take(Position)} hands it
+ * to the loader. At most {@link #MAX_PENDING_PER_DEPTH} times the depth nodes
+ * are held; beyond that the oldest is dropped (for instance when an iterator
+ * is abandoned). Only loads of nodes that were read ahead count as hits or
+ * misses, so loads by finds do not dilute the hit rate.
+ * 
+ * @author dxm
+ * 
+ * @param <T>
+ */
+class ReadAhead<T extends Comparable<T>> {
+
+	private static final int MAX_PENDING_PER_DEPTH = 4;
+
+	private final int depth;
+	private final int maxPending;
+	private final Storage storage;
+	private final NodeCodec<T> codec;
+	private final NodeLoader<T> loader;
+	private final Optional<NodeCache<T>> nodeCache;
+	private final ExecutorService executor;
+
+	/**
+	 * Reads scheduled and not yet taken, in order of scheduling. Guarded by
+	 * this.
+	 */
+	private final LinkedHashMap<Position, Future<Node<T>>> pending = new LinkedHashMap<Position, Future<Node<T>>>();
+
+	/**
+	 * The most recently dropped reads (at most maxPending) so that a later
+	 * load of one counts as a miss. Guarded by this.
+	 */
+	private final Set<Position> dropped = new LinkedHashSet<Position>();
+
+	private final AtomicLong scheduled = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong wasted = new AtomicLong();
+
+	ReadAhead(int depth, int threads, final Storage storage,
+			NodeCodec<T> codec, NodeLoader<T> loader,
+			Optional<NodeCache<T>> nodeCache) {
+		this.depth = depth;
+		this.maxPending = depth * MAX_PENDING_PER_DEPTH;
+		this.storage = storage;
+		this.codec = codec;
+		this.loader = loader;
+		this.nodeCache = nodeCache;
+		this.executor = Executors.newFixedThreadPool(threads,
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "btree-read-ahead-"
+								+ storage.getName());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * Returns the number of child nodes read ahead of the iterator.
+	 * 
+	 * @return
+	 */
+	int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Schedules a read of the node if it is saved and not already held by
+	 * its reference, the cache or a pending read.
+	 * 
+	 * @param ref
+	 */
+	void schedule(final NodeRef<T> ref) {
+		if (!ref.getPosition().isPresent() || ref.isLoaded())
+			return;
+		final Position position = ref.getPosition().get();
+		if (nodeCache.isPresent() && nodeCache.get().contains(position))
+			return;
+		synchronized (this) {
+			if (pending.containsKey(position))
+				return;
+			if (pending.size() >= maxPending) {
+				Iterator<Entry<Position, Future<Node<T>>>> eldest = pending
+						.entrySet().iterator();
+				Entry<Position, Future<Node<T>>> entry = eldest.next();
+				entry.getValue().cancel(false);
+				eldest.remove();
+				wasted.incrementAndGet();
+				drop(entry.getKey());
+			}
+			dropped.remove(position);
+			pending.put(position, executor.submit(new Callable<Node<T>>() {
+				@Override
+				public Node<T> call() {
+					Node<T> node = new Node<T>(loader, ref, ref.isRootRef());
+					ref.setRecordLength(storage.load(position, node, codec));
+					return node;
+				}
+			}));
+		}
+		scheduled.incrementAndGet();
+	}
+
+	/**
+	 * Guarded by this.
+	 * 
+	 * @param position
+	 */
+	private void drop(Position position) {
+		dropped.add(position);
+		if (dropped.size() > maxPending) {
+			Iterator<Position> eldest = dropped.iterator();
+			eldest.next();
+			eldest.remove();
+		}
+	}
+
+	/**
+	 * Returns the node read ahead for the position (waiting for the read to
+	 * finish if necessary) or absent if no read was scheduled. Counts a miss
+	 * if a read was scheduled but dropped.
+	 * 
+	 * @param position
+	 * @return
+	 */
+	Optional<Node<T>> take(Position position) {
+		Future<Node<T>> future;
+		synchronized (this) {
+			future = pending.remove(position);
+			if (future == null) {
+				if (dropped.remove(position))
+					misses.incrementAndGet();
+				return absent();
+			}
+		}
+		try {
+			Node<T> node = future.get();
+			hits.incrementAndGet();
+			return of(node);
+		} catch (CancellationException e) {
+			misses.incrementAndGet();
+			return absent();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			else
+				throw new RuntimeException(e.getCause());
+		}
+	}
+
+	ReadAheadStats stats() {
+		return new ReadAheadStats(scheduled.get(), hits.get(), misses.get(),
+				wasted.get());
+	}
+
+	/**
+	 * Drops the reads not yet started and waits for the running ones to
+	 * finish before stopping the I/O threads. Running reads are not
+	 * interrupted because an interrupt closes the storage channel that
+	 * foreground reads share.
+	 */
+	void close() {
+		synchronized (this) {
+			for (Future<Node<T>> future : pending.values())
+				future.cancel(false);
+			pending.clear();
+		}
+		executor.shutdown();
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package com.github.davidmoten.structures.btree;
+
+/**
+ * Counts of the nodes read ahead of iteration (see
+ * {@link BTree.Builder#readAhead(int, int)}).
+ * 
+ * @author dxm
+ * 
+ */
+public final class ReadAheadStats {
+
+	private final long scheduledCount;
+	private final long hitCount;
+	private final long missCount;
+	private final long wastedCount;
+
+	ReadAheadStats(long scheduledCount, long hitCount, long missCount,
+			long wastedCount) {
+		this.scheduledCount = scheduledCount;
+		this.hitCount = hitCount;
+		this.missCount = missCount;
+		this.wastedCount = wastedCount;
+	}
+
+	/**
+	 * Returns the number of node reads scheduled ahead.
+	 * 
+	 * @return
+	 */
+	public long scheduledCount() {
+		return scheduledCount;
+	}
+
+	/**
+	 * Returns the number of nodes loaded from storage that had been read (or
+	 * were being read) ahead.
+	 * 
+	 * @return
+	 */
+	public long hitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * Returns the number of nodes loaded from storage whose read ahead had
+	 * been dropped (or cancelled) before they were loaded. Nodes never read
+	 * ahead (such as those loaded by finds) are not counted.
+	 * 
+	 * @return
+	 */
+	public long missCount() {
+		return missCount;
+	}
+
+	/**
+	 * Returns the number of nodes read ahead then dropped without being used.
+	 * 
+	 * @return
+	 */
+	public long wastedCount() {
+		return wastedCount;
+	}
+
+	/**
+	 * Returns the fraction of the nodes read ahead and then loaded that were
+	 * still held when loaded (1.0 if none were loaded).
+	 * 
+	 * @return
+	 */
+	public double hitRate() {
+		long total = hitCount + missCount;
+		return total == 0 ? 1.0 : (double) hitCount / total;
+	}
+
+	@Override
+	public String toString() {
+		return "ReadAheadStats [scheduledCount=" + scheduledCount
+				+ ", hitCount=" + hitCount + ", missCount=" + missCount
+				+ ", wastedCount=" + wastedCount + "]";
+	}
+}
@@ -0,0 +1,22 @@
+package com.github.davidmoten.structures.btree;
+
+/**
+ * How {@link Storage} reads nodes from the segment files.
+ * 
+ * @author dxm
+ * 
+ */
+public enum ReadMode {
+
+	/**
+	 * Reads each node from its segment file with a positional read on a
+	 * pooled file channel.
+	 */
+	STREAM,
+
+	/**
+	 * Maps each segment file into memory once and decodes nodes straight from
+	 * the mapped buffer. The active segment is remapped as it grows.
+	 */
+	MEMORY_MAPPED;
+}
@@ -0,0 +1,133 @@
+package com.github.davidmoten.structures.btree;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+
+/**
+ * Marks the records of subtrees detached from a b-tree (see
+ * {@link BTree#deleteRange(Comparable, Comparable, ComparisonOperator, ComparisonOperator)})
+ * as obsolete in {@link Storage} so that compaction picks their segments.
+ * The subtrees are walked on a background thread, each node being read into
+ * a scratch node rather than the node cache, so the delete itself only
+ * rewrites the nodes on the paths to its bounds.
+ * 
+ * <p>
+ * A segment file may be deleted by compaction while a subtree is being
+ * walked. The rest of that subtree is then skipped: its records were not
+ * reachable so they were not copied. Any other failure to walk a subtree is
+ * kept and thrown by {@link #close()}.
+ * </p>
+ * 
+ * @author dxm
+ * 
+ * @param <T>
+ */
+class Reclaimer<T extends Comparable<T>> {
+
+	private final Storage storage;
+	private final NodeCodec<T> codec;
+	private final NodeLoader<T> loader;
+	private final int degree;
+	private final ExecutorService executor;
+
+	/**
+	 * The first failure to walk a subtree.
+	 */
+	private final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+
+	Reclaimer(final Storage storage, NodeCodec<T> codec, NodeLoader<T> loader,
+			int degree) {
+		this.storage = storage;
+		this.codec = codec;
+		this.loader = loader;
+		this.degree = degree;
+		this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "btree-reclaimer-"
+						+ storage.getName());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Queues the subtrees to have their records marked as obsolete.
+	 * 
+	 * @param subtrees
+	 */
+	void reclaim(List<NodeRef<T>> subtrees) {
+		if (subtrees.isEmpty())
+			return;
+		final List<NodeRef<T>> list = Lists.newArrayList(subtrees);
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				for (NodeRef<T> node : list)
+					try {
+						reclaim(node);
+					} catch (RuntimeException e) {
+						failure.compareAndSet(null, e);
+					}
+			}
+		});
+	}
+
+	/**
+	 * Marks the records of node and its descendants as obsolete.
+	 * 
+	 * @param node
+	 */
+	private void reclaim(NodeRef<T> node) {
+		Optional<Position> position = node.getPosition();
+		List<NodeRef<T>> children;
+		if (position.isPresent()) {
+			Node<T> scratch = new Node<T>(loader, new NodeRef<T>(loader,
+					Optional.<Position> absent(), degree, false), false);
+			File file = storage.getFile(position.get().getFileNumber());
+			if (!file.exists())
+				// deleted by compaction
+				return;
+			int length;
+			try {
+				length = storage.load(position.get(), scratch, codec);
+			} catch (RuntimeException e) {
+				if (!file.exists())
+					// deleted by compaction while being read
+					return;
+				else
+					throw e;
+			}
+			storage.markObsolete(position.get(), length);
+			children = scratch.children();
+		} else
+			// not saved yet so only its descendants have records
+			children = node.node().children();
+		for (NodeRef<T> child : children)
+			reclaim(child);
+	}
+
+	/**
+	 * Waits for the queued subtrees to be walked and stops the thread. Throws
+	 * the first failure to walk a subtree if any.
+	 */
+	void close() {
+		executor.shutdown();
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		if (failure.get() != null)
+			throw failure.get();
+	}
+}
@@ -0,0 +1,76 @@
+package com.github.davidmoten.structures.btree;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link ByteArrayOutputStream} that gives access to its bytes without
+ * copying them and allows values already written to be overwritten (for
+ * example the length prefix of a record).
+ * 
+ * @author dxm
+ * 
+ */
+class RecordBuffer extends ByteArrayOutputStream {
+
+	RecordBuffer(int size) {
+		super(size);
+	}
+
+	/**
+	 * Overwrites the 4 bytes at offset with the big-endian value.
+	 * 
+	 * @param offset
+	 * @param value
+	 */
+	void putInt(int offset, int value) {
+		buf[offset] = (byte) (value >>> 24);
+		buf[offset + 1] = (byte) (value >>> 16);
+		buf[offset + 2] = (byte) (value >>> 8);
+		buf[offset + 3] = (byte) value;
+	}
+
+	/**
+	 * Returns the array holding the bytes written so far (and possibly
+	 * unused bytes after them).
+	 * 
+	 * @return
+	 */
+	byte[] array() {
+		return buf;
+	}
+
+	/**
+	 * Discards the bytes written after the first size bytes.
+	 * 
+	 * @param size
+	 */
+	void truncate(int size) {
+		count = size;
+	}
+
+	/**
+	 * Returns the CRC32 of length bytes starting at offset.
+	 * 
+	 * @param offset
+	 * @param length
+	 * @return
+	 */
+	int crc32(int offset, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(buf, offset, length);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Returns a buffer over the bytes written so far. The buffer shares its
+	 * content with this object.
+	 * 
+	 * @return
+	 */
+	ByteBuffer asByteBuffer() {
+		return ByteBuffer.wrap(buf, 0, count);
+	}
+
+}
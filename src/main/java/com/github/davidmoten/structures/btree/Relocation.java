@@ -0,0 +1,103 @@
+package com.github.davidmoten.structures.btree;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Decides which saved nodes are copied to new positions in storage when a
+ * b-tree is relocated (copied on write from the root down to the selected
+ * nodes). Used to rewrite a whole tree and to move live nodes out of segment
+ * files being compacted.
+ * 
+ * @author dxm
+ * 
+ */
+abstract class Relocation {
+
+	/**
+	 * The number of selected nodes that may still be copied.
+	 */
+	private int remaining;
+
+	Relocation(int maxNodes) {
+		this.remaining = maxNodes;
+	}
+
+	/**
+	 * Returns true if and only if the saved node at position should be
+	 * copied.
+	 * 
+	 * @param position
+	 * @return
+	 */
+	abstract boolean selects(Position position);
+
+	/**
+	 * Returns false only if the subtree rooted at the saved node at position
+	 * cannot contain a node that {@link #selects(Position)}.
+	 * 
+	 * @param position
+	 * @return
+	 */
+	abstract boolean mayContain(Position position);
+
+	/**
+	 * Returns true (and counts the node against the maximum) if the node at
+	 * position is selected and the maximum has not been reached.
+	 * 
+	 * @param position
+	 * @return
+	 */
+	boolean take(Position position) {
+		if (remaining > 0 && selects(position)) {
+			remaining--;
+			return true;
+		} else
+			return false;
+	}
+
+	/**
+	 * Returns a relocation that copies every node.
+	 * 
+	 * @return
+	 */
+	static Relocation all() {
+		return new Relocation(Integer.MAX_VALUE) {
+			@Override
+			boolean selects(Position position) {
+				return true;
+			}
+
+			@Override
+			boolean mayContain(Position position) {
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Returns a relocation that copies at most maxNodes nodes stored in the
+	 * given segment files. Because children are always saved before their
+	 * parents a subtree cannot contain a node in a segment file numbered
+	 * higher than the segment file of its root.
+	 * 
+	 * @param fileNumbers
+	 * @param maxNodes
+	 * @return
+	 */
+	static Relocation segments(final Set<Long> fileNumbers,
+			int maxNodes) {
+		final long min = Collections.min(fileNumbers);
+		return new Relocation(maxNodes) {
+			@Override
+			boolean selects(Position position) {
+				return fileNumbers.contains(position.getFileNumber());
+			}
+
+			@Override
+			boolean mayContain(Position position) {
+				return position.getFileNumber() >= min;
+			}
+		};
+	}
+}
@@ -0,0 +1,119 @@
+package com.github.davidmoten.structures.btree;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+
+/**
+ * Checks every record in the segment files of {@link Storage} (reachable from
+ * the root or not) and reports the positions of corrupt records. Segment
+ * files are checked in parallel, each through its own read-only mapping, so
+ * writers are only held up while a segment is mapped.
+ * 
+ * <p>
+ * Records are walked using their length prefix. If the length of a corrupt
+ * record cannot be trusted the rest of its segment file is skipped.
+ * </p>
+ * 
+ * @author dxm
+ * 
+ * @param <T>
+ */
+class Scrubber<T extends Comparable<T>> {
+
+	private final Storage storage;
+	private final NodeCodec<T> codec;
+	private final NodeLoader<T> loader;
+	private final int degree;
+
+	Scrubber(Storage storage, NodeCodec<T> codec, NodeLoader<T> loader,
+			int degree) {
+		this.storage = storage;
+		this.codec = codec;
+		this.loader = loader;
+		this.degree = degree;
+	}
+
+	/**
+	 * Checks all segment files using the given number of threads and returns
+	 * the positions of corrupt records.
+	 * 
+	 * @param threads
+	 * @return
+	 */
+	List<Position> scrub(int threads) {
+		ExecutorService executor = Executors.newFixedThreadPool(threads,
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "btree-scrubber-"
+								+ storage.getName());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		try {
+			List<Future<List<Position>>> futures = Lists.newArrayList();
+			for (final long fileNumber : storage.getFileNumbers())
+				futures.add(executor.submit(new Callable<List<Position>>() {
+					@Override
+					public List<Position> call() {
+						return scrub(fileNumber);
+					}
+				}));
+			List<Position> corrupt = Lists.newArrayList();
+			for (Future<List<Position>> future : futures)
+				corrupt.addAll(future.get());
+			return corrupt;
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Returns the positions of the corrupt records in the segment file.
+	 * 
+	 * @param fileNumber
+	 * @return
+	 */
+	private List<Position> scrub(long fileNumber) {
+		List<Position> corrupt = Lists.newArrayList();
+		ByteBuffer bb;
+		try {
+			bb = storage.mapSegment(fileNumber);
+		} catch (RuntimeException e) {
+			// deleted by compaction since it was listed
+			return corrupt;
+		}
+		Node<T> scratch = new Node<T>(loader, new NodeRef<T>(loader,
+				Optional.<Position> absent(), degree, false), false);
+		while (bb.hasRemaining()) {
+			int start = bb.position();
+			try {
+				codec.verify(bb, scratch);
+			} catch (CorruptRecordException e) {
+				corrupt.add(new Position(fileNumber, start));
+				bb.position(start);
+				int length = bb.remaining() >= 4 && !NodeCodec.isLegacy(bb) ? bb
+						.getInt(start) : -1;
+				if (length < NodeCodec.HEADER_LENGTH
+						|| length > bb.limit() - start)
+					break;
+				bb.position(start + length);
+			}
+		}
+		return corrupt;
+	}
+}
@@ -0,0 +1,34 @@
+package com.github.davidmoten.structures.btree;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes and reads keys of type T to and from the node records in
+ * {@link Storage}.
+ * 
+ * @author dxm
+ * 
+ * @param <T>
+ */
+public interface Serializer<T> {
+
+	/**
+	 * Writes t to out.
+	 * 
+	 * @param out
+	 * @param t
+	 * @throws IOException
+	 */
+	void write(DataOutput out, T t) throws IOException;
+
+	/**
+	 * Reads a T from the current position of the buffer and leaves the
+	 * position of the buffer just after the bytes read.
+	 * 
+	 * @param bb
+	 * @return
+	 */
+	T read(ByteBuffer bb);
+}
@@ -0,0 +1,211 @@
+package com.github.davidmoten.structures.btree;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Provides standard {@link Serializer}s.
+ * 
+ * @author dxm
+ * 
+ */
+public final class Serializers {
+
+	private Serializers() {
+		// prevent instantiation
+	}
+
+	/**
+	 * Writes an {@link Integer} as 4 bytes.
+	 */
+	public static final Serializer<Integer> INTEGER = new Serializer<Integer>() {
+
+		@Override
+		public void write(DataOutput out, Integer t) throws IOException {
+			out.writeInt(t);
+		}
+
+		@Override
+		public Integer read(ByteBuffer bb) {
+			return bb.getInt();
+		}
+	};
+
+	/**
+	 * Writes a {@link Long} as 8 bytes.
+	 */
+	public static final Serializer<Long> LONG = new Serializer<Long>() {
+
+		@Override
+		public void write(DataOutput out, Long t) throws IOException {
+			out.writeLong(t);
+		}
+
+		@Override
+		public Long read(ByteBuffer bb) {
+			return bb.getLong();
+		}
+	};
+
+	/**
+	 * Writes a {@link Double} as 8 bytes.
+	 */
+	public static final Serializer<Double> DOUBLE = new Serializer<Double>() {
+
+		@Override
+		public void write(DataOutput out, Double t) throws IOException {
+			out.writeDouble(t);
+		}
+
+		@Override
+		public Double read(ByteBuffer bb) {
+			return bb.getDouble();
+		}
+	};
+
+	/**
+	 * Writes a {@link UUID} as 16 bytes.
+	 */
+	public static final Serializer<UUID> UUID = new Serializer<UUID>() {
+
+		@Override
+		public void write(DataOutput out, UUID t) throws IOException {
+			out.writeLong(t.getMostSignificantBits());
+			out.writeLong(t.getLeastSignificantBits());
+		}
+
+		@Override
+		public UUID read(ByteBuffer bb) {
+			long most = bb.getLong();
+			long least = bb.getLong();
+			return new UUID(most, least);
+		}
+	};
+
+	/**
+	 * Writes a {@link String} as its length in bytes followed by its UTF-8
+	 * encoding.
+	 */
+	public static final Serializer<String> STRING = new Serializer<String>() {
+
+		@Override
+		public void write(DataOutput out, String t) throws IOException {
+			byte[] bytes = t.getBytes(Charsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+
+		@Override
+		public String read(ByteBuffer bb) {
+			int length = bb.getInt();
+			if (bb.hasArray()) {
+				String s = new String(bb.array(), bb.arrayOffset()
+						+ bb.position(), length, Charsets.UTF_8);
+				bb.position(bb.position() + length);
+				return s;
+			} else {
+				byte[] bytes = new byte[length];
+				bb.get(bytes);
+				return new String(bytes, Charsets.UTF_8);
+			}
+		}
+	};
+
+	/**
+	 * Returns a {@link Serializer} that uses java serialization preceded by
+	 * the length in bytes of the serialized form. Values written must
+	 * implement {@link java.io.Serializable}.
+	 * 
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> Serializer<T> javaSerialization() {
+		return (Serializer<T>) JAVA;
+	}
+
+	private static final Serializer<Object> JAVA = new Serializer<Object>() {
+
+		@Override
+		public void write(DataOutput out, Object t) throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream oos = new ObjectOutputStream(bytes);
+			oos.writeObject(t);
+			oos.close();
+			out.writeInt(bytes.size());
+			out.write(bytes.toByteArray());
+		}
+
+		@Override
+		public Object read(ByteBuffer bb) {
+			int length = bb.getInt();
+			ByteBuffer b = bb.slice();
+			b.limit(length);
+			bb.position(bb.position() + length);
+			try {
+				ObjectInputStream ois = new ObjectInputStream(
+						new ByteBufferInputStream(b));
+				return ois.readObject();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			} catch (ClassNotFoundException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	};
+
+	/**
+	 * Returns the name of a built-in serializer or else the class name of the
+	 * serializer. Recorded in the metadata of a b-tree so that it is not
+	 * reopened with a different serializer.
+	 * 
+	 * @param serializer
+	 * @return
+	 */
+	static String id(Serializer<?> serializer) {
+		if (serializer == INTEGER)
+			return "integer";
+		else if (serializer == LONG)
+			return "long";
+		else if (serializer == DOUBLE)
+			return "double";
+		else if (serializer == UUID)
+			return "uuid";
+		else if (serializer == STRING)
+			return "string";
+		else if (serializer == JAVA)
+			return "java";
+		else
+			return serializer.getClass().getName();
+	}
+
+	/**
+	 * Returns the built-in {@link Serializer} for the given class if there is
+	 * one otherwise returns {@link #javaSerialization()}.
+	 * 
+	 * @param cls
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> Serializer<T> forClass(Class<T> cls) {
+		if (cls == Integer.class)
+			return (Serializer<T>) INTEGER;
+		else if (cls == Long.class)
+			return (Serializer<T>) LONG;
+		else if (cls == Double.class)
+			return (Serializer<T>) DOUBLE;
+		else if (cls == UUID.class)
+			return (Serializer<T>) UUID;
+		else if (cls == String.class)
+			return (Serializer<T>) STRING;
+		else
+			return javaSerialization();
+	}
+
+}
@@ -1,25 +1,50 @@
 package com.github.davidmoten.structures.btree;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FilenameFilter;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.RandomAccessFile;
-import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 public class Storage {
 
-	private static final long maxFileSize = 5000000L;
+	/**
+	 * The default size in bytes that a segment file must reach before writes
+	 * move to a new segment file.
+	 */
+	public static final long DEFAULT_SEGMENT_SIZE = 5000000L;
+
+	/**
+	 * The maximum number of segment files kept open at once.
+	 */
+	public static final int MAX_OPEN_FILES = 32;
+
+	/**
+	 * The number of bytes read at once when loading a node (larger records
+	 * take a second read).
+	 */
+	private static final int READ_SIZE = 4096;
+
+	private final long maxFileSize;
 
 	private File file;
 	/**
@@ -33,40 +58,108 @@ public class Storage {
 
 	private final static Object writeMonitor = new Object();
 
+	private final ReadMode readMode;
+
+	/**
+	 * Reused by {@link #save(List, NodeCodec)} to assemble each batch of
+	 * records.
+	 */
+	private final RecordBuffer buffer = new RecordBuffer(8192);
+
+	/**
+	 * Memory mapped segment files keyed by file number. Only used when the
+	 * read mode is {@link ReadMode#MEMORY_MAPPED}.
+	 */
+	private final ConcurrentMap<Long, MappedByteBuffer> mapped = new ConcurrentHashMap<Long, MappedByteBuffer>();
+
+	/**
+	 * Open channels on the segment files shared by all readers and writers.
+	 */
+	private final ChannelPool channels = new ChannelPool(this,
+			MAX_OPEN_FILES);
+
+	/**
+	 * The number of bytes in each segment file occupied by records that are
+	 * no longer reachable from the root.
+	 */
+	private final ConcurrentMap<Long, AtomicLong> obsoleteBytes = new ConcurrentHashMap<Long, AtomicLong>();
+
+	/**
+	 * The numbers of the segment files written to since the last
+	 * {@link #sync()}.
+	 */
+	private final Set<Long> unsynced = Sets.newHashSet();
+
 	public Storage(File directory, String name) {
-		this(directory, name, getLatestFileNumber(directory, name));
+		this(directory, name, ReadMode.STREAM);
+	}
+
+	public Storage(File directory, String name, ReadMode readMode) {
+		this(directory, name, readMode, DEFAULT_SEGMENT_SIZE);
+	}
+
+	public Storage(File directory, String name, ReadMode readMode,
+			long segmentSize) {
+		this(directory, name, getLatestFileNumber(directory, name), readMode,
+				segmentSize);
 	}
 
-	private Storage(File directory, String name, long fileNumber) {
+	private Storage(File directory, String name, long fileNumber,
+			ReadMode readMode, long segmentSize) {
 		this.directory = directory;
 		this.name = name;
 		this.fileNumber = fileNumber;
 		this.file = getFile(fileNumber);
-		// fileCache = CacheBuilder.newBuilder().maximumSize(5).build();
+		this.readMode = readMode;
+		this.maxFileSize = segmentSize;
 	}
 
 	private static long getLatestFileNumber(File directory, final String name) {
 		synchronized (writeMonitor) {
-			File[] files = directory.listFiles(new FilenameFilter() {
-				@Override
-				public boolean accept(File dir, String nm) {
-					return nm.startsWith(name) && nm.matches("\\.\\d+$");
-				}
-			});
 			Long max = null;
-			for (File file : files) {
-				int i = file.getName().lastIndexOf(".");
-				String numberPart = file.getName().substring(i + 1);
-				long number = Long.parseLong(numberPart);
+			for (long number : getFileNumbers(directory, name))
 				if (max == null || number > max)
 					max = number;
-			}
 			if (max == null)
 				max = 0L;
 			return max;
 		}
 	}
 
+	/**
+	 * Returns the numbers of the segment files (<code>name.N</code>) in the
+	 * directory in ascending order.
+	 * 
+	 * @param directory
+	 * @param name
+	 * @return
+	 */
+	private static List<Long> getFileNumbers(File directory, final String name) {
+		File[] files = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String nm) {
+				return nm.startsWith(name + ".")
+						&& nm.substring(name.length() + 1).matches("\\d+");
+			}
+		});
+		List<Long> numbers = Lists.newArrayList();
+		if (files != null)
+			for (File file : files)
+				numbers.add(Long.parseLong(file.getName().substring(
+						name.length() + 1)));
+		Collections.sort(numbers);
+		return numbers;
+	}
+
+	/**
+	 * Returns the numbers of the segment files in ascending order.
+	 * 
+	 * @return
+	 */
+	public List<Long> getFileNumbers() {
+		return getFileNumbers(directory, name);
+	}
+
 	public long getFileNumber() {
 		return fileNumber;
 	}
@@ -75,7 +168,7 @@ public class Storage {
 		return file;
 	}
 
-	private File getFile(long fileNumber) {
+	File getFile(long fileNumber) {
 		return new File(directory, name + "." + fileNumber);
 	}
 
@@ -100,114 +193,357 @@ public class Storage {
 		}
 	}
 
-	public synchronized <T extends Serializable & Comparable<T>> void save(
-			List<NodeRef<T>> saveQueue) {
+	/**
+	 * Appends the nodes to storage in one write and sets their positions.
+	 * Returns the number of bytes written.
+	 * 
+	 * @param saveQueue
+	 * @param codec
+	 * @return
+	 */
+	public synchronized <T extends Comparable<T>> long save(
+			List<NodeRef<T>> saveQueue, NodeCodec<T> codec) {
 
-		ByteArrayOutputStream allBytes = new ByteArrayOutputStream();
+		buffer.reset();
 		Position startPos = nextPosition();
-		long pos = startPos.getPosition();
 		for (NodeRef<T> node : saveQueue) {
-			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-			node.save(bytes);
+			long pos = startPos.getPosition() + buffer.size();
+			node.setRecordLength(codec.encode(node, buffer));
 			node.setPosition(Optional.of(new Position(startPos.getFileNumber(),
 					pos)));
+		}
+		saveToFile(buffer, startPos);
+		unsynced.add(startPos.getFileNumber());
+		return buffer.size();
+	}
 
+	/**
+	 * Forces the segment files written to since the last call to disk so
+	 * that a commit referring to their records survives a crash.
+	 */
+	public synchronized void sync() {
+		for (long number : unsynced) {
+			if (getFile(number).exists())
+				force(number);
+		}
+		unsynced.clear();
+	}
+
+	private void force(long fileNumber) {
+		while (true) {
 			try {
-				allBytes.write(bytes.toByteArray());
+				channels.get(fileNumber).force(true);
+				return;
+			} catch (ClosedChannelException e) {
+				checkRetry(e);
 			} catch (IOException e) {
 				throw new RuntimeException(e);
 			}
-
-			pos += bytes.size();
 		}
-		saveToFile(allBytes.toByteArray(), startPos);
-
 	}
 
-	public <T extends Serializable & Comparable<T>> void load(NodeRef<T> node) {
-		try {
-			FileInputStream fis = new FileInputStream(getFile(node
-					.getPosition().get().getFileNumber()));
-			fis.skip(node.getPosition().get().getPosition());
-			BufferedInputStream bis = new BufferedInputStream(fis, 1024);
-			System.out.println("loading node from " + node.getPosition().get());
-			node.load(bis);
-		} catch (FileNotFoundException e) {
-			throw new RuntimeException(e);
-		} catch (IOException e) {
+	/**
+	 * Returns if the channel was closed by another thread (evicted from the
+	 * pool or closed by the interrupt of another thread using it) so that
+	 * the operation can be retried on a reopened channel. Otherwise the
+	 * current thread was interrupted and a retry would be interrupted again,
+	 * so its interrupt status is restored and a {@link RuntimeException} is
+	 * thrown.
+	 * 
+	 * @param e
+	 */
+	private static void checkRetry(ClosedChannelException e) {
+		if (e instanceof ClosedByInterruptException
+				|| Thread.currentThread().isInterrupted()) {
+			Thread.currentThread().interrupt();
 			throw new RuntimeException(e);
 		}
 	}
 
 	/**
-	 * Saves byte array to the startpos given in the file.
+	 * Decodes the record at position into the node and returns the length of
+	 * the record.
 	 * 
-	 * @param bytes
-	 * @param pos
+	 * @param position
+	 * @param node
+	 * @param codec
+	 * @return
 	 */
-	private void saveToFile(byte[] bytes, Position pos) {
+	<T extends Comparable<T>> int load(Position position, Node<T> node,
+			NodeCodec<T> codec) {
 		try {
-			RandomAccessFile f = new RandomAccessFile(
-					getFile(pos.getFileNumber()), "rw");
-			f.seek(pos.getPosition());
-			f.write(bytes);
-			f.close();
-		} catch (FileNotFoundException e) {
-			throw new RuntimeException(e);
-		} catch (IOException e) {
-			throw new RuntimeException(e);
+			if (readMode == ReadMode.MEMORY_MAPPED)
+				return loadMapped(position, node, codec);
+			else
+				return loadChannel(position, node, codec);
+		} catch (CorruptRecordException e) {
+			throw new CorruptRecordException(getFile(position.getFileNumber())
+					+ ": " + e.getMessage());
 		}
 	}
 
-	public void markObsoleteNodes() {
+	private <T extends Comparable<T>> int loadChannel(Position position,
+			Node<T> node, NodeCodec<T> codec) {
+		ByteBuffer bb = NodeCodec.readBuffer(READ_SIZE);
+		int n = read(position.getFileNumber(), bb, position.getPosition());
+		int length = NodeCodec.recordLength(bb, n);
+		if (length > n) {
+			bb = NodeCodec.readBuffer(length);
+			read(position.getFileNumber(), bb, position.getPosition());
+		}
+		bb.position(0);
+		bb.limit(length);
+		return codec.decode(bb, node);
+	}
 
-		// for each file from oldest to newest
-		// find an obsolete root node and mark all its children as obsolete
-		try {
-			RandomAccessFile f = new RandomAccessFile(file, "rw");
-		} catch (FileNotFoundException e) {
-			throw new RuntimeException(e);
+	/**
+	 * Reads from the segment file at position until the buffer is full or
+	 * the end of the file is reached and returns the number of bytes read.
+	 * Uses positional reads on a pooled channel so that any number of threads
+	 * can read at once.
+	 * 
+	 * @param fileNumber
+	 * @param bb
+	 * @param position
+	 * @return
+	 */
+	private int read(long fileNumber, ByteBuffer bb, long position) {
+		while (true) {
+			bb.position(0);
+			try {
+				FileChannel channel = channels.get(fileNumber);
+				while (bb.hasRemaining()) {
+					int n = channel.read(bb, position + bb.position());
+					if (n < 0)
+						break;
+				}
+				return bb.position();
+			} catch (ClosedChannelException e) {
+				checkRetry(e);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
 		}
 	}
 
-	public void markForDeletion(Position position) {
-		markForDeletion(getFile(position.getFileNumber()),
-				position.getPosition());
+	private <T extends Comparable<T>> int loadMapped(Position position,
+			Node<T> node, NodeCodec<T> codec) {
+		ByteBuffer bb = mapped(position).duplicate();
+		bb.position((int) position.getPosition());
+		return codec.decode(bb, node);
 	}
 
-	static void markForDeletion(File file, long pos) {
+	/**
+	 * Returns the mapping of the segment file containing the given position.
+	 * A segment is mapped once and only remapped if the position lies beyond
+	 * the end of the existing mapping (which can only happen for the active
+	 * segment because it is still growing).
+	 * 
+	 * @param position
+	 * @return
+	 */
+	private MappedByteBuffer mapped(Position position) {
+		MappedByteBuffer m = mapped.get(position.getFileNumber());
+		if (m != null && position.getPosition() < m.capacity())
+			return m;
+		// synchronize with save so that a mapping never includes a partially
+		// written batch
+		synchronized (this) {
+			m = mapped.get(position.getFileNumber());
+			if (m == null || position.getPosition() >= m.capacity()) {
+				m = map(getFile(position.getFileNumber()));
+				mapped.put(position.getFileNumber(), m);
+			}
+			return m;
+		}
+	}
+
+	/**
+	 * Returns a read-only mapping of the records in the segment file saved so
+	 * far. The mapping is independent of the mappings used for loading nodes.
+	 * 
+	 * @param fileNumber
+	 * @return
+	 */
+	ByteBuffer mapSegment(long fileNumber) {
+		// synchronize with save so that the mapping never includes a partially
+		// written batch
+		synchronized (this) {
+			return map(getFile(fileNumber));
+		}
+	}
+
+	private static MappedByteBuffer map(File file) {
 		try {
-			FileInputStream fis = new FileInputStream(file);
-			fis.skip(pos);
-			ObjectInputStream ois = new ObjectInputStream(fis);
-			long lengthBytes = ois.readLong();
-			boolean canDelete = ois.readBoolean();
-			ois.close();
-
-			if (!canDelete) {
-				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-				ObjectOutputStream oos = new ObjectOutputStream(bytes);
-				oos.writeLong(lengthBytes);
-				oos.flush();
-				// mark as deleteable
-				oos.writeBoolean(true);
-				oos.close();
-				RandomAccessFile f = new RandomAccessFile(file, "w");
-				f.seek(pos);
-				f.write(bytes.toByteArray());
+			RandomAccessFile f = new RandomAccessFile(file, "r");
+			try {
+				FileChannel channel = f.getChannel();
+				// the mapping stays valid after the channel is closed
+				return channel.map(FileChannel.MapMode.READ_ONLY, 0,
+						channel.size());
+			} finally {
 				f.close();
 			}
-			// skip 4 bytes, then 8 bytes of long
 		} catch (FileNotFoundException e) {
 			throw new RuntimeException(e);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
+	}
 
+	/**
+	 * Saves the bytes in the buffer to the startpos given in the file.
+	 * 
+	 * @param bytes
+	 * @param pos
+	 */
+	private void saveToFile(RecordBuffer bytes, Position pos) {
+		while (true) {
+			ByteBuffer bb = bytes.asByteBuffer();
+			try {
+				FileChannel channel = channels.get(pos.getFileNumber());
+				while (bb.hasRemaining())
+					channel.write(bb, pos.getPosition() + bb.position());
+				return;
+			} catch (ClosedChannelException e) {
+				checkRetry(e);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
 	}
 
-	void markObsolete(Position position) {
+	/**
+	 * Records that the record of length bytes at position is no longer
+	 * reachable from the root.
+	 * 
+	 * @param position
+	 * @param length
+	 */
+	void markObsolete(Position position, int length) {
+		addObsolete(position.getFileNumber(), length);
+	}
 
+	private void addObsolete(long fileNumber, long length) {
+		AtomicLong bytes = obsoleteBytes.get(fileNumber);
+		if (bytes == null) {
+			obsoleteBytes.putIfAbsent(fileNumber, new AtomicLong());
+			bytes = obsoleteBytes.get(fileNumber);
+		}
+		bytes.addAndGet(length);
+	}
+
+	/**
+	 * Returns a snapshot of the obsolete bytes by segment file number.
+	 * 
+	 * @return
+	 */
+	Map<Long, Long> getObsoleteBytes() {
+		Map<Long, Long> map = Maps.newHashMap();
+		for (Entry<Long, AtomicLong> entry : obsoleteBytes.entrySet())
+			map.put(entry.getKey(), entry.getValue().get());
+		return map;
+	}
+
+	/**
+	 * Restores the obsolete bytes by segment file number (as recorded by the
+	 * last commit) ignoring segment files that no longer exist.
+	 * 
+	 * @param map
+	 */
+	void setObsoleteBytes(Map<Long, Long> map) {
+		obsoleteBytes.clear();
+		for (Entry<Long, Long> entry : map.entrySet())
+			if (getFile(entry.getKey()).exists())
+				obsoleteBytes.put(entry.getKey(),
+						new AtomicLong(entry.getValue()));
+	}
+
+	/**
+	 * Returns the proportion of the bytes in the segment file that are still
+	 * reachable from the root (as far as this object has been told by
+	 * {@link #markObsolete(Position, int)}).
+	 * 
+	 * @param fileNumber
+	 * @return
+	 */
+	public double getLiveRatio(long fileNumber) {
+		long length = getFile(fileNumber).length();
+		if (length == 0)
+			return 1;
+		AtomicLong bytes = obsoleteBytes.get(fileNumber);
+		if (bytes == null)
+			return 1;
+		else
+			return Math.max(0, 1 - bytes.get() / (double) length);
+	}
+
+	/**
+	 * Returns the numbers of the segment files that are no longer being
+	 * written to and whose live ratio is below minLiveRatio.
+	 * 
+	 * @param minLiveRatio
+	 * @return
+	 */
+	List<Long> getCompactionCandidates(double minLiveRatio) {
+		List<Long> list = Lists.newArrayList();
+		long active;
+		synchronized (writeMonitor) {
+			active = fileNumber;
+		}
+		for (long number : getFileNumbers())
+			if (number < active && getLiveRatio(number) < minLiveRatio)
+				list.add(number);
+		return list;
+	}
+
+	/**
+	 * Counts the bytes not in the manifest of the last commit as obsolete:
+	 * all of each segment file not in it (written after the commit or left
+	 * behind by a compaction that did not finish deleting them) and those of
+	 * the last live segment file past its length at the commit. None of them
+	 * are reachable from the committed root so compaction reclaims them.
+	 * Files are not deleted as another b-tree may still be writing them.
+	 * 
+	 * @param segments
+	 *            the numbers of the live segment files in ascending order
+	 * @param lastSegmentLength
+	 */
+	void markUncommitted(List<Long> segments, long lastSegmentLength) {
+		Set<Long> live = Sets.newHashSet(segments);
+		for (long number : getFileNumbers())
+			if (!live.contains(number))
+				addObsolete(number, getFile(number).length());
+		if (!segments.isEmpty()) {
+			long last = segments.get(segments.size() - 1);
+			long length = getFile(last).length();
+			if (length > lastSegmentLength)
+				addObsolete(last, length - lastSegmentLength);
+		}
+	}
+
+	/**
+	 * Deletes the segment files. The caller must ensure that no node
+	 * reachable from the root is stored in them.
+	 * 
+	 * @param fileNumbers
+	 */
+	synchronized void delete(Collection<Long> fileNumbers) {
+		for (long number : fileNumbers) {
+			mapped.remove(number);
+			channels.evict(number);
+			obsoleteBytes.remove(number);
+			unsynced.remove(number);
+			getFile(number).delete();
+		}
+	}
+
+	/**
+	 * Closes the open segment files. They are reopened if storage is used
+	 * again.
+	 */
+	public void close() {
+		channels.close();
 	}
 
 	public static void main(String[] args) throws IOException {
@@ -230,4 +566,8 @@ public class Storage {
 	public String getName() {
 		return name;
 	}
+
+	public ReadMode getReadMode() {
+		return readMode;
+	}
 }
@@ -0,0 +1,74 @@
+package com.github.davidmoten.structures.btree;
+
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Reduces the values of a subtree on a fork-join pool. The task for a node
+ * forks a task for each child, so children are loaded from storage and
+ * reduced by whichever workers are free. The results are combined in key
+ * order so the combiner need not be commutative. Deleted keys are skipped.
+ * 
+ * @author dxm
+ * 
+ * @param <T>
+ * @param <R>
+ */
+class SubtreeReduction<T extends Comparable<T>, R> extends RecursiveTask<R> {
+
+	private static final long serialVersionUID = 1L;
+
+	private final NodeRef<T> node;
+	private final R identity;
+	private final BiFunction<R, ? super T, R> accumulator;
+	private final BinaryOperator<R> combiner;
+
+	SubtreeReduction(NodeRef<T> node, R identity,
+			BiFunction<R, ? super T, R> accumulator, BinaryOperator<R> combiner) {
+		this.node = node;
+		this.identity = identity;
+		this.accumulator = accumulator;
+		this.combiner = combiner;
+	}
+
+	@Override
+	protected R compute() {
+		List<Key<T>> keys = Lists.newArrayList(node.keys());
+		if (keys.isEmpty() || !keys.get(0).hasChild()) {
+			R result = identity;
+			for (Key<T> key : keys)
+				result = accumulate(result, key);
+			return result;
+		}
+		// adjacent keys share a child so there is one more child than keys
+		List<SubtreeReduction<T, R>> children = Lists.newArrayList();
+		for (Key<T> key : keys)
+			children.add(child(key.getLeft().get()));
+		children.add(child(keys.get(keys.size() - 1).getRight().get()));
+		for (int i = children.size() - 1; i > 0; i--)
+			children.get(i).fork();
+		// the first child is computed by this worker
+		R result = children.get(0).compute();
+		for (int i = 0; i < keys.size(); i++) {
+			result = accumulate(result, keys.get(i));
+			result = combiner.apply(result, children.get(i + 1).join());
+		}
+		return result;
+	}
+
+	private SubtreeReduction<T, R> child(NodeRef<T> child) {
+		return new SubtreeReduction<T, R>(child, identity, accumulator,
+				combiner);
+	}
+
+	private R accumulate(R result, Key<T> key) {
+		if (key.isDeleted())
+			return result;
+		else
+			return accumulator.apply(result, key.value());
+	}
+}
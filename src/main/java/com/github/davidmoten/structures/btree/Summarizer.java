@@ -0,0 +1,52 @@
+package com.github.davidmoten.structures.btree;
+
+/**
+ * Summarizes the values of a subtree, for example their sum, minimum or
+ * maximum. The summaries form a monoid: {@link #combine(Object, Object)}
+ * must be associative and {@link #identity()} must be its identity. The
+ * summary of every child is stored in the record of its parent (see
+ * {@link BTree.Builder#summarizer(Summarizer)}) so that
+ * {@link BTree#summarize(Summarizer, Comparable, Comparable, ComparisonOperator, ComparisonOperator)}
+ * loads about two nodes per level of the tree.
+ * 
+ * @author dxm
+ * 
+ * @param <T>
+ *            the type of the values
+ * @param <S>
+ *            the type of the summaries
+ */
+public interface Summarizer<T, S> {
+
+	/**
+	 * Returns the summary of no values.
+	 * 
+	 * @return
+	 */
+	S identity();
+
+	/**
+	 * Returns the summary of a single value.
+	 * 
+	 * @param t
+	 * @return
+	 */
+	S summarize(T t);
+
+	/**
+	 * Returns the summary of the values summarized by a followed by the
+	 * values summarized by b.
+	 * 
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	S combine(S a, S b);
+
+	/**
+	 * Returns the serializer used to store summaries in node records.
+	 * 
+	 * @return
+	 */
+	Serializer<S> serializer();
+}
@@ -0,0 +1,22 @@
+package com.github.davidmoten.structures.btree;
+
+import com.google.common.base.Optional;
+
+/**
+ * The number of values (not counting deleted values) in a subtree and their
+ * summary if a {@link Summarizer} is configured. Immutable.
+ * 
+ * @author dxm
+ * 
+ */
+class Summary {
+
+	final long count;
+
+	final Optional<Object> value;
+
+	Summary(long count, Optional<Object> value) {
+		this.count = count;
+		this.value = value;
+	}
+}
@@ -0,0 +1,394 @@
+package com.github.davidmoten.structures.btree;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.zip.CRC32;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * The metadata of a b-tree: the position of its root, its degree, the
+ * serializer of its keys, where its storage is, which storage segment files were live at the commit (the
+ * manifest) and how many obsolete bytes each segment file holds.
+ * 
+ * <p>
+ * The metadata file holds two fixed-size slots. Each commit writes the slot
+ * not holding the latest commit and then forces it to disk, so a crash
+ * during a commit leaves the previous commit intact. Each slot is
+ * </p>
+ * 
+ * <pre>
+ * int    magic number
+ * int    format version
+ * long   commit sequence number
+ * long   root file number, long root position
+ * int    degree
+ * string storage directory, string storage name (int length + UTF-8)
+ * string serializer id (see {@link Serializers#id(Serializer)})
+ * int    number of ranges of live segment file numbers (-1 if they did not
+ *        fit), then per range: long first file number, long last file number
+ * long   length of the last live segment file
+ * int    number of segments, then per segment: long file number, long obsolete bytes
+ * int    CRC32 of all the preceding bytes of the slot
+ * </pre>
+ * 
+ * <p>
+ * Segment files are mostly numbered consecutively so the manifest is kept
+ * as ranges. When reading, the valid slot (magic number and checksum match)
+ * with the highest sequence number wins. Slots of version 1 (without a
+ * manifest) are read as are metadata files written with
+ * <code>ObjectOutputStream</code> by earlier versions if neither slot is
+ * valid.
+ * </p>
+ * 
+ * @author dxm
+ * 
+ */
+class Superblock {
+
+	static final int SLOT_SIZE = 64 * 1024;
+
+	private static final int MAGIC = 0x42545245;
+
+	private static final int VERSION = 2;
+
+	/**
+	 * The version written before the manifest was added.
+	 */
+	private static final int VERSION_WITHOUT_MANIFEST = 1;
+
+	/**
+	 * The bytes in a slot that are not range or segment entries (excluding
+	 * the storage directory and name).
+	 */
+	private static final int FIXED_LENGTH = 4 + 4 + 8 + 8 + 8 + 4 + 4 + 4 + 4
+			+ 4 + 8 + 4 + 4;
+
+	private static final int RANGE_ENTRY_LENGTH = 16;
+
+	private static final int SEGMENT_ENTRY_LENGTH = 16;
+
+	/**
+	 * The first byte of a java serialization stream (0xACED).
+	 */
+	private static final byte LEGACY_FIRST_BYTE = (byte) 0xAC;
+
+	final long sequence;
+	final Position rootPosition;
+	final int degree;
+	final String storageDirectory;
+	final String storageName;
+
+	/**
+	 * The id of the serializer of the keys. Absent if written by an earlier
+	 * version.
+	 */
+	final Optional<String> serializerId;
+
+	/**
+	 * The numbers of the live segment files in ascending order. Absent if
+	 * not known (written by an earlier version or too many to fit).
+	 */
+	final Optional<List<Long>> segments;
+
+	/**
+	 * The length of the last live segment file at the commit. It may have
+	 * been appended to since.
+	 */
+	final long lastSegmentLength;
+
+	/**
+	 * Obsolete bytes by segment file number. Segment files not present have
+	 * no obsolete bytes.
+	 */
+	final Map<Long, Long> obsoleteBytes;
+
+	Superblock(long sequence, Position rootPosition, int degree,
+			String storageDirectory, String storageName,
+			Optional<String> serializerId, Optional<List<Long>> segments, long lastSegmentLength,
+			Map<Long, Long> obsoleteBytes) {
+		this.sequence = sequence;
+		this.rootPosition = rootPosition;
+		this.degree = degree;
+		this.storageDirectory = storageDirectory;
+		this.storageName = storageName;
+		this.serializerId = serializerId;
+		this.segments = segments;
+		this.lastSegmentLength = lastSegmentLength;
+		this.obsoleteBytes = obsoleteBytes;
+	}
+
+	/**
+	 * Writes this superblock to the slot for its sequence number and forces
+	 * it to disk.
+	 * 
+	 * @param file
+	 */
+	void write(File file) {
+		try {
+			RandomAccessFile f = new RandomAccessFile(file, "rw");
+			try {
+				f.getChannel().write(ByteBuffer.wrap(toBytes()),
+						(sequence % 2) * SLOT_SIZE);
+				f.getChannel().force(true);
+			} finally {
+				f.close();
+			}
+		} catch (FileNotFoundException e) {
+			throw new RuntimeException(e);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private byte[] toBytes() throws IOException {
+		RecordBuffer buffer = new RecordBuffer(SLOT_SIZE);
+		DataOutputStream out = new DataOutputStream(buffer);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(sequence);
+		out.writeLong(rootPosition.getFileNumber());
+		out.writeLong(rootPosition.getPosition());
+		out.writeInt(degree);
+		byte[] directory = storageDirectory.getBytes(Charsets.UTF_8);
+		byte[] name = storageName.getBytes(Charsets.UTF_8);
+		out.writeInt(directory.length);
+		out.write(directory);
+		out.writeInt(name.length);
+		out.write(name);
+		byte[] serializer = serializerId.or("").getBytes(Charsets.UTF_8);
+		out.writeInt(serializer.length);
+		out.write(serializer);
+		int available = SLOT_SIZE - FIXED_LENGTH - directory.length
+				- name.length - serializer.length;
+		List<long[]> ranges = ranges();
+		if (ranges.size() * RANGE_ENTRY_LENGTH <= available) {
+			out.writeInt(ranges.size());
+			for (long[] range : ranges) {
+				out.writeLong(range[0]);
+				out.writeLong(range[1]);
+			}
+			available -= ranges.size() * RANGE_ENTRY_LENGTH;
+		} else
+			// found by listing the storage directory when read
+			out.writeInt(-1);
+		out.writeLong(lastSegmentLength);
+		List<Entry<Long, Long>> segments = segmentsToWrite(available);
+		out.writeInt(segments.size());
+		for (Entry<Long, Long> entry : segments) {
+			out.writeLong(entry.getKey());
+			out.writeLong(entry.getValue());
+		}
+		CRC32 crc = new CRC32();
+		crc.update(buffer.toByteArray());
+		out.writeInt((int) crc.getValue());
+		out.close();
+		return buffer.toByteArray();
+	}
+
+	/**
+	 * Returns the live segment file numbers as ranges of consecutive numbers
+	 * (first and last).
+	 * 
+	 * @return
+	 */
+	private List<long[]> ranges() {
+		List<long[]> ranges = Lists.newArrayList();
+		if (!segments.isPresent())
+			return ranges;
+		for (long number : segments.get()) {
+			long[] last = ranges.isEmpty() ? null : ranges
+					.get(ranges.size() - 1);
+			if (last != null && last[1] + 1 == number)
+				last[1] = number;
+			else
+				ranges.add(new long[] { number, number });
+		}
+		return ranges;
+	}
+
+	/**
+	 * Returns the segment entries that fit in the available bytes, keeping
+	 * the segments with the most obsolete bytes (the others will be seen as
+	 * fully live after reopening which only delays their compaction).
+	 * 
+	 * @param available
+	 * @return
+	 */
+	private List<Entry<Long, Long>> segmentsToWrite(int available) {
+		List<Entry<Long, Long>> list = Lists.newArrayList();
+		for (Entry<Long, Long> entry : obsoleteBytes.entrySet())
+			if (entry.getValue() > 0)
+				list.add(entry);
+		int max = available / SEGMENT_ENTRY_LENGTH;
+		if (list.size() > max) {
+			Collections.sort(list, new Comparator<Entry<Long, Long>>() {
+				@Override
+				public int compare(Entry<Long, Long> a, Entry<Long, Long> b) {
+					return b.getValue().compareTo(a.getValue());
+				}
+			});
+			list = list.subList(0, max);
+		}
+		return list;
+	}
+
+	/**
+	 * Reads the latest valid superblock from the file.
+	 * 
+	 * @param file
+	 * @return
+	 */
+	static Superblock read(File file) {
+		try {
+			RandomAccessFile f = new RandomAccessFile(file, "r");
+			try {
+				ByteBuffer bb = ByteBuffer.allocate((int) Math.min(
+						f.length(), 2 * SLOT_SIZE));
+				f.getChannel().read(bb, 0);
+				bb.flip();
+				Optional<Superblock> latest = Optional.absent();
+				for (int slot = 0; slot < 2; slot++) {
+					Optional<Superblock> sb = parse(bb, slot * SLOT_SIZE);
+					if (sb.isPresent()
+							&& (!latest.isPresent() || sb.get().sequence > latest
+									.get().sequence))
+						latest = sb;
+				}
+				if (latest.isPresent())
+					return latest.get();
+				else if (bb.remaining() > 0 && bb.get(0) == LEGACY_FIRST_BYTE)
+					// not committed since the upgrade (or the first commit
+					// was torn)
+					return readLegacy(file);
+				else
+					throw new RuntimeException("no valid superblock in "
+							+ file);
+			} finally {
+				f.close();
+			}
+		} catch (FileNotFoundException e) {
+			throw new RuntimeException(e);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Returns the superblock in the slot at offset if the slot is valid.
+	 * 
+	 * @param bytes
+	 * @param offset
+	 * @return
+	 */
+	private static Optional<Superblock> parse(ByteBuffer bytes, int offset) {
+		if (bytes.limit() < offset + FIXED_LENGTH)
+			return Optional.absent();
+		ByteBuffer bb = bytes.duplicate();
+		bb.position(offset);
+		bb.limit(Math.min(bytes.limit(), offset + SLOT_SIZE));
+		try {
+			if (bb.getInt() != MAGIC)
+				return Optional.absent();
+			int version = bb.getInt();
+			if (version != VERSION && version != VERSION_WITHOUT_MANIFEST)
+				return Optional.absent();
+			long sequence = bb.getLong();
+			Position root = new Position(bb.getLong(), bb.getLong());
+			int degree = bb.getInt();
+			String directory = readString(bb);
+			String name = readString(bb);
+			Optional<String> serializerId = Optional.absent();
+			Optional<List<long[]>> ranges = Optional.absent();
+			long lastSegmentLength = 0;
+			if (version == VERSION) {
+				String serializer = readString(bb);
+				if (!serializer.isEmpty())
+					serializerId = Optional.of(serializer);
+				int n = bb.getInt();
+				if (n >= 0) {
+					List<long[]> list = Lists.newArrayList();
+					for (int i = 0; i < n; i++)
+						list.add(new long[] { bb.getLong(), bb.getLong() });
+					ranges = Optional.of(list);
+				}
+				lastSegmentLength = bb.getLong();
+			}
+			int count = bb.getInt();
+			Map<Long, Long> obsoleteBytes = Maps.newHashMap();
+			for (int i = 0; i < count; i++)
+				obsoleteBytes.put(bb.getLong(), bb.getLong());
+			int length = bb.position() - offset;
+			int checksum = bb.getInt();
+			CRC32 crc = new CRC32();
+			crc.update(bytes.array(), bytes.arrayOffset() + offset, length);
+			if ((int) crc.getValue() != checksum)
+				return Optional.absent();
+			Optional<List<Long>> segments = Optional.absent();
+			if (ranges.isPresent()) {
+				List<Long> list = Lists.newArrayList();
+				for (long[] range : ranges.get())
+					for (long number = range[0]; number <= range[1]; number++)
+						list.add(number);
+				segments = Optional.of(list);
+			}
+			return Optional.of(new Superblock(sequence, root, degree,
+					directory, name, serializerId, segments, lastSegmentLength,
+					obsoleteBytes));
+		} catch (RuntimeException e) {
+			// a torn or garbage slot (BufferUnderflowException,
+			// IllegalArgumentException)
+			return Optional.absent();
+		}
+	}
+
+	private static String readString(ByteBuffer bb) {
+		byte[] bytes = new byte[bb.getInt()];
+		bb.get(bytes);
+		return new String(bytes, Charsets.UTF_8);
+	}
+
+	/**
+	 * Reads metadata written with <code>ObjectOutputStream</code> by earlier
+	 * versions. The sequence number returned is 0 so that the first commit
+	 * goes to slot 1 and the legacy metadata in slot 0 is only overwritten
+	 * by the second commit, once a valid superblock is on disk.
+	 * 
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	private static Superblock readLegacy(File file) throws IOException {
+		ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file));
+		try {
+			String storageDirectory = (String) ois.readObject();
+			String storageName = (String) ois.readObject();
+			long rootFileNumber = ois.readLong();
+			long rootPosition = ois.readLong();
+			int degree = ois.readInt();
+			return new Superblock(0, new Position(rootFileNumber,
+					rootPosition), degree, storageDirectory, storageName,
+					Optional.<String> absent(),
+					Optional.<List<Long>> absent(), 0,
+					Collections.<Long, Long> emptyMap());
+		} catch (ClassNotFoundException e) {
+			throw new RuntimeException(e);
+		} finally {
+			ois.close();
+		}
+	}
+}
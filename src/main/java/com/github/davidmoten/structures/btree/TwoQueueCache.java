@@ -0,0 +1,187 @@
+package com.github.davidmoten.structures.btree;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.google.common.cache.AbstractCache;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.Maps;
+
+/**
+ * A weighted cache using the 2Q replacement policy (Johnson and Shasha,
+ * 1994).
+ * 
+ * <p>
+ * New entries go into a FIFO queue (A1in) that holds a quarter of the
+ * maximum weight. Entries leaving A1in are forgotten but their keys are
+ * remembered in a ghost queue (A1out). An entry put again while its key is
+ * in A1out is admitted to the main LRU queue (Am). Entries used only once,
+ * as in a scan, therefore pass through A1in without displacing the entries
+ * in Am.
+ * </p>
+ * 
+ * <p>
+ * Only the {@link #getIfPresent(Object)}, {@link #put(Object, Object)},
+ * {@link #containsKey(Object)}, invalidation, {@link #size()} and
+ * {@link #stats()} operations are supported. All operations are
+ * synchronized.
+ * </p>
+ * 
+ * @author dxm
+ * 
+ * @param <K>
+ * @param <V>
+ */
+class TwoQueueCache<K, V> extends AbstractCache<K, V> {
+
+	private final long maxWeight;
+	private final long maxInWeight;
+	private final long maxOutWeight;
+	private final Weigher<K, V> weigher;
+
+	/**
+	 * A1in in insertion order.
+	 */
+	private final LinkedHashMap<K, Weighted<V>> in = new LinkedHashMap<K, Weighted<V>>();
+
+	/**
+	 * Am in access order.
+	 */
+	private final LinkedHashMap<K, Weighted<V>> main = new LinkedHashMap<K, Weighted<V>>(
+			16, 0.75f, true);
+
+	/**
+	 * A1out in insertion order. Values are the weights of the forgotten
+	 * entries.
+	 */
+	private final LinkedHashMap<K, Integer> out = new LinkedHashMap<K, Integer>();
+
+	private long inWeight;
+	private long mainWeight;
+	private long outWeight;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	TwoQueueCache(long maxWeight, Weigher<K, V> weigher) {
+		this.maxWeight = maxWeight;
+		this.maxInWeight = maxWeight / 4;
+		this.maxOutWeight = maxWeight / 2;
+		this.weigher = weigher;
+	}
+
+	private static class Weighted<V> {
+		final V value;
+		final int weight;
+
+		Weighted(V value, int weight) {
+			this.value = value;
+			this.weight = weight;
+		}
+	}
+
+	@Override
+	public synchronized V getIfPresent(Object key) {
+		Weighted<V> w = main.get(key);
+		if (w == null)
+			w = in.get(key);
+		if (w == null) {
+			misses++;
+			return null;
+		} else {
+			hits++;
+			return w.value;
+		}
+	}
+
+	/**
+	 * Returns true if the key is in A1in or Am. Does not change the order of
+	 * the queues or the statistics.
+	 * 
+	 * @param key
+	 * @return
+	 */
+	synchronized boolean containsKey(Object key) {
+		return main.containsKey(key) || in.containsKey(key);
+	}
+
+	@Override
+	public synchronized void put(K key, V value) {
+		Weighted<V> w = new Weighted<V>(value, weigher.weigh(key, value));
+		Weighted<V> previous = main.get(key);
+		if (previous != null) {
+			mainWeight += w.weight - previous.weight;
+			main.put(key, w);
+		} else if ((previous = in.get(key)) != null) {
+			inWeight += w.weight - previous.weight;
+			in.put(key, w);
+		} else {
+			Integer ghost = out.remove(key);
+			if (ghost != null) {
+				outWeight -= ghost;
+				main.put(key, w);
+				mainWeight += w.weight;
+			} else {
+				in.put(key, w);
+				inWeight += w.weight;
+			}
+		}
+		evict();
+	}
+
+	private void evict() {
+		while (inWeight + mainWeight > maxWeight) {
+			if (!in.isEmpty() && (inWeight > maxInWeight || main.isEmpty())) {
+				Entry<K, Weighted<V>> eldest = removeEldest(in);
+				inWeight -= eldest.getValue().weight;
+				out.put(eldest.getKey(), eldest.getValue().weight);
+				outWeight += eldest.getValue().weight;
+			} else
+				mainWeight -= removeEldest(main).getValue().weight;
+			evictions++;
+		}
+		while (outWeight > maxOutWeight)
+			outWeight -= removeEldest(out).getValue();
+	}
+
+	private static <K, V> Entry<K, V> removeEldest(Map<K, V> map) {
+		Iterator<Entry<K, V>> it = map.entrySet().iterator();
+		Entry<K, V> eldest = it.next();
+		it.remove();
+		return Maps.immutableEntry(eldest.getKey(), eldest.getValue());
+	}
+
+	@Override
+	public synchronized void invalidate(Object key) {
+		Weighted<V> w = main.remove(key);
+		if (w != null)
+			mainWeight -= w.weight;
+		else if ((w = in.remove(key)) != null)
+			inWeight -= w.weight;
+	}
+
+	@Override
+	public synchronized void invalidateAll() {
+		main.clear();
+		in.clear();
+		out.clear();
+		mainWeight = 0;
+		inWeight = 0;
+		outWeight = 0;
+	}
+
+	@Override
+	public synchronized long size() {
+		return main.size() + in.size();
+	}
+
+	@Override
+	public synchronized CacheStats stats() {
+		return new CacheStats(hits, misses, 0, 0, 0, evictions);
+	}
+
+}
@@ -1,12 +1,11 @@
 package com.github.davidmoten.structures.btree;
 
-import java.io.Serializable;
 import java.util.Iterator;
 
 import com.google.common.base.Optional;
 
 public class Util {
-	public static <T extends Serializable & Comparable<T>> Iterable<Key<T>> keys(
+	public static <T extends Comparable<T>> Iterable<Key<T>> keys(
 			final Optional<Key<T>> first) {
 		return new Iterable<Key<T>>() {
 
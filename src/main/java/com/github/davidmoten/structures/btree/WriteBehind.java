@@ -0,0 +1,242 @@
+package com.github.davidmoten.structures.btree;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Sets;
+
+/**
+ * Saves nodes to {@link Storage} asynchronously. Each insert publishes its
+ * new root to a bounded queue and a background thread coalesces the roots
+ * published by many inserts into one append to storage.
+ * 
+ * <p>
+ * Because a b-tree insert copies the path from the root to a leaf, nodes
+ * published by one insert are often superseded by the next insert before
+ * they have been saved. The flusher only saves the unsaved nodes that are
+ * reachable from the latest root it has taken from the queue so superseded
+ * nodes are never written.
+ * </p>
+ * 
+ * @author dxm
+ * 
+ * @param <T>
+ */
+class WriteBehind<T extends Comparable<T>> {
+
+	/**
+	 * Notified after nodes have been saved.
+	 * 
+	 * @param <T>
+	 */
+	static interface Listener<T extends Comparable<T>> {
+		void saved(List<NodeRef<T>> nodes);
+	}
+
+	/**
+	 * The record size assumed before any records have been written.
+	 */
+	private static final long INITIAL_RECORD_SIZE_ESTIMATE = 256;
+
+	private final Storage storage;
+	private final NodeCodec<T> codec;
+	private final Listener<T> listener;
+	private final long maxLatencyMs;
+	private final long maxBytes;
+	private final BlockingQueue<Published<T>> queue;
+	private final Thread thread;
+
+	/**
+	 * Guards {@link #submitted}, {@link #saved} and {@link #error}.
+	 */
+	private final Object monitor = new Object();
+	private long submitted = 0;
+	private long saved = 0;
+	private Optional<RuntimeException> error = Optional.absent();
+
+	private volatile boolean running = true;
+
+	/**
+	 * Used to estimate the bytes that pending nodes will occupy in storage.
+	 * Only accessed by the flusher thread.
+	 */
+	private long bytesWritten = 0;
+	private long recordsWritten = 0;
+
+	WriteBehind(Storage storage, NodeCodec<T> codec, Listener<T> listener,
+			int queueSize, long maxLatencyMs, long maxBytes) {
+		this.storage = storage;
+		this.codec = codec;
+		this.listener = listener;
+		this.maxLatencyMs = maxLatencyMs;
+		this.maxBytes = maxBytes;
+		this.queue = new ArrayBlockingQueue<Published<T>>(queueSize);
+		this.thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				flushLoop();
+			}
+		}, "btree-write-behind-" + storage.getName());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * The root published by an insert and the number of nodes the insert
+	 * created.
+	 */
+	private static class Published<T extends Comparable<T>> {
+		final NodeRef<T> root;
+		final int nodes;
+
+		Published(NodeRef<T> root, int nodes) {
+			this.root = root;
+			this.nodes = nodes;
+		}
+	}
+
+	/**
+	 * Publishes the root of the b-tree after an insert that created the given
+	 * number of nodes. Blocks if the queue is full.
+	 * 
+	 * @param root
+	 * @param nodes
+	 */
+	void submit(NodeRef<T> root, int nodes) {
+		checkError();
+		synchronized (monitor) {
+			submitted++;
+		}
+		try {
+			queue.put(new Published<T>(root, nodes));
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Blocks until every root submitted before this call has been saved.
+	 */
+	void flush() {
+		synchronized (monitor) {
+			long target = submitted;
+			while (saved < target && !error.isPresent())
+				try {
+					monitor.wait();
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+		}
+		checkError();
+	}
+
+	/**
+	 * Saves everything submitted and stops the flusher thread.
+	 */
+	void close() {
+		flush();
+		running = false;
+		thread.interrupt();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void checkError() {
+		synchronized (monitor) {
+			if (error.isPresent())
+				throw new RuntimeException("write-behind failed",
+						error.get());
+		}
+	}
+
+	private void flushLoop() {
+		while (running) {
+			try {
+				Published<T> first = queue.poll(1, TimeUnit.SECONDS);
+				if (first != null)
+					flushFrom(first);
+			} catch (InterruptedException e) {
+				// closing
+			} catch (RuntimeException e) {
+				synchronized (monitor) {
+					error = Optional.of(e);
+					monitor.notifyAll();
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Coalesces roots from the queue until the max latency has elapsed since
+	 * the first was taken or the estimated bytes reach max bytes, then saves
+	 * the pending nodes of the latest root.
+	 * 
+	 * @param first
+	 * @throws InterruptedException
+	 */
+	private void flushFrom(Published<T> first) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + maxLatencyMs;
+		Published<T> latest = first;
+		long count = 1;
+		long recordSize = recordsWritten == 0 ? INITIAL_RECORD_SIZE_ESTIMATE
+				: bytesWritten / recordsWritten;
+		long bytes = first.nodes * recordSize;
+		while (bytes < maxBytes) {
+			long wait = deadline - System.currentTimeMillis();
+			Published<T> p;
+			if (wait > 0)
+				p = queue.poll(wait, TimeUnit.MILLISECONDS);
+			else
+				p = queue.poll();
+			if (p == null)
+				break;
+			latest = p;
+			count++;
+			bytes += p.nodes * recordSize;
+		}
+		List<NodeRef<T>> nodes = new LinkedList<NodeRef<T>>();
+		addUnsaved(latest.root, nodes, Sets.<NodeRef<T>> newIdentityHashSet());
+		if (!nodes.isEmpty()) {
+			bytesWritten += storage.save(nodes, codec);
+			recordsWritten += nodes.size();
+			listener.saved(nodes);
+		}
+		synchronized (monitor) {
+			saved += count;
+			monitor.notifyAll();
+		}
+	}
+
+	/**
+	 * Adds the unsaved nodes of the subtree rooted at node to the list in
+	 * post-order so that children are always saved before their parents. A
+	 * saved node cannot have unsaved descendants so saved nodes are not
+	 * descended.
+	 * 
+	 * @param node
+	 * @param list
+	 */
+	private static <T extends Comparable<T>> void addUnsaved(NodeRef<T> node,
+			List<NodeRef<T>> list, Set<NodeRef<T>> visited) {
+		// the left child of a key is usually the right child of the previous
+		// key so check visited
+		if (node.getPosition().isPresent() || !visited.add(node))
+			return;
+		for (Key<T> key : node.keys()) {
+			if (key.getLeft().isPresent())
+				addUnsaved(key.getLeft().get(), list, visited);
+			if (key.getRight().isPresent())
+				addUnsaved(key.getRight().get(), list, visited);
+		}
+		list.add(node);
+	}
+}
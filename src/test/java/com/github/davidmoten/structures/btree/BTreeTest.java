@@ -5,18 +5,38 @@ import static java.lang.Runtime.getRuntime;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 import org.junit.Test;
 
 import com.google.common.base.Optional;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
 
 public class BTreeTest {
 
@@ -711,6 +731,130 @@ public class BTreeTest {
 		checkEquals(t2, values);
 	}
 
+	@Test
+	public void testSaveManyItemsAndReadMemoryMapped() {
+		File f = createFile("target/testMapped.index");
+		Integer[] values = new Integer[MANY_VALUES];
+		for (int i = 0; i < values.length; i++)
+			values[i] = i + 1;
+
+		builder(Integer.class).degree(10).metadata(f).cacheSize(10).build()
+				.add(values).flush();
+		BTree<Integer> t2 = builder(Integer.class).metadata(f).cacheSize(5)
+				.readMode(ReadMode.MEMORY_MAPPED).build();
+		checkEquals(t2, values);
+		for (Integer value : values)
+			assertEquals(value, t2.find(value).get());
+	}
+
+	@Test
+	public void testReadLegacyRecordsAndRewrite() throws IOException {
+		File f = createFile("target/testLegacy.index");
+		File storageFile = new File("target/testLegacy.index.storage.0");
+		storageFile.delete();
+		FileOutputStream fos = new FileOutputStream(storageFile);
+		fos.write(legacyLeafRecord(1, 2, 3));
+		fos.close();
+		ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(
+				f));
+		oos.writeObject(f.getParentFile().getAbsolutePath());
+		oos.writeObject(f.getName() + ".storage");
+		oos.writeLong(0);
+		oos.writeLong(0);
+		oos.writeInt(4);
+		oos.close();
+
+		BTree<Integer> t = builder(Integer.class).metadata(f).build();
+		checkEquals(t, 1, 2, 3);
+		t.add(4).rewrite();
+		t.close();
+		t = builder(Integer.class).metadata(f).build();
+		checkEquals(t, 1, 2, 3, 4);
+		// the second commit after the upgrade replaces the legacy metadata
+		t.add(5).close();
+		checkEquals(builder(Integer.class).metadata(f).build(), 1, 2, 3, 4, 5);
+	}
+
+	/**
+	 * Returns a leaf node record written with <code>ObjectOutputStream</code>
+	 * as done by earlier versions.
+	 */
+	private static byte[] legacyLeafRecord(Integer... values)
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(bytes);
+		oos.writeLong(0L);
+		oos.flush();
+		oos.writeBoolean(false);
+		oos.flush();
+		oos.writeBoolean(true);
+		oos.writeInt(values.length);
+		for (Integer value : values) {
+			oos.writeObject(value);
+			for (int i = 0; i < 4; i++)
+				oos.writeLong(Node.CHILD_ABSENT);
+			oos.writeBoolean(false);
+		}
+		oos.close();
+		byte[] b = bytes.toByteArray();
+		ByteArrayOutputStream lengthBytes = new ByteArrayOutputStream();
+		oos = new ObjectOutputStream(lengthBytes);
+		oos.writeLong(b.length);
+		oos.close();
+		System.arraycopy(lengthBytes.toByteArray(), 0, b, 0,
+				lengthBytes.size());
+		return b;
+	}
+
+	@Test
+	public void testSaveStringKeys() {
+		File f = createFile("target/testStrings.index");
+		builder(String.class).degree(3).metadata(f).build()
+				.add("b", "a", "\u00e9t\u00e9", "c").flush();
+		checkEquals(builder(String.class).metadata(f).build(), "a", "b", "c",
+				"\u00e9t\u00e9");
+	}
+
+	@Test
+	public void testSaveNonSerializableKeysWithCustomSerializer() {
+		File f = createFile("target/testCustomSerializer.index");
+		Serializer<Version> serializer = new Serializer<Version>() {
+
+			@Override
+			public void write(DataOutput out, Version t) throws IOException {
+				out.writeInt(t.number);
+			}
+
+			@Override
+			public Version read(ByteBuffer bb) {
+				return new Version(bb.getInt());
+			}
+		};
+		new BTree.Builder<Version>().serializer(serializer).degree(3)
+				.metadata(f).build()
+				.add(new Version(2), new Version(1), new Version(3)).flush();
+		BTree<Version> t = new BTree.Builder<Version>().serializer(serializer)
+				.metadata(f).build();
+		assertEquals(2, t.find(new Version(2)).get().number);
+		assertEquals(3, Iterables.size(t));
+	}
+
+	/**
+	 * A key that does not implement {@link java.io.Serializable}.
+	 */
+	private static class Version implements Comparable<Version> {
+		final int number;
+
+		Version(int number) {
+			this.number = number;
+		}
+
+		@Override
+		public int compareTo(Version o) {
+			return number < o.number ? -1 : (number == o.number ? 0 : 1);
+		}
+	}
+
 	@Test
 	public void testSaveManyItemsWithoutCache() {
 
@@ -736,9 +880,1123 @@ public class BTreeTest {
 				+ ",maxMemory=" + getRuntime().maxMemory());
 	}
 
+	@Test
+	public void testSaveManyItemsWithWriteBehind() {
+		File f = createFile("target/testWriteBehind.index");
+		int n = 10000;
+		Integer[] values = new Integer[n];
+		for (int i = 0; i < values.length; i++)
+			values[i] = i + 1;
+		long t = System.currentTimeMillis();
+		BTree<Integer> tree = builder(Integer.class).degree(100).metadata(f)
+				.cacheSize(100).writeBehind(10, 1024 * 1024).build();
+		tree.add(values).flush();
+		System.out
+				.println("writeBehindAddsPerSecond="
+						+ (values.length
+								/ (double) (System.currentTimeMillis() - t) * 1000)
+						+ " adds/s");
+		checkEquals(tree, values);
+		tree.close();
+		BTree<Integer> t2 = builder(Integer.class).metadata(f).build();
+		checkEquals(t2, values);
+	}
+
 	private static void clear(File f) {
 		f.delete();
 		new File(f.getAbsolutePath() + ".storage").delete();
+		for (File segment : segments(f))
+			segment.delete();
+	}
+
+	private static File[] segments(final File f) {
+		return f.getAbsoluteFile().getParentFile()
+				.listFiles(new FilenameFilter() {
+					@Override
+					public boolean accept(File dir, String name) {
+						return name.matches(Pattern.quote(f.getName()
+								+ ".storage.")
+								+ "\\d+");
+					}
+				});
+	}
+
+	@Test
+	public void testCompactionDeletesSegmentFilesAndKeepsReachableNodes() {
+		File f = createFile("target/testCompaction.index");
+		Integer[] values = new Integer[2000];
+		for (int i = 0; i < values.length; i++)
+			values[i] = i + 1;
+		BTree<Integer> t = builder(Integer.class).degree(10).metadata(f)
+				.segmentSize(16 * 1024).build();
+		t.add(values).flush();
+		int segmentsBefore = segments(f).length;
+		t.compact();
+		int segmentsAfter = segments(f).length;
+		System.out.println("segments before compaction=" + segmentsBefore
+				+ ", after=" + segmentsAfter);
+		assertTrue(segmentsAfter < segmentsBefore / 2);
+		checkEquals(t, values);
+		t.add(0).close();
+		BTree<Integer> t2 = builder(Integer.class).metadata(f).build();
+		assertEquals(values.length + 1, Iterables.size(t2));
+	}
+
+	@Test
+	public void testCommitPerOperationSurvivesWithoutFlush() {
+		File f = createFile("target/testCommitPerOperation.index");
+		BTree<Integer> t = builder(Integer.class).degree(3).metadata(f)
+				.commitPolicy(CommitPolicy.perOperation()).build();
+		t.add(1, 2, 3, 4, 5);
+		checkEquals(builder(Integer.class).metadata(f).build(), 1, 2, 3, 4,
+				5);
+	}
+
+	@Test
+	public void testCommitEveryOperationsPersistsOnlyCommittedAdds() {
+		File f = createFile("target/testCommitEveryOperations.index");
+		BTree<Integer> t = builder(Integer.class).degree(3).metadata(f)
+				.commitPolicy(CommitPolicy.everyOperations(2)).build();
+		t.add(1, 2, 3);
+		checkEquals(builder(Integer.class).metadata(f).build(), 1, 2);
+		t.flush();
+		checkEquals(builder(Integer.class).metadata(f).build(), 1, 2, 3);
+	}
+
+	@Test
+	public void testScrubFindsNoCorruptRecordsInHealthyStorage() {
+		File f = createFile("target/testScrubHealthy.index");
+		Integer[] values = new Integer[2000];
+		for (int i = 0; i < values.length; i++)
+			values[i] = i + 1;
+		BTree<Integer> t = builder(Integer.class).degree(10).metadata(f)
+				.segmentSize(16 * 1024).build();
+		t.add(values).flush();
+		assertTrue(segments(f).length > 1);
+		assertTrue(t.scrub(4).isEmpty());
+	}
+
+	@Test
+	public void testCorruptRecordIsDetectedOnLoadAndByScrub()
+			throws IOException {
+		File f = createFile("target/testScrubCorrupt.index");
+		builder(Integer.class).degree(3).metadata(f).build().add(1).flush();
+		RandomAccessFile raf = new RandomAccessFile(segments(f)[0], "rw");
+		raf.seek(20);
+		raf.writeByte(raf.readByte() ^ 1);
+		raf.close();
+		BTree<Integer> t = builder(Integer.class).metadata(f).build();
+		List<Position> corrupt = t.scrub(2);
+		assertEquals(1, corrupt.size());
+		assertEquals(0, corrupt.get(0).getPosition());
+		try {
+			t.find(1);
+			fail();
+		} catch (CorruptRecordException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testBytesNotInTheLastCommitAreObsoleteOnOpen()
+			throws IOException {
+		File f = createFile("target/testManifest.index");
+		Integer[] values = new Integer[2000];
+		for (int i = 0; i < values.length; i++)
+			values[i] = i + 1;
+		builder(Integer.class).degree(10).metadata(f).segmentSize(16 * 1024)
+				.build().add(values).close();
+		Superblock superblock = Superblock.read(f);
+		List<Long> committed = superblock.segments.get();
+		assertEquals(segments(f).length, committed.size());
+		long last = committed.get(committed.size() - 1);
+		Long obsolete = superblock.obsoleteBytes.get(last);
+		// as if a crash followed writes after the commit
+		RandomAccessFile raf = new RandomAccessFile(f.getPath() + ".storage."
+				+ last, "rw");
+		raf.seek(raf.length());
+		raf.write(new byte[100]);
+		raf.close();
+		File later = new File(f.getPath() + ".storage." + (last + 1));
+		FileOutputStream out = new FileOutputStream(later);
+		out.write(new byte[100]);
+		out.close();
+		Storage storage = new Storage(f.getParentFile(), f.getName()
+				+ ".storage");
+		BTree<Integer> t = builder(Integer.class).metadata(f)
+				.storage(storage).build();
+		assertEquals(0, storage.getLiveRatio(last + 1), 0);
+		assertEquals((obsolete == null ? 0 : obsolete) + 100,
+				(long) storage.getObsoleteBytes().get(last));
+		checkEquals(t, values);
+		t.close();
+	}
+
+	@Test
+	public void testReopenWithADifferentSerializerThrowsException() {
+		File f = createFile("target/testSerializerId.index");
+		builder(Integer.class).degree(3).metadata(f).build().add(1, 2, 3)
+				.close();
+		try {
+			new BTree.Builder<Integer>().metadata(f).build();
+			fail();
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage().contains("integer"));
+		}
+		checkEquals(builder(Integer.class).metadata(f).build(), 1, 2, 3);
+	}
+
+	@Test
+	public void testSaveManyItemsCompressedUsesLessStorage() {
+		File raw = createFile("target/testRaw.index");
+		File compressed = createFile("target/testCompressed.index");
+		Integer[] values = new Integer[MANY_VALUES];
+		for (int i = 0; i < values.length; i++)
+			values[i] = i + 1;
+		builder(Integer.class).degree(100).metadata(raw).build().add(values)
+				.flush();
+		builder(Integer.class).degree(100).metadata(compressed)
+				.compression(Compression.LZF).build().add(values).flush();
+		long rawBytes = segments(raw)[0].length();
+		long compressedBytes = segments(compressed)[0].length();
+		System.out.println("raw=" + rawBytes + ", compressed="
+				+ compressedBytes);
+		assertTrue(compressedBytes < rawBytes / 2);
+		checkEquals(builder(Integer.class).metadata(compressed).build(),
+				values);
+		checkEquals(builder(Integer.class).metadata(compressed)
+				.readMode(ReadMode.MEMORY_MAPPED).build(), values);
+	}
+
+	@Test
+	public void testConcurrentFindsReadThroughSharedChannels()
+			throws InterruptedException {
+		File f = createFile("target/testConcurrentFinds.index");
+		final Integer[] values = new Integer[MANY_VALUES];
+		for (int i = 0; i < values.length; i++)
+			values[i] = i + 1;
+		builder(Integer.class).degree(10).metadata(f).build().add(values)
+				.close();
+		final BTree<Integer> t = builder(Integer.class).metadata(f).build();
+		final AtomicInteger found = new AtomicInteger();
+		List<Thread> threads = Lists.newArrayList();
+		for (int i = 0; i < 8; i++)
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					for (Integer value : values)
+						if (t.find(value).isPresent())
+							found.incrementAndGet();
+				}
+			});
+		for (Thread thread : threads)
+			thread.start();
+		for (Thread thread : threads)
+			thread.join();
+		assertEquals(8 * values.length, found.get());
+	}
+
+	@Test
+	public void testByteBudgetedCacheOverManySegments() {
+		File f = createFile("target/testCacheBytes.index");
+		Integer[] values = new Integer[MANY_VALUES];
+		for (int i = 0; i < values.length; i++)
+			values[i] = i + 1;
+		builder(Integer.class).degree(10).metadata(f).segmentSize(16 * 1024)
+				.cacheBytes(50000).build().add(values).close();
+		assertTrue(segments(f).length > 1);
+		BTree<Integer> t = builder(Integer.class).metadata(f)
+				.cacheBytes(20000).build();
+		checkEquals(t, values);
+		checkEquals(t, values);
+		CacheStats stats = t.cacheStats().get();
+		System.out.println(stats);
+		assertTrue(stats.hitCount() > 0);
+		assertTrue(stats.missCount() > 0);
+		assertTrue(stats.evictionCount() > 0);
+	}
+
+	@Test
+	public void testPinnedLevelsAreNotReadFromStorage() {
+		File f = createFile("target/testPinLevels.index");
+		Integer[] values = new Integer[MANY_VALUES];
+		for (int i = 0; i < values.length; i++)
+			values[i] = i + 1;
+		// pinning is maintained while the root splits
+		BTree<Integer> t = builder(Integer.class).degree(4).metadata(f)
+				.cacheSize(1).pinLevels(3).build().add(values);
+		checkEquals(t, values);
+		t.close();
+		long unpinnedMisses = countMissesOfFinds(builder(Integer.class)
+				.metadata(f).cacheSize(1).build(), values);
+		long pinnedMisses = countMissesOfFinds(builder(Integer.class)
+				.metadata(f).cacheSize(1).pinLevels(3).build(), values);
+		long pinnedByBytesMisses = countMissesOfFinds(builder(Integer.class)
+				.metadata(f).cacheSize(1).pinBytes(1024 * 1024).build(),
+				values);
+		System.out.println("cache misses unpinned=" + unpinnedMisses
+				+ ", pinned 3 levels=" + pinnedMisses + ", pinned 1MB="
+				+ pinnedByBytesMisses);
+		assertTrue(pinnedMisses < unpinnedMisses - 2 * values.length);
+		assertEquals(0, pinnedByBytesMisses);
+	}
+
+	@Test
+	public void testIterationReadsAheadOfLeaves() {
+		File f = createFile("target/testReadAhead.index");
+		Integer[] values = new Integer[MANY_VALUES];
+		for (int i = 0; i < values.length; i++)
+			values[i] = i + 1;
+		builder(Integer.class).degree(4).metadata(f).build().add(values)
+				.close();
+		BTree<Integer> t = builder(Integer.class).metadata(f).cacheSize(10000)
+				.readAhead(8, 2).build();
+		checkEquals(t, values);
+		ReadAheadStats stats = t.readAheadStats().get();
+		System.out.println(stats + ", hitRate=" + stats.hitRate());
+		assertEquals(0, stats.missCount());
+		assertEquals(1.0, stats.hitRate(), 0);
+		// the second iteration reads from the cache
+		checkEquals(t, values);
+		assertEquals(stats.hitCount(), t.readAheadStats().get().hitCount());
+		t.close();
+		// loads by finds are not read ahead so are not misses
+		t = builder(Integer.class).metadata(f).cacheSize(10000)
+				.readAhead(8, 2).build();
+		for (Integer value : values)
+			assertEquals(value, t.find(value).get());
+		assertEquals(0, t.readAheadStats().get().missCount());
+		t.close();
+		t = builder(Integer.class).metadata(f).build();
+		assertFalse(t.readAheadStats().isPresent());
+		t.close();
+	}
+
+	@Test
+	public void testBulkLoadInMemoryMatchesInput() {
+		for (int degree = 3; degree <= 6; degree++)
+			for (double fillFactor : new double[] { 0.1, 0.5, 1.0 })
+				for (int n = 0; n <= 200; n++) {
+					List<Integer> values = Lists.newArrayList();
+					for (int i = 1; i <= n; i++)
+						values.add(i);
+					BTree<Integer> t = builder(Integer.class).degree(degree)
+							.build().bulkLoad(values.iterator(), fillFactor);
+					checkEquals(t, values.toArray(new Integer[0]));
+					checkBalanced(t.getKeys(), true, (degree + 1) / 2 - 1);
+					for (Integer value : values)
+						assertEquals(value, t.find(value).get());
+					assertFalse(t.find(0).isPresent());
+					assertFalse(t.find(n + 1).isPresent());
+					// adds after the bulk load split the packed nodes
+					t.add(n + 1, n + 2, n + 3);
+					assertEquals(n + 3, Iterables.size(t));
+				}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBulkLoadOfUnsortedValuesThrowsException() {
+		builder(Integer.class).degree(3).build()
+				.bulkLoad(Lists.newArrayList(1, 3, 2).iterator(), 1.0);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testBulkLoadOfNonEmptyTreeThrowsException() {
+		builder(Integer.class).degree(3).build().add(1)
+				.bulkLoad(Lists.newArrayList(2, 3).iterator(), 1.0);
+	}
+
+	@Test
+	public void testBulkLoadWritesEachNodeOnceAndReopens() {
+		File f = createFile("target/testBulkLoad.index");
+		final int n = 100000;
+		Iterator<Integer> values = new Iterator<Integer>() {
+			int i = 0;
+
+			@Override
+			public boolean hasNext() {
+				return i < n;
+			}
+
+			@Override
+			public Integer next() {
+				return ++i;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+		Storage storage = new Storage(new File("target"),
+				"testBulkLoad.index.storage");
+		long t0 = System.currentTimeMillis();
+		builder(Integer.class).degree(100).metadata(f).storage(storage)
+				.build().bulkLoad(values, 0.7).close();
+		System.out.println("bulk loaded " + n + " in "
+				+ (System.currentTimeMillis() - t0) + "ms");
+		// no node was written more than once so no record is obsolete
+		for (long number : storage.getFileNumbers())
+			assertEquals(1.0, storage.getLiveRatio(number), 0.0001);
+		BTree<Integer> t = builder(Integer.class).metadata(f).build();
+		int count = 0;
+		for (Integer value : t)
+			assertEquals(++count, (int) value);
+		assertEquals(n, count);
+		assertEquals(n / 2, (int) t.find(n / 2).get());
+		t.close();
+	}
+
+	@Test
+	public void testBulkLoadUnsortedValuesThroughExternalSort() {
+		File f = createFile("target/testBulkLoadUnsorted.index");
+		List<Integer> values = Lists.newArrayList();
+		for (int i = 1; i <= 50000; i++)
+			values.add(i);
+		Collections.shuffle(values, new Random(1));
+		builder(Integer.class).degree(50).metadata(f).build()
+				.bulkLoadUnsorted(values.iterator(), 1.0,
+						ExternalSort.maxMemory(64 * 1024).threads(2))
+				.close();
+		BTree<Integer> t = builder(Integer.class).metadata(f).build();
+		Collections.sort(values);
+		checkEquals(t, values.toArray(new Integer[0]));
+		t.close();
+	}
+
+	@Test
+	public void testAddWhereSplitChildIsSharedWithNeighbourKey() {
+		BTree<Integer> t = builder(Integer.class).degree(3).build()
+				.add(10, 20, 30, 40, 50, 35);
+		assertEquals(35, (int) t.find(35).get());
+		checkEquals(t, 10, 20, 30, 35, 40, 50);
+	}
+
+	@Test
+	public void testAddAllMatchesAddingOneByOne() {
+		Random random = new Random(1);
+		for (int degree = 3; degree <= 6; degree++)
+			for (int n = 0; n < 200; n += 7) {
+				List<Integer> existing = Lists.newArrayList();
+				List<Integer> batch = Lists.newArrayList();
+				for (int i = 0; i < n; i++) {
+					existing.add(random.nextInt(100));
+					batch.add(random.nextInt(100));
+				}
+				BTree<Integer> t = builder(Integer.class).degree(degree)
+						.build().add(existing.toArray(new Integer[0]));
+				t.addAll(batch);
+				List<Integer> expected = Lists.newArrayList(existing);
+				expected.addAll(batch);
+				Collections.sort(expected);
+				checkEquals(t, expected.toArray(new Integer[0]));
+				for (Integer value : batch)
+					assertEquals(value, t.find(value).get());
+				t.addAll(batch);
+				assertEquals(expected.size() + batch.size(), Iterables.size(t));
+			}
+	}
+
+	@Test
+	public void testAddAllOfClusteredBatchesWritesLessThanAddingOneByOne() {
+		File one = createFile("target/testAddOneByOne.index");
+		File all = createFile("target/testAddAll.index");
+		BTree<Integer> t1 = builder(Integer.class).degree(20).metadata(one)
+				.build();
+		BTree<Integer> t2 = builder(Integer.class).degree(20).metadata(all)
+				.build();
+		for (int batch = 0; batch < 20; batch++) {
+			List<Integer> values = Lists.newArrayList();
+			for (int i = 0; i < 500; i++)
+				values.add(batch * 500 + i);
+			Collections.shuffle(values, new Random(batch));
+			t1.add(values.toArray(new Integer[0]));
+			t2.addAll(values);
+		}
+		t1.close();
+		t2.close();
+		long bytesOne = 0;
+		for (File segment : segments(one))
+			bytesOne += segment.length();
+		long bytesAll = 0;
+		for (File segment : segments(all))
+			bytesAll += segment.length();
+		System.out.println("bytes written one by one=" + bytesOne
+				+ ", addAll=" + bytesAll);
+		assertTrue(bytesAll * 20 < bytesOne);
+		Integer[] values = new Integer[10000];
+		for (int i = 0; i < values.length; i++)
+			values[i] = i;
+		checkEquals(builder(Integer.class).metadata(all).build(), values);
+	}
+
+	@Test
+	public void testRangeQueriesMatchFilteredValues() {
+		Random random = new Random(1);
+		List<Integer> values = Lists.newArrayList();
+		for (int i = 0; i < 500; i++)
+			values.add(random.nextInt(200));
+		for (int degree = 3; degree <= 5; degree++) {
+			BTree<Integer> t = builder(Integer.class).degree(degree).build()
+					.addAll(values);
+			for (int i = 0; i < 200; i++) {
+				int t1 = random.nextInt(220) - 10;
+				int t2 = t1 + random.nextInt(50);
+				for (ComparisonOperator op1 : new ComparisonOperator[] {
+						ComparisonOperator.GREATER_THAN,
+						ComparisonOperator.GREATER_THAN_OR_EQUAL })
+					for (ComparisonOperator op2 : new ComparisonOperator[] {
+							ComparisonOperator.LESS_THAN,
+							ComparisonOperator.LESS_THAN_OR_EQUAL }) {
+						List<Integer> expected = Lists.newArrayList();
+						for (Integer v : values)
+							if ((v > t1 || v == t1
+									&& op1 == ComparisonOperator.GREATER_THAN_OR_EQUAL)
+									&& (v < t2 || v == t2
+											&& op2 == ComparisonOperator.LESS_THAN_OR_EQUAL))
+								expected.add(v);
+						Collections.sort(expected);
+						assertEquals(expected,
+								Lists.newArrayList(t.find(t1, t2, op1, op2)));
+					}
+			}
+		}
+	}
+
+	@Test
+	public void testShortRangeQueryLoadsFewNodes() {
+		File f = createFile("target/testRangeQuery.index");
+		List<Integer> values = Lists.newArrayList();
+		for (int i = 0; i < 100000; i++)
+			values.add(i);
+		builder(Integer.class).degree(10).metadata(f).build()
+				.bulkLoad(values.iterator(), 1.0).close();
+		BTree<Integer> t = builder(Integer.class).metadata(f).cacheSize(100000)
+				.build();
+		Iterable<Integer> range = t.find(50000, 50010,
+				ComparisonOperator.GREATER_THAN_OR_EQUAL,
+				ComparisonOperator.LESS_THAN);
+		assertEquals(0, t.cacheStats().get().missCount());
+		assertEquals(Lists.newArrayList(values.subList(50000, 50010)),
+				Lists.newArrayList(range));
+		long misses = t.cacheStats().get().missCount();
+		System.out.println("nodes loaded for range of 10=" + misses);
+		// about one node per level of the tree
+		assertTrue(misses <= 8);
+		t.close();
+	}
+
+	@Test
+	public void testDescendingIterationReversesRangeQueries() {
+		Random random = new Random(3);
+		List<Integer> values = Lists.newArrayList();
+		for (int i = 0; i < 400; i++)
+			values.add(random.nextInt(150));
+		BTree<Integer> t = builder(Integer.class).degree(4).build()
+				.addAll(values);
+		Collections.sort(values);
+		Collections.reverse(values);
+		assertEquals(values, Lists.newArrayList(t.descending()));
+		ComparisonOperator[] lowerOps = { ComparisonOperator.GREATER_THAN,
+				ComparisonOperator.GREATER_THAN_OR_EQUAL };
+		ComparisonOperator[] upperOps = { ComparisonOperator.LESS_THAN,
+				ComparisonOperator.LESS_THAN_OR_EQUAL };
+		for (int i = 0; i < 200; i++) {
+			int t1 = random.nextInt(170) - 10;
+			int t2 = t1 + random.nextInt(40);
+			for (ComparisonOperator op1 : lowerOps)
+				for (ComparisonOperator op2 : upperOps) {
+					List<Integer> expected = Lists.newArrayList(t.find(t1, t2,
+							op1, op2));
+					Collections.reverse(expected);
+					assertEquals(expected, Lists.newArrayList(t
+							.findDescending(t1, t2, op1, op2)));
+				}
+		}
+	}
+
+	@Test
+	public void testLargestValuesLoadFewNodes() {
+		File f = createFile("target/testDescending.index");
+		List<Integer> values = Lists.newArrayList();
+		for (int i = 0; i < 100000; i++)
+			values.add(i);
+		builder(Integer.class).degree(10).metadata(f).build()
+				.bulkLoad(values.iterator(), 1.0).close();
+		BTree<Integer> t = builder(Integer.class).metadata(f).cacheSize(100000)
+				.build();
+		List<Integer> largest = Lists.newArrayList(Iterables.limit(
+				t.descending(), 10));
+		assertEquals(Lists.reverse(values.subList(99990, 100000)), largest);
+		long misses = t.cacheStats().get().missCount();
+		System.out.println("nodes loaded for 10 largest=" + misses);
+		assertTrue(misses <= 8);
+		t.close();
+	}
+
+	@Test
+	public void testParallelStreamMatchesIteration() {
+		File f = createFile("target/testParallelStream.index");
+		Random random = new Random(5);
+		List<Integer> values = Lists.newArrayList();
+		for (int i = 0; i < 20000; i++)
+			values.add(random.nextInt(10000));
+		BTree<Integer> t = builder(Integer.class).degree(6).metadata(f)
+				.build().addAll(values);
+		t.delete(values.subList(0, 100).toArray(new Integer[0]));
+		List<Integer> expected = Lists.newArrayList(t.find(0, 10000,
+				ComparisonOperator.GREATER_THAN_OR_EQUAL,
+				ComparisonOperator.LESS_THAN));
+		assertTrue(expected.size() < values.size());
+		assertEquals(expected,
+				t.parallelStream().collect(Collectors.<Integer> toList()));
+		assertEquals(expected.size(), t.parallelStream().count());
+		assertEquals(expected,
+				t.stream().collect(Collectors.<Integer> toList()));
+		t.close();
+	}
+
+	@Test
+	public void testSpliteratorSplitsIntoSubtreesOfSimilarSize() {
+		List<Integer> values = Lists.newArrayList();
+		for (int i = 0; i < 10000; i++)
+			values.add(i);
+		BTree<Integer> t = builder(Integer.class).degree(10).build()
+				.bulkLoad(values.iterator(), 0.75);
+		Spliterator<Integer> second = t.spliterator();
+		assertTrue(second.hasCharacteristics(Spliterator.SORTED));
+		long estimate = second.estimateSize();
+		Spliterator<Integer> first = second.trySplit();
+		List<Integer> firstValues = Lists.newArrayList();
+		while (first.tryAdvance(add(firstValues)))
+			;
+		List<Integer> secondValues = Lists.newArrayList();
+		while (second.tryAdvance(add(secondValues)))
+			;
+		System.out.println("split " + firstValues.size() + "/"
+				+ secondValues.size() + ", estimate=" + estimate);
+		assertEquals(values.subList(0, firstValues.size()), firstValues);
+		assertEquals(values.subList(firstValues.size(), values.size()),
+				secondValues);
+		// sizes are estimates so the halves are only roughly equal
+		assertTrue(firstValues.size() > values.size() / 10);
+		assertTrue(secondValues.size() > values.size() / 10);
+		assertTrue(estimate > values.size() / 4 && estimate < values.size() * 4);
+	}
+
+	@Test
+	public void testParallelReduceMatchesSequentialReduce() {
+		File f = createFile("target/testParallelReduce.index");
+		Random random = new Random(7);
+		List<Integer> values = Lists.newArrayList();
+		for (int i = 0; i < 20000; i++)
+			values.add(random.nextInt(10000));
+		BTree<Integer> t = builder(Integer.class).degree(5).metadata(f)
+				.build().addAll(values);
+		t.close();
+		t = builder(Integer.class).metadata(f).build();
+		t.delete(3, 4, 5);
+		List<Integer> expected = Lists.newArrayList(t.find(0, 10000,
+				ComparisonOperator.GREATER_THAN_OR_EQUAL,
+				ComparisonOperator.LESS_THAN));
+		assertEquals(expected.size(), t.count());
+		// concatenation checks the results are combined in order
+		StringBuilder s = new StringBuilder();
+		for (Integer value : expected)
+			s.append(value).append(',');
+		ForkJoinPool pool = new ForkJoinPool(16);
+		String reduced = t.reduce("", new BiFunction<String, Integer, String>() {
+			@Override
+			public String apply(String result, Integer value) {
+				return result + value + ",";
+			}
+		}, new BinaryOperator<String>() {
+			@Override
+			public String apply(String a, String b) {
+				return a + b;
+			}
+		}, pool);
+		pool.shutdown();
+		assertEquals(s.toString(), reduced);
+		t.close();
+	}
+
+	@Test
+	public void testRankSelectAndCountMatchSortedValues() {
+		File f = createFile("target/testSubtreeCounts.index");
+		Random random = new Random(11);
+		List<Integer> values = Lists.newArrayList();
+		for (int i = 0; i < 3000; i++)
+			values.add(random.nextInt(1000));
+		BTree<Integer> t = builder(Integer.class).degree(4).metadata(f)
+				.subtreeCounts().build().addAll(values.subList(0, 2000));
+		for (Integer value : values.subList(2000, values.size()))
+			t.add(value);
+		t.close();
+		t = builder(Integer.class).metadata(f).subtreeCounts().cacheSize(10)
+				.build();
+		Collections.sort(values);
+		assertEquals(values.size(), t.count());
+		for (int i = 0; i < values.size(); i += 7)
+			assertEquals(values.get(i), t.select(i).get());
+		assertFalse(t.select(values.size()).isPresent());
+		assertFalse(t.select(-1).isPresent());
+		for (int v = -5; v < 1005; v += 3) {
+			int below = 0;
+			while (below < values.size() && values.get(below) < v)
+				below++;
+			assertEquals(below, t.rank(v));
+		}
+		for (int i = 0; i < 100; i++) {
+			int t1 = random.nextInt(1020) - 10;
+			int t2 = t1 + random.nextInt(100);
+			assertEquals(
+					Iterables.size(t.find(t1, t2,
+							ComparisonOperator.GREATER_THAN,
+							ComparisonOperator.LESS_THAN_OR_EQUAL)),
+					t.count(t1, t2, ComparisonOperator.GREATER_THAN,
+							ComparisonOperator.LESS_THAN_OR_EQUAL));
+		}
+		long deleted = t.delete(values.get(100));
+		assertTrue(deleted > 0);
+		assertEquals(values.size() - deleted, t.count());
+		assertEquals(values.get(101 + (int) deleted - 1), t.select(100).get());
+		t.close();
+	}
+
+	@Test
+	public void testRangeSumLoadsFewNodes() {
+		File f = createFile("target/testSummarizer.index");
+		List<Integer> values = Lists.newArrayList();
+		for (int i = 0; i < 100000; i++)
+			values.add(i);
+		builder(Integer.class).degree(10).metadata(f).summarizer(SUM).build()
+				.bulkLoad(values.iterator(), 1.0).close();
+		BTree<Integer> t = builder(Integer.class).metadata(f)
+				.summarizer(SUM).cacheSize(100000).build();
+		long sum = t.summarize(SUM, 1000, 90000,
+				ComparisonOperator.GREATER_THAN_OR_EQUAL,
+				ComparisonOperator.LESS_THAN);
+		long misses = t.cacheStats().get().missCount();
+		System.out.println("nodes loaded for range sum=" + misses);
+		long expected = 0;
+		for (int i = 1000; i < 90000; i++)
+			expected += i;
+		assertEquals(expected, sum);
+		// about two paths from the root
+		assertTrue(misses <= 12);
+		assertEquals(89000, t.count(1000, 90000,
+				ComparisonOperator.GREATER_THAN_OR_EQUAL,
+				ComparisonOperator.LESS_THAN));
+		assertEquals(Integer.valueOf(54321), t.select(54321).get());
+		assertEquals(54321, t.rank(54321));
+		t.close();
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testRankWithoutSubtreeCountsThrowsException() {
+		builder(Integer.class).degree(3).build().add(1).rank(1);
+	}
+
+	private static final Summarizer<Integer, Long> SUM = new Summarizer<Integer, Long>() {
+
+		@Override
+		public Long identity() {
+			return 0L;
+		}
+
+		@Override
+		public Long summarize(Integer t) {
+			return (long) t;
+		}
+
+		@Override
+		public Long combine(Long a, Long b) {
+			return a + b;
+		}
+
+		@Override
+		public Serializer<Long> serializer() {
+			return Serializers.LONG;
+		}
+	};
+
+	@Test
+	public void testDeleteRemovesValuesAndKeepsTreeBalanced() {
+		Random random = new Random(13);
+		for (int degree = 3; degree <= 6; degree++) {
+			List<Integer> values = Lists.newArrayList();
+			for (int i = 0; i < 400; i++)
+				values.add(random.nextInt(300));
+			BTree<Integer> t = builder(Integer.class).degree(degree).build();
+			for (Integer value : values)
+				t.add(value);
+			List<Integer> remaining = Lists.newArrayList(values);
+			Collections.shuffle(values, random);
+			for (int i = 0; i < values.size(); i++) {
+				Integer value = values.get(i);
+				int count = Collections.frequency(remaining, value);
+				assertEquals(count, t.delete(value));
+				remaining.removeAll(Collections.singleton(value));
+				assertFalse(t.find(value).isPresent());
+				if (i % 20 == 0) {
+					Collections.sort(remaining);
+					assertEquals(remaining, Lists.newArrayList(t));
+					checkBalanced(t.getKeys(), true, (degree + 1) / 2 - 1);
+				}
+			}
+			assertTrue(t.getKeys().isEmpty());
+		}
+	}
+
+	@Test
+	public void testDeletesAreDurable() {
+		File f = createFile("target/testDelete.index");
+		List<Integer> values = Lists.newArrayList();
+		for (int i = 0; i < 2000; i++)
+			values.add(i);
+		BTree<Integer> t = builder(Integer.class).degree(5).metadata(f)
+				.pinLevels(2).build().addAll(values);
+		for (int i = 0; i < 2000; i += 2)
+			assertEquals(1, t.delete(i));
+		assertEquals(0, t.delete(0));
+		t.close();
+		t = builder(Integer.class).metadata(f).cacheSize(10).build();
+		List<Integer> expected = Lists.newArrayList();
+		for (int i = 1; i < 2000; i += 2)
+			expected.add(i);
+		assertEquals(expected, Lists.newArrayList(t));
+		checkBalanced(t.getKeys(), true, 2);
+		t.close();
+	}
+
+	@Test
+	public void testDeleteAllWritesLessThanDeletingOneByOne() {
+		File one = createFile("target/testDeleteOneByOne.index");
+		File all = createFile("target/testDeleteAll.index");
+		List<Integer> values = Lists.newArrayList();
+		for (int i = 0; i < 10000; i++)
+			values.add(i);
+		BTree<Integer> t1 = builder(Integer.class).degree(20).metadata(one)
+				.build().bulkLoad(values.iterator(), 1.0);
+		BTree<Integer> t2 = builder(Integer.class).degree(20).metadata(all)
+				.build().bulkLoad(values.iterator(), 1.0);
+		long bytesOne = segmentBytes(one);
+		long bytesAll = segmentBytes(all);
+		List<Integer> keys = Lists.newArrayList();
+		for (int i = 5000; i < 6000; i++)
+			keys.add(i);
+		Iterator<Integer> before = t2.iterator();
+		for (Integer key : keys)
+			assertEquals(1, t1.delete(key));
+		assertEquals(keys.size(), t2.deleteAll(keys));
+		t1.close();
+		t2.close();
+		bytesOne = segmentBytes(one) - bytesOne;
+		bytesAll = segmentBytes(all) - bytesAll;
+		System.out.println("bytes written deleting one by one=" + bytesOne
+				+ ", deleteAll=" + bytesAll);
+		assertTrue(bytesAll * 20 < bytesOne);
+		// an iterator created before the delete does not see it
+		assertEquals(values, Lists.newArrayList(before));
+		values.removeAll(keys);
+		assertEquals(values,
+				Lists.newArrayList(builder(Integer.class).metadata(all)
+						.build()));
+	}
+
+	@Test
+	public void testDeleteRangeMatchesFilteringAndKeepsTreeBalanced() {
+		Random random = new Random(29);
+		ComparisonOperator[] lowerOps = { ComparisonOperator.GREATER_THAN,
+				ComparisonOperator.GREATER_THAN_OR_EQUAL };
+		ComparisonOperator[] upperOps = { ComparisonOperator.LESS_THAN,
+				ComparisonOperator.LESS_THAN_OR_EQUAL };
+		for (int degree = 3; degree <= 8; degree++)
+			for (int run = 0; run < 20; run++) {
+				List<Integer> values = Lists.newArrayList();
+				int n = random.nextInt(600);
+				for (int i = 0; i < n; i++)
+					values.add(random.nextInt(400));
+				BTree<Integer> t = builder(Integer.class).degree(degree)
+						.subtreeCounts().build();
+				for (Integer value : values)
+					t.add(value);
+				for (int k = 0; k < 3; k++) {
+					int t1 = random.nextInt(450) - 25;
+					int t2 = t1 + random.nextInt(random.nextBoolean() ? 30 : 400);
+					ComparisonOperator op1 = lowerOps[random.nextInt(2)];
+					ComparisonOperator op2 = upperOps[random.nextInt(2)];
+					t.deleteRange(t1, t2, op1, op2);
+					List<Integer> remaining = Lists.newArrayList();
+					for (Integer value : values)
+						if (value < t1 || value == t1
+								&& op1 == ComparisonOperator.GREATER_THAN
+								|| value > t2 || value == t2
+								&& op2 == ComparisonOperator.LESS_THAN)
+							remaining.add(value);
+					values = remaining;
+					Collections.sort(values);
+					assertEquals(values, Lists.newArrayList(t));
+					assertEquals(values.size(), t.count());
+					checkBalanced(t.getKeys(), true, (degree + 1) / 2 - 1);
+				}
+			}
+	}
+
+	@Test
+	public void testDeleteRangeRewritesBoundaryPathsAndReclaimsSubtrees() {
+		File f = createFile("target/testDeleteRange.index");
+		List<Integer> values = Lists.newArrayList();
+		for (int i = 0; i < 100000; i++)
+			values.add(i);
+		BTree<Integer> t = builder(Integer.class).degree(20).metadata(f)
+				.build().bulkLoad(values.iterator(), 1.0);
+		long bytes = segmentBytes(f);
+		Iterator<Integer> before = t.iterator();
+		t.deleteRange(10000, 90000);
+		t.close();
+		long written = segmentBytes(f) - bytes;
+		long obsolete = 0;
+		for (long b : Superblock.read(f).obsoleteBytes.values())
+			obsolete += b;
+		System.out.println("deleteRange wrote " + written
+				+ " bytes, obsolete bytes=" + obsolete);
+		// about two nodes per level were written and most records are
+		// obsolete
+		assertTrue(written < 10000);
+		assertTrue(obsolete > bytes * 7 / 10);
+		assertEquals(values, Lists.newArrayList(before));
+		values.subList(10000, 90000).clear();
+		t = builder(Integer.class).metadata(f).build();
+		assertEquals(values, Lists.newArrayList(t));
+		checkBalanced(t.getKeys(), true, (20 + 1) / 2 - 1);
+		t.close();
+	}
+
+	@Test
+	public void testFailureToReclaimADetachedSubtreeIsThrownByClose()
+			throws IOException {
+		File f = createFile("target/testReclaimFailure.index");
+		List<Integer> values = Lists.newArrayList();
+		for (int i = 0; i < 1000; i++)
+			values.add(i);
+		builder(Integer.class).degree(5).metadata(f).build()
+				.bulkLoad(values.iterator(), 1.0).close();
+		BTree<Integer> t = builder(Integer.class).metadata(f).build();
+		// corrupt the record of a subtree inside the range deleted
+		Position position = detachedSubtree(t.getKeys(), 100, 900);
+		RandomAccessFile raf = new RandomAccessFile(f.getPath()
+				+ ".storage." + position.getFileNumber(), "rw");
+		raf.seek(position.getPosition() + 20);
+		raf.writeByte(raf.readByte() ^ 1);
+		raf.close();
+		t.deleteRange(100, 900);
+		try {
+			t.close();
+			fail();
+		} catch (CorruptRecordException e) {
+			// expected
+		}
+		values.subList(100, 900).clear();
+		assertEquals(values,
+				Lists.newArrayList(builder(Integer.class).metadata(f).build()));
+	}
+
+	/**
+	 * Returns the position of a subtree with all its values between the
+	 * bounds.
+	 */
+	private static Position detachedSubtree(List<? extends Key<Integer>> keys,
+			int lower, int upper) {
+		for (int i = 1; i < keys.size(); i++)
+			if (keys.get(i - 1).value() >= lower
+					&& keys.get(i).value() <= upper)
+				return keys.get(i).getLeft().get().getPosition().get();
+		// descend towards the middle of the bounds
+		int middle = (lower + upper) / 2;
+		for (Key<Integer> key : keys)
+			if (key.value() > middle)
+				return detachedSubtree(key.getLeft().get().getKeys(), lower,
+						upper);
+		return detachedSubtree(keys.get(keys.size() - 1).getRight().get()
+				.getKeys(), lower, upper);
+	}
+
+	@Test(timeout = 10000)
+	public void testInterruptedReadThrowsInsteadOfRetrying() {
+		File f = createFile("target/testInterruptedRead.index");
+		List<Integer> values = Lists.newArrayList();
+		for (int i = 0; i < 1000; i++)
+			values.add(i);
+		builder(Integer.class).degree(5).metadata(f).build()
+				.bulkLoad(values.iterator(), 1.0).close();
+		BTree<Integer> t = builder(Integer.class).metadata(f).cacheSize(1)
+				.build();
+		Thread.currentThread().interrupt();
+		try {
+			t.find(500);
+			fail();
+		} catch (RuntimeException e) {
+			assertTrue(Thread.interrupted());
+		}
+		// other threads reopen the channel closed by the interrupt
+		assertEquals(500, (int) t.find(500).get());
+		t.close();
+	}
+
+	private static long segmentBytes(File f) {
+		long bytes = 0;
+		for (File segment : segments(f))
+			bytes += segment.length();
+		return bytes;
+	}
+
+	@Test
+	public void testPurgeTombstonesDropsDeletedKeysFromRewrittenLeaves() {
+		File f = createFile("target/testPurge.index");
+		List<Integer> values = Lists.newArrayList();
+		for (int i = 0; i < 1000; i++)
+			values.add(i);
+		BTree<Integer> t = builder(Integer.class).degree(6).metadata(f)
+				.build().addAll(values);
+		// mark keys as deleted as earlier versions did
+		markDeleted(t.getKeys(), 3);
+		t.rewrite().close();
+		t = builder(Integer.class).metadata(f).purgeTombstones().build();
+		long tombstones = countDeleted(t.getKeys());
+		System.out.println("tombstones=" + tombstones);
+		assertTrue(tombstones > 100);
+		List<Integer> live = Lists.newArrayList(t.find(0, 1000,
+				ComparisonOperator.GREATER_THAN_OR_EQUAL,
+				ComparisonOperator.LESS_THAN));
+		t.rewrite();
+		assertTrue(countDeleted(t.getKeys()) < tombstones / 5);
+		assertEquals(live, Lists.newArrayList(t));
+		t.close();
+	}
+
+	@Test
+	public void testDeleteFindsEqualValuesLeftOfTombstones() {
+		List<Integer> values = Lists.newArrayList();
+		for (int i = 0; i < 100; i++)
+			for (int j = 0; j < 10; j++)
+				values.add(i);
+		BTree<Integer> t = builder(Integer.class).degree(4).build()
+				.addAll(values);
+		// mark keys in non-leaf nodes as deleted as earlier versions did
+		long tombstones = markDeletedAbove(t.getKeys(), 3);
+		assertTrue(tombstones > 0);
+		List<Integer> deleted = Lists.newArrayList();
+		for (int i = 0; i < 100; i += 3)
+			deleted.add(i);
+		assertEquals(deleted.size() * 10 - tombstones,
+				t.deleteAll(deleted));
+		assertEquals(0, countLive(t.getKeys(), 3));
+		assertEquals(values.size() - deleted.size() * 10,
+				countLive(t.getKeys(), 1));
+	}
+
+	/**
+	 * Returns the number of keys that are multiples of n and not deleted.
+	 */
+	private static long countLive(List<? extends Key<Integer>> keys, int n) {
+		long count = 0;
+		for (Key<Integer> key : keys) {
+			if (!key.isDeleted() && key.value() % n == 0)
+				count++;
+			if (key.getLeft().isPresent())
+				count += countLive(key.getLeft().get().getKeys(), n);
+			if (!key.next().isPresent() && key.getRight().isPresent())
+				count += countLive(key.getRight().get().getKeys(), n);
+		}
+		return count;
+	}
+
+	/**
+	 * Marks the keys of non-leaf nodes that are multiples of n as deleted and
+	 * returns how many were marked.
+	 */
+	private static long markDeletedAbove(List<? extends Key<Integer>> keys,
+			int n) {
+		long count = 0;
+		for (Key<Integer> key : keys)
+			if (key.getLeft().isPresent()) {
+				if (key.value() % n == 0) {
+					key.setDeleted(true);
+					count++;
+				}
+				count += markDeletedAbove(key.getLeft().get().getKeys(), n);
+				if (!key.next().isPresent())
+					count += markDeletedAbove(key.getRight().get().getKeys(),
+							n);
+			}
+		return count;
+	}
+
+	private static void markDeleted(List<? extends Key<Integer>> keys, int n) {
+		for (Key<Integer> key : keys) {
+			if (key.value() % n == 0)
+				key.setDeleted(true);
+			if (key.getLeft().isPresent())
+				markDeleted(key.getLeft().get().getKeys(), n);
+			if (!key.next().isPresent() && key.getRight().isPresent())
+				markDeleted(key.getRight().get().getKeys(), n);
+		}
+	}
+
+	private static long countDeleted(List<? extends Key<Integer>> keys) {
+		long count = 0;
+		for (Key<Integer> key : keys) {
+			if (key.isDeleted())
+				count++;
+			if (key.getLeft().isPresent())
+				count += countDeleted(key.getLeft().get().getKeys());
+			if (!key.next().isPresent() && key.getRight().isPresent())
+				count += countDeleted(key.getRight().get().getKeys());
+		}
+		return count;
+	}
+
+	/**
+	 * Checks that every node other than the root has at least minKeys keys
+	 * and that all leaves are at the same depth, which is returned.
+	 */
+	private static int checkBalanced(List<? extends Key<Integer>> keys,
+			boolean isRoot, int minKeys) {
+		if (!isRoot)
+			assertTrue(keys.size() >= minKeys);
+		if (keys.isEmpty() || !keys.get(0).hasChild())
+			return 1;
+		int depth = checkBalanced(keys.get(0).getLeft().get().getKeys(),
+				false, minKeys);
+		for (Key<Integer> key : keys)
+			assertEquals(depth, checkBalanced(key.getRight().get().getKeys(),
+					false, minKeys));
+		return depth + 1;
+	}
+
+	private static Consumer<Integer> add(final List<Integer> list) {
+		return new Consumer<Integer>() {
+			@Override
+			public void accept(Integer value) {
+				list.add(value);
+			}
+		};
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRangeQueryWithUpperOperatorAsLowerThrowsException() {
+		builder(Integer.class).degree(3).build().find(1, 2,
+				ComparisonOperator.LESS_THAN, ComparisonOperator.LESS_THAN);
+	}
+
+	private static long countMissesOfFinds(BTree<Integer> t, Integer[] values) {
+		// exclude the misses caused by loading the pinned levels
+		long missesBefore = t.cacheStats().get().missCount();
+		for (Integer value : values)
+			assertEquals(value, t.find(value).get());
+		return t.cacheStats().get().missCount() - missesBefore;
 	}
 
 	@Test
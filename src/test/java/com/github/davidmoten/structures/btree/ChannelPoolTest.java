@@ -0,0 +1,69 @@
+package com.github.davidmoten.structures.btree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.junit.Test;
+
+public class ChannelPoolTest {
+
+	@Test
+	public void testLeastRecentlyUsedChannelIsClosedWhenFull() {
+		Storage storage = storage("testPoolEviction", 3);
+		ChannelPool pool = new ChannelPool(storage, 2);
+		FileChannel c0 = pool.get(0);
+		FileChannel c1 = pool.get(1);
+		assertSame(c0, pool.get(0));
+		pool.get(2);
+		assertTrue(c0.isOpen());
+		assertFalse(c1.isOpen());
+		assertNotSame(c1, pool.get(1));
+		pool.close();
+		assertFalse(c0.isOpen());
+	}
+
+	@Test
+	public void testEvictedChannelIsReopened() throws IOException {
+		Storage storage = storage("testPoolEvict", 1);
+		ChannelPool pool = new ChannelPool(storage, 2);
+		FileChannel c0 = pool.get(0);
+		pool.evict(0);
+		assertFalse(c0.isOpen());
+		assertEquals(1, pool.get(0).read(ByteBuffer.allocate(1), 0));
+		pool.close();
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void testMissingSegmentFileIsNotCreated() {
+		Storage storage = storage("testPoolMissing", 0);
+		new ChannelPool(storage, 2).get(0);
+	}
+
+	private static Storage storage(String name, int files) {
+		Storage storage = new Storage(new File("target"), name);
+		for (long i = 0; i < 3; i++)
+			storage.getFile(i).delete();
+		for (long i = 0; i < files; i++)
+			write(storage.getFile(i));
+		return storage;
+	}
+
+	private static void write(File file) {
+		try {
+			FileOutputStream fos = new FileOutputStream(file);
+			fos.write(1);
+			fos.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
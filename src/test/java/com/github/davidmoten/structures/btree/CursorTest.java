@@ -0,0 +1,117 @@
+package com.github.davidmoten.structures.btree;
+
+import static com.github.davidmoten.structures.btree.BTree.builder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+
+public class CursorTest {
+
+	@Test
+	public void testNextAndPrevVisitAllValuesInOrder() {
+		for (int degree = 3; degree <= 6; degree++) {
+			List<Integer> values = randomValues(300);
+			Cursor<Integer> cursor = builder(Integer.class).degree(degree)
+					.build().addAll(values).cursor();
+			Collections.sort(values);
+			List<Integer> forwards = Lists.newArrayList();
+			for (Optional<Integer> v = cursor.next(); v.isPresent(); v = cursor
+					.next())
+				forwards.add(v.get());
+			assertEquals(values, forwards);
+			assertFalse(cursor.current().isPresent());
+			List<Integer> backwards = Lists.newArrayList();
+			for (Optional<Integer> v = cursor.prev(); v.isPresent(); v = cursor
+					.prev())
+				backwards.add(v.get());
+			Collections.reverse(backwards);
+			assertEquals(values, backwards);
+			assertEquals(values.get(0), cursor.next().get());
+		}
+	}
+
+	@Test
+	public void testSeekMovesToFirstValueAtOrAboveTarget() {
+		Random random = new Random(2);
+		List<Integer> values = randomValues(500);
+		BTree<Integer> t = builder(Integer.class).degree(4).build()
+				.addAll(values);
+		Collections.sort(values);
+		Cursor<Integer> cursor = t.cursor();
+		for (int i = 0; i < 1000; i++) {
+			int target = random.nextInt(220) - 10;
+			int index = 0;
+			while (index < values.size() && values.get(index) < target)
+				index++;
+			Optional<Integer> found = cursor.seek(target);
+			if (index == values.size()) {
+				assertFalse(found.isPresent());
+				assertEquals(values.get(values.size() - 1), cursor.prev()
+						.get());
+			} else {
+				assertEquals(values.get(index), found.get());
+				if (index + 1 < values.size())
+					assertEquals(values.get(index + 1), cursor.next().get());
+				else
+					assertFalse(cursor.next().isPresent());
+			}
+		}
+		assertEquals(values.get(0), cursor.seekFirst().get());
+		assertFalse(cursor.prev().isPresent());
+		assertEquals(values.get(values.size() - 1), cursor.seekLast().get());
+	}
+
+	@Test
+	public void testCursorSkipsDeletedValues() {
+		BTree<Integer> t = builder(Integer.class).degree(3).build()
+				.addAll(Lists.newArrayList(1, 2, 3, 4, 5, 6, 7));
+		t.delete(1, 4, 7);
+		Cursor<Integer> cursor = t.cursor();
+		assertEquals(2, (int) cursor.seekFirst().get());
+		assertEquals(5, (int) cursor.seek(4).get());
+		assertEquals(3, (int) cursor.prev().get());
+		assertEquals(6, (int) cursor.seekLast().get());
+		assertFalse(cursor.seek(7).isPresent());
+	}
+
+	@Test
+	public void testSeekToNearbyValueLoadsNoNodes() {
+		File f = new File("target/testCursorSeek.index");
+		f.delete();
+		for (File file : new File("target").listFiles())
+			if (file.getName().startsWith(f.getName() + ".storage"))
+				file.delete();
+		List<Integer> values = Lists.newArrayList();
+		for (int i = 0; i < 10000; i++)
+			values.add(i);
+		builder(Integer.class).degree(20).metadata(f).build()
+				.bulkLoad(values.iterator(), 1.0).close();
+		BTree<Integer> t = builder(Integer.class).metadata(f).cacheSize(1)
+				.build();
+		Cursor<Integer> cursor = t.cursor();
+		assertEquals(5000, (int) cursor.seek(5000).get());
+		long requests = t.cacheStats().get().requestCount();
+		assertEquals(5003, (int) cursor.seek(5003).get());
+		assertEquals(5004, (int) cursor.next().get());
+		assertEquals(5002, (int) cursor.seek(5002).get());
+		assertEquals(requests, t.cacheStats().get().requestCount());
+		t.close();
+	}
+
+	private static List<Integer> randomValues(int n) {
+		Random random = new Random(1);
+		List<Integer> values = Lists.newArrayList();
+		for (int i = 0; i < n; i++)
+			values.add(random.nextInt(200));
+		return values;
+	}
+}
@@ -0,0 +1,143 @@
+package com.github.davidmoten.structures.btree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
+
+public class ExternalSorterTest {
+
+	@Test
+	public void testSortSpillsRunsAndDeletesThemOnClose() {
+		File directory = directory("testExternalSortRuns");
+		List<Integer> values = randomValues(100000);
+		ExternalSorter<Integer> sorter = new ExternalSorter<Integer>(
+				Serializers.INTEGER, ExternalSort.maxMemory(100000)
+						.threads(3).directory(directory));
+		List<Integer> sorted = Lists.newArrayList(sorter.sort(values
+				.iterator()));
+		int runs = directory.list().length;
+		System.out.println("runs=" + runs);
+		// merged in a pass down to the fan in
+		assertTrue(runs > 1);
+		assertTrue(runs <= sorter.getFanIn());
+		Collections.sort(values);
+		assertEquals(values, sorted);
+		sorter.close();
+		assertEquals(0, directory.list().length);
+	}
+
+	@Test
+	public void testSortMergesInPassesWhenThereAreMoreRunsThanTheFanIn() {
+		File directory = directory("testExternalSortPasses");
+		List<Integer> values = randomValues(100000);
+		ExternalSorter<Integer> sorter = new ExternalSorter<Integer>(
+				Serializers.INTEGER, ExternalSort.maxMemory(20000).threads(1)
+						.directory(directory));
+		// chunks of about 10000 bytes make a few hundred runs
+		assertEquals(3, sorter.getFanIn());
+		List<Integer> sorted = Lists.newArrayList(sorter.sort(values
+				.iterator()));
+		int runs = directory.list().length;
+		assertTrue(runs > 1);
+		assertTrue(runs <= sorter.getFanIn());
+		Collections.sort(values);
+		assertEquals(values, sorted);
+		sorter.close();
+		assertEquals(0, directory.list().length);
+	}
+
+	@Test
+	public void testSortOfValuesThatFitInMemoryWritesNoRuns() {
+		File directory = directory("testExternalSortInMemory");
+		List<Integer> values = randomValues(1000);
+		ExternalSorter<Integer> sorter = new ExternalSorter<Integer>(
+				Serializers.INTEGER, ExternalSort.maxMemory(1000000)
+						.directory(directory));
+		List<Integer> sorted = Lists.newArrayList(sorter.sort(values
+				.iterator()));
+		assertEquals(0, directory.list().length);
+		Collections.sort(values);
+		assertEquals(values, sorted);
+		sorter.close();
+	}
+
+	@Test
+	public void testFailedSortDeletesTheRunsWritten() {
+		File directory = directory("testExternalSortFailure");
+		final List<Integer> values = randomValues(100000);
+		// fails on the main thread after many runs have been written
+		Iterator<Integer> failing = new AbstractIterator<Integer>() {
+			int i;
+
+			@Override
+			protected Integer computeNext() {
+				if (i == 50000)
+					throw new IllegalStateException("feed failed");
+				return values.get(i++);
+			}
+		};
+		assertSortFails(new ExternalSorter<Integer>(Serializers.INTEGER,
+				ExternalSort.maxMemory(100000).threads(3)
+						.directory(directory)), failing);
+		assertEquals(0, directory.list().length);
+		// fails writing one run while others are written
+		Serializer<Integer> serializer = new Serializer<Integer>() {
+			@Override
+			public void write(DataOutput out, Integer t) throws IOException {
+				if (t == 7 && Thread.currentThread().getName()
+						.equals("btree-sort"))
+					throw new IOException("disk full");
+				Serializers.INTEGER.write(out, t);
+			}
+
+			@Override
+			public Integer read(ByteBuffer bb) {
+				return Serializers.INTEGER.read(bb);
+			}
+		};
+		assertSortFails(new ExternalSorter<Integer>(serializer, ExternalSort
+				.maxMemory(100000).threads(3).directory(directory)),
+				values.iterator());
+		assertEquals(0, directory.list().length);
+	}
+
+	private static void assertSortFails(ExternalSorter<Integer> sorter,
+			Iterator<Integer> values) {
+		try {
+			sorter.sort(values);
+			fail();
+		} catch (RuntimeException e) {
+			// expected
+		}
+	}
+
+	private static List<Integer> randomValues(int n) {
+		Random random = new Random(1);
+		List<Integer> values = Lists.newArrayList();
+		for (int i = 0; i < n; i++)
+			values.add(random.nextInt(n / 2));
+		return values;
+	}
+
+	private static File directory(String name) {
+		File directory = new File("target", name);
+		directory.mkdirs();
+		for (File file : directory.listFiles())
+			file.delete();
+		return directory;
+	}
+}
@@ -14,8 +14,8 @@ public class KeyTest {
 		NodeLoader<Double> n = new NodeLoader<Double>() {
 
 			@Override
-			public void load(NodeRef<Double> node) {
-
+			public Node<Double> load(NodeRef<Double> node) {
+				return new Node<Double>(this, node, false);
 			}
 
 		};
@@ -0,0 +1,65 @@
+package com.github.davidmoten.structures.btree;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LzfTest {
+
+	@Test
+	public void testRoundTripRepetitiveBytes() {
+		byte[] in = new byte[10000];
+		for (int i = 0; i < in.length; i++)
+			in[i] = (byte) (i % 7 + i / 1000);
+		byte[] compressed = new byte[in.length];
+		int n = Lzf.compress(in, 0, in.length, compressed, 0,
+				compressed.length);
+		assertTrue(n > 0 && n < in.length / 10);
+		assertArrayEquals(in, decompress(compressed, n, in.length));
+	}
+
+	@Test
+	public void testRoundTripRandomBytesWithRepeats() {
+		Random random = new Random(1);
+		byte[] in = new byte[5000];
+		for (int i = 0; i < in.length; i++)
+			in[i] = random.nextInt(4) == 0 ? (byte) random.nextInt() : in[Math
+					.max(0, i - 100)];
+		byte[] compressed = new byte[in.length * 2];
+		int n = Lzf.compress(in, 0, in.length, compressed, 0,
+				compressed.length);
+		assertArrayEquals(in, decompress(compressed, n, in.length));
+	}
+
+	@Test
+	public void testIncompressibleBytesDoNotFit() {
+		Random random = new Random(2);
+		byte[] in = new byte[1000];
+		random.nextBytes(in);
+		assertEquals(0,
+				Lzf.compress(in, 0, in.length, new byte[in.length], 0,
+						in.length - 1));
+	}
+
+	@Test(expected = CorruptRecordException.class)
+	public void testTruncatedInputThrowsCorruptRecordException() {
+		byte[] in = new byte[1000];
+		Arrays.fill(in, (byte) 5);
+		byte[] compressed = new byte[in.length];
+		int n = Lzf.compress(in, 0, in.length, compressed, 0,
+				compressed.length);
+		decompress(compressed, n - 1, in.length);
+	}
+
+	private static byte[] decompress(byte[] compressed, int length,
+			int rawLength) {
+		byte[] out = new byte[rawLength];
+		Lzf.decompress(compressed, 0, length, out, 0, rawLength);
+		return out;
+	}
+}
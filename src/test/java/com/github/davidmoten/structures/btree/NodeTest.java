@@ -163,8 +163,8 @@ public class NodeTest {
 		NodeLoader<Integer> listener = new NodeLoader<Integer>() {
 
 			@Override
-			public void load(NodeRef<Integer> node) {
-
+			public Node<Integer> load(NodeRef<Integer> node) {
+				return new Node<Integer>(this, node, false);
 			}
 		};
 		return new NodeRef<Integer>(listener, Optional.<Position> absent(), 3,
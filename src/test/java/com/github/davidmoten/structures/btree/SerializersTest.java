@@ -0,0 +1,62 @@
+package com.github.davidmoten.structures.btree;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+import org.junit.Test;
+
+public class SerializersTest {
+
+	@Test
+	public void testRoundTrips() throws IOException {
+		checkRoundTrip(Serializers.INTEGER, Integer.MIN_VALUE, 4);
+		checkRoundTrip(Serializers.LONG, 123456789012L, 8);
+		checkRoundTrip(Serializers.DOUBLE, -1.5, 8);
+		checkRoundTrip(Serializers.UUID, UUID.randomUUID(), 16);
+		checkRoundTrip(Serializers.STRING, "\u00e9", 6);
+	}
+
+	@Test
+	public void testJavaSerializationRoundTrip() throws IOException {
+		ByteBuffer bb = write(Serializers.<Short> javaSerialization(),
+				(short) 3);
+		bb.get();
+		assertEquals(Short.valueOf((short) 3), Serializers
+				.<Short> javaSerialization().read(bb));
+		assertEquals(0, bb.remaining());
+	}
+
+	@Test
+	public void testForClass() {
+		assertEquals(Serializers.LONG, Serializers.forClass(Long.class));
+		assertEquals(Serializers.javaSerialization(),
+				Serializers.forClass(Short.class));
+	}
+
+	/**
+	 * Checks that t is written with the expected number of bytes and read
+	 * back from a buffer with some leading bytes.
+	 */
+	private static <T> void checkRoundTrip(Serializer<T> serializer, T t,
+			int expectedBytes) throws IOException {
+		ByteBuffer bb = write(serializer, t);
+		assertEquals(expectedBytes + 1, bb.remaining());
+		bb.get();
+		assertEquals(t, serializer.read(bb));
+		assertEquals(0, bb.remaining());
+	}
+
+	private static <T> ByteBuffer write(Serializer<T> serializer, T t)
+			throws IOException {
+		RecordBuffer buffer = new RecordBuffer(16);
+		DataOutputStream out = new DataOutputStream(buffer);
+		out.writeByte(0);
+		serializer.write(out, t);
+		out.close();
+		return buffer.asByteBuffer();
+	}
+}
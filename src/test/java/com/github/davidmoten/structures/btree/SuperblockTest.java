@@ -0,0 +1,113 @@
+package com.github.davidmoten.structures.btree;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Maps;
+
+public class SuperblockTest {
+
+	@Test
+	public void testRoundTripPicksLatestSlot() {
+		File f = new File("target/testSuperblock.index");
+		f.delete();
+		Map<Long, Long> obsolete = Maps.newHashMap();
+		obsolete.put(3L, 1000L);
+		superblock(0, new Position(1, 2), obsolete).write(f);
+		superblock(1, new Position(3, 4), obsolete).write(f);
+		Superblock sb = Superblock.read(f);
+		assertEquals(1, sb.sequence);
+		assertEquals(3, sb.rootPosition.getFileNumber());
+		assertEquals(4, sb.rootPosition.getPosition());
+		assertEquals(5, sb.degree);
+		assertEquals("dir", sb.storageDirectory);
+		assertEquals("name", sb.storageName);
+		assertEquals(obsolete, sb.obsoleteBytes);
+	}
+
+	@Test
+	public void testTornSlotFallsBackToPreviousCommit() throws IOException {
+		File f = new File("target/testSuperblockTorn.index");
+		f.delete();
+		Map<Long, Long> none = Collections.emptyMap();
+		superblock(4, new Position(1, 2), none).write(f);
+		superblock(5, new Position(3, 4), none).write(f);
+		// corrupt the root position of the latest commit
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		raf.seek(Superblock.SLOT_SIZE + 20);
+		raf.writeLong(99);
+		raf.close();
+		Superblock sb = Superblock.read(f);
+		assertEquals(4, sb.sequence);
+		assertEquals(1, sb.rootPosition.getFileNumber());
+		assertEquals(2, sb.rootPosition.getPosition());
+	}
+
+	@Test
+	public void testLegacyMetadataIsKeptUntilACommitIsOnDisk()
+			throws IOException {
+		File f = new File("target/testSuperblockLegacy.index");
+		f.delete();
+		ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(
+				f));
+		oos.writeObject("dir");
+		oos.writeObject("name");
+		oos.writeLong(1);
+		oos.writeLong(2);
+		oos.writeInt(5);
+		oos.close();
+		Superblock legacy = Superblock.read(f);
+		assertEquals(1, legacy.rootPosition.getFileNumber());
+		// the first commit after the upgrade goes to slot 1
+		Map<Long, Long> none = Collections.emptyMap();
+		superblock(legacy.sequence + 1, new Position(3, 4), none).write(f);
+		assertEquals(3, Superblock.read(f).rootPosition.getFileNumber());
+		// a torn first commit falls back to the legacy metadata
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		raf.seek(Superblock.SLOT_SIZE + 20);
+		raf.writeLong(99);
+		raf.close();
+		Superblock sb = Superblock.read(f);
+		assertEquals(1, sb.rootPosition.getFileNumber());
+		assertEquals(2, sb.rootPosition.getPosition());
+		superblock(sb.sequence + 1, new Position(3, 4), none).write(f);
+		superblock(sb.sequence + 2, new Position(5, 6), none).write(f);
+		sb = Superblock.read(f);
+		assertEquals(2, sb.sequence);
+		assertEquals(5, sb.rootPosition.getFileNumber());
+	}
+
+	@Test
+	public void testManifestRoundTripsWithGapsInTheSegmentNumbers() {
+		File f = new File("target/testSuperblockManifest.index");
+		f.delete();
+		List<Long> segments = Arrays.asList(1L, 2L, 3L, 7L, 9L, 10L);
+		Map<Long, Long> none = Collections.emptyMap();
+		new Superblock(0, new Position(10, 4), 5, "dir", "name",
+				Optional.of("integer"), Optional.of(segments), 1234, none)
+				.write(f);
+		Superblock sb = Superblock.read(f);
+		assertEquals("integer", sb.serializerId.get());
+		assertEquals(segments, sb.segments.get());
+		assertEquals(1234, sb.lastSegmentLength);
+	}
+
+	private static Superblock superblock(long sequence, Position root,
+			Map<Long, Long> obsolete) {
+		return new Superblock(sequence, root, 5, "dir", "name",
+				Optional.<String> absent(), Optional.<List<Long>> absent(), 0,
+				obsolete);
+	}
+}
@@ -0,0 +1,108 @@
+package com.github.davidmoten.structures.btree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+
+public class TwoQueueCacheTest {
+
+	private static final Weigher<Long, String> ONE = new Weigher<Long, String>() {
+		@Override
+		public int weigh(Long key, String value) {
+			return 1;
+		}
+	};
+
+	@Test
+	public void testEntryPutAgainAfterLeavingFifoIsAdmittedToMain() {
+		TwoQueueCache<Long, String> cache = new TwoQueueCache<Long, String>(
+				8, ONE);
+		cache.put(1L, "a");
+		// push 1 out of the fifo queue
+		for (long i = 2; i <= 9; i++)
+			cache.put(i, "b");
+		assertNull(cache.getIfPresent(1L));
+		cache.put(1L, "a");
+		// a scan does not displace 1
+		for (long i = 100; i < 200; i++)
+			cache.put(i, "c");
+		assertEquals("a", cache.getIfPresent(1L));
+		assertEquals(8, cache.size());
+	}
+
+	@Test
+	public void testStatsCountHitsMissesAndEvictions() {
+		TwoQueueCache<Long, String> cache = new TwoQueueCache<Long, String>(
+				2, ONE);
+		cache.put(1L, "a");
+		cache.getIfPresent(1L);
+		cache.getIfPresent(2L);
+		cache.put(2L, "b");
+		cache.put(3L, "c");
+		assertEquals(1, cache.stats().hitCount());
+		assertEquals(1, cache.stats().missCount());
+		assertEquals(1, cache.stats().evictionCount());
+	}
+
+	/**
+	 * Replays point lookups of a hot set of nodes interleaved with a scan
+	 * through many more nodes than the cache holds and compares the hit rates
+	 * of the point lookups for LRU and 2Q.
+	 */
+	@Test
+	public void testBenchmarkHitRatesOfMixedScanAndPointLookups() {
+		int capacity = 1000;
+		Cache<Long, String> lru = CacheBuilder.newBuilder()
+				.concurrencyLevel(1).maximumSize(capacity).build();
+		Cache<Long, String> twoQueue = new TwoQueueCache<Long, String>(
+				capacity, ONE);
+		double lruHitRate = replay(lru);
+		double twoQueueHitRate = replay(twoQueue);
+		System.out.println("point lookup hit rate LRU=" + lruHitRate
+				+ ", 2Q=" + twoQueueHitRate);
+		assertTrue(twoQueueHitRate > 0.9);
+		assertTrue(lruHitRate < 0.5);
+	}
+
+	/**
+	 * Returns the hit rate of point lookups over a hot set of 300 keys (with
+	 * 10 scan accesses between point lookups) after a warm-up period.
+	 * 
+	 * @param cache
+	 * @return
+	 */
+	private static double replay(Cache<Long, String> cache) {
+		Random random = new Random(1);
+		long scanKey = 1000000;
+		int hits = 0;
+		int lookups = 0;
+		for (int i = 0; i < 100000; i++) {
+			long key = random.nextInt(300);
+			boolean hit = access(cache, key);
+			if (i >= 10000) {
+				lookups++;
+				if (hit)
+					hits++;
+			}
+			if (i >= 5000)
+				for (int j = 0; j < 10; j++)
+					access(cache, scanKey++);
+		}
+		return hits / (double) lookups;
+	}
+
+	private static boolean access(Cache<Long, String> cache, long key) {
+		if (cache.getIfPresent(key) != null)
+			return true;
+		cache.put(key, "node");
+		return false;
+	}
+}